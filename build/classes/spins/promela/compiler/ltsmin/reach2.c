@@ -0,0 +1,940 @@
+
+#ifndef SPINS_TEST_CODE
+
+#ifndef fgetln
+#include <errno.h>
+char *
+fgetln(fp, len)
+    FILE *fp;
+    size_t *len;
+{
+    static char *buf = NULL;
+    static size_t bufsiz = 0;
+    char *ptr;
+
+
+    if (buf == NULL) {
+        bufsiz = BUFSIZ;
+        if ((buf = malloc(bufsiz)) == NULL)
+            return NULL;
+    }
+
+    if (fgets(buf, bufsiz, fp) == NULL)
+        return NULL;
+    *len = 0;
+
+    while ((ptr = strchr(&buf[*len], '\n')) == NULL) {
+        size_t nbufsiz = bufsiz + BUFSIZ;
+        char *nbuf = realloc(buf, nbufsiz);
+
+        if (nbuf == NULL) {
+            int oerrno = errno;
+            free(buf);
+            errno = oerrno;
+            buf = NULL;
+            return NULL;
+        } else
+            buf = nbuf;
+
+        *len = bufsiz;
+        if (fgets(&buf[bufsiz], BUFSIZ, fp) == NULL)
+            return buf;
+
+        bufsiz = nbufsiz;
+    }
+
+    *len = (ptr - buf) + 1;
+    return buf;
+}
+#endif
+
+
+typedef bool (*check_f)(int,int);
+
+bool
+has_guard (int t, check_f check, int o)
+{
+    int x;
+    int len = gm_trans[t][0];
+    for (x = 1; x <= len; x++) {
+        int guard = gm_trans[t][x];
+        if (check(guard, o)) return true;
+    }
+    return false;
+}
+
+bool disabled_by (int guard, int o) {
+    return dm_must_disable[guard][o];
+}
+
+bool nes_has (int guard, int o) {
+    return nes_dm[guard][o];
+}
+
+bool nds_has (int guard, int o) {
+    return nds_dm[guard][o];
+}
+
+bool not_coenabled (int guard, int o) {
+    return !co_dm[guard][o];
+}
+
+bool not_coenabled_with_guard_of (int guard, int o) {
+    return has_guard(o, not_coenabled, guard);
+}
+
+static int *t2g = NULL;
+static int *dnb = NULL;
+static int *dna = NULL;
+static int *t2r = NULL;
+static int *t2w = NULL;
+
+void
+spins_create_matrices ()
+{
+    int l = spins_get_label_count();
+    int g = spins_get_guard_count();
+    int t = spins_get_transition_groups();
+    int s = spins_get_state_size();
+    int i, j, k;
+
+    // create t2w / t2r
+    t2w = malloc (sizeof(int[t][s]));
+    t2r = malloc (sizeof(int[t][s]));
+    for (i = 0; i < t; i++) {
+        for (j = 0; j < s; j++) {
+            t2r[i * s + j] = transition_dependency[i][0][j];
+            t2w[i * s + j] = transition_dependency[i][1][j];
+        }
+    }
+
+    // create G_T
+    t2g = malloc (sizeof(int[t][l]));
+    for (i = 0; i < t; i++) {
+        for (j = 0; j < l; j++) {
+            t2g[i * l + j] = 0;
+        }
+        int len = gm_trans[i][0];
+        for (j = 1; j <= len; j++) {
+            int guard = gm_trans[i][j];
+            t2g[i * l + guard] = 1;
+        }
+    }
+
+    // DNA
+    dna = malloc (sizeof(int[t][t]));
+    for (i = 0; i < t; i++) {
+        for (j = 0; j < t; j++) {
+            dna[i * t + j] = (i == j);
+
+            if (i == j) continue; // 1
+
+            if (has_guard(i, not_coenabled_with_guard_of, j)) { // i and j are never coenabled
+                continue;// 0
+            }
+
+            if (!dna_dm[i][j]) {
+                continue; // 0
+            }
+
+            // i and j may disable eachother
+            if (has_guard(i, nds_has, j) || has_guard(j, nds_has, i)) {
+                dna[i * t + j] = 1;
+                continue;// 0
+            }
+
+            // is even dependent? Front-end might miss it.
+            for (k = 0; k < s; k++) {
+                if ((transition_dependency[i][1][k] && actions_read_dependency[j][k]) ||
+                    (actions_read_dependency[i][k] && transition_dependency[j][1][k]) ) {
+                    dna[i * t + j] = 1;
+                    break;
+                }
+            }
+        }
+    }
+
+    // create DNB
+    dnb = malloc (sizeof(int[t][t]));
+    for (i = 0; i < t; i++) {
+        for (j = 0; j < t; j++) {
+            k = dnb[i * t + j] = dna[i * t + j];
+
+            if (has_guard(i, disabled_by, j)) { // j must-disable a guard of i
+                dnb[i * t + j] = 0;
+                continue; // 0
+            }
+
+            if (has_guard(i, nes_has, j)) { // j could enable guard of i
+                dnb[i * t + j] = 1;
+            }
+        }
+    }
+}
+
+void
+spins_use_query()
+{
+    int l = spins_get_label_count();
+    int g = spins_get_guard_count();
+    int t = spins_get_transition_groups();
+    int s = spins_get_state_size();
+
+    printf("Dependency inspector.\n");
+    printf("Groups: %d\n", t);
+    printf("Guards: %d\n", g);
+    printf("Labels: %d\n", l);
+    printf("Slots : %d\n", s);
+    printf("\n");
+    printf("The following matrix commands are implemented (with in and out dimensions):\n");
+    printf("- {0 ..%4d} g {0 ..%4d}\tprint G_T (transition guard function).\n",    t-1, l-1);
+    printf("- {0 ..%4d} u {0 ..%4d}\tprint COM (transition^2 commutes).\n",        t-1, t-1);
+    printf("- {0 ..%4d} a {0 ..%4d}\tprint DNA (transition^2 do-not-accord).\n",   t-1, t-1);
+    printf("- {0 ..%4d} A {0 ..%4d}\tprint DNA-(transition^2 do-not-accord).\n",   t-1, t-1);
+    printf("- {0 ..%4d} b {0 ..%4d}\tprint DNB (transition^2 not-left-accord).\n", t-1, t-1);
+    printf("- {0 ..%4d} e {0 ..%4d}\tprint NES (guard-trans necessary enabling set).\n", l-1, t-1);
+    printf("- {0 ..%4d} d {0 ..%4d}\tprint NDS (guard-trans necessary disabling set).\n",l-1, t-1);
+    printf("- {0 ..%4d} m {0 ..%4d}\tprint MDS (guard-trans must disable set).\n", l-1, t-1);
+    printf("- {0 ..%4d} c {0 ..%4d}\tprint MCE (guard^2 may-be coenabled).\n",     l-1, l-1);
+    printf("- {0 ..%4d} t {0 ..%4d}\tprint GDM (guard-slot test set).\n",          l-1, s-1);
+    printf("- {0 ..%4d} r {0 ..%4d}\tprint A2R (actions read set).\n",             t-1, s-1);
+    printf("- {0 ..%4d} R {0 ..%4d}\tprint T2R (transition read set).\n",          t-1, s-1);
+    printf("- {0 ..%4d} w {0 ..%4d}\tprint T2W (transition write set).\n",         t-1, s-1);
+    printf("&\n");
+    printf("* Combine commands to multiply matrices, e.g. '4ge' (get the NESs for a transition 4).\n");
+//    printf("* Inverse order to reverse operation, e.g.: g5 (all transitions that have guard 5).\n");
+    printf("* Use a minus sign anywhere to invert matrices, e.g.: '-4d-e' (all the NESs for guards that have transition 4 in an NDS).\n");
+    printf("  Note that the minus sign is a switch, e.g.: in '-6ge' both G_T and NES are inverted.\n");
+    printf("\n");
+    printf("Enter a command:\n");
+}
+
+// TODO: type check (now only range checks, but nr guards may equal nr transitions)
+// TODO: 'ge4' should be the same as '4-eg', i.e. print all transitions that have transition 4 in a NES (now it only checks whether one exits)
+// TODO: pretty print (see io_print; apply should store results as set or lists or lists of lists)
+// TODO: identify empty NESs? (counter end-object)
+// TODO: auto use matrices
+
+static inline bool
+spins_check (int num, int min, int max)
+{
+    if (!(num >= min && num < max)) {
+        printf("Out of range: %d (min %d, max %d)\n", num, min, max-1);
+        return true;
+    }
+    return false;
+}
+
+static bool SPINS_DEBUG = true;
+
+typedef struct visitor_s visitor_t;
+
+typedef void (*print_f)(visitor_t *visitor);
+typedef void (*object_f)(visitor_t *visitor);
+typedef bool  (*apply_f)(visitor_t *visitor, int arg);
+
+typedef struct matrix_s {
+    int            *dm;
+    int             rows;
+    int             cols;
+    bool            invert;
+    char            c;
+    int             check;
+} matrix_t;
+
+struct visitor_s {
+    void           *ctx;
+    apply_f         apply;
+    print_f         print;
+    object_f        object;
+    visitor_t      *next;
+    visitor_t      *prev;
+    int             in_dim;
+    int             out_dim;
+    char           *name;
+};
+
+bool
+io_end (visitor_t *this, int v)
+{
+    (void) this;
+    printf("%d, ", v);
+    return false;
+}
+
+bool
+io_end2 (visitor_t *this, int v)
+{
+    if ((long)this->ctx == v) {
+        printf ("true");
+        return true; // shortcut
+    }
+    return false;
+}
+
+bool
+io_end3 (visitor_t *this, int v)
+{
+    int *array = ((int*)this->ctx);
+    int s = array[0];
+    int i;
+    for (i = 1; i <= s; i++) {
+        if (array[i] == v) return false;
+    }
+    array[s+1] = v;
+    array[0]++;
+    return false;
+}
+
+void
+io_print3(visitor_t *this)
+{
+    int *array = ((int*)this->ctx);
+    int s = array[0];
+    int i;
+    printf ("{ ");
+    for (i = 1; i <= s; i++) {
+        printf ("%d, ", array[i]);
+    }
+    printf (" }\n");
+}
+
+bool
+io_start (visitor_t *this, int v)
+{
+    (void) v;
+    this->next->apply(this->next, (long)this->ctx);
+    return false;
+}
+
+bool
+io_start_forall(visitor_t *this, int x)
+{
+    (void) x;
+    int i;
+    for (i = 0; i < this->out_dim; i++) {
+        if (this->next->apply(this->next, i)) return true;
+    }
+    return false;
+}
+
+void io_object(visitor_t *this) {
+    char *name = this->out_dim != -1 ? "start" : "end";
+    printf("%s(%zu)", name, (size_t)this->ctx);
+}
+
+void no_print(visitor_t *this) { (void) this; }
+
+visitor_t *
+io_create_end ()
+{
+    visitor_t *visitor = calloc(sizeof(visitor_t), 1);
+    visitor->ctx = (void *) (long) 0;
+    visitor->apply = io_end;
+    visitor->object = io_object;
+    visitor->print = no_print;
+    visitor->in_dim  = 0;
+    visitor->out_dim =  -1;
+    return visitor;
+}
+
+visitor_t *
+io_create_end2 (int v)
+{
+    visitor_t *visitor = calloc(sizeof(visitor_t), 1);
+    visitor->ctx = (void *) (long) v;
+    visitor->apply = io_end2;
+    visitor->object = io_object;
+    visitor->print = no_print;
+    visitor->in_dim  = 0;
+    visitor->out_dim =  -1;
+    return visitor;
+}
+
+static int *array = NULL;
+visitor_t *
+io_create_end3 (int dim)
+{
+    visitor_t *visitor = calloc(sizeof(visitor_t), 1);
+    if (array == NULL) {
+        array = malloc (sizeof(int[99999]));
+    }
+    assert (dim < 99998);
+    visitor->ctx = array;
+    visitor->apply = io_end3;
+    visitor->object = io_object;
+    visitor->print = io_print3;
+    visitor->in_dim  = dim;
+    visitor->out_dim =  -1;
+    return visitor;
+}
+
+visitor_t *
+io_create_start (int v)
+{
+    visitor_t *visitor = calloc(sizeof(visitor_t), 1);
+    visitor->ctx = (void *) (long) v;
+    visitor->apply = io_start;
+    visitor->object = io_object;
+    visitor->in_dim  = -1;
+    visitor->out_dim =  0;
+    return visitor;
+}
+
+visitor_t *
+io_create_forall (int v)
+{
+    visitor_t *visitor = calloc(sizeof(visitor_t), 1);
+    visitor->ctx = (void *) (long) v;
+    visitor->apply = io_start_forall;
+    visitor->object = io_object;
+    visitor->in_dim  = -1;
+    visitor->out_dim = v;
+    return visitor;
+}
+
+bool
+matrix_visit_row (visitor_t *this, int row) // todo: merge with col usei invert
+{
+    matrix_t *matrix = (matrix_t *) this->ctx;
+    int i;
+    if (spins_check(row, 0, matrix->rows)) return true;
+    for (i = 0; i < matrix->cols; i++) {
+        if (matrix->dm[matrix->cols * row + i] == matrix->check) {
+            if (this->next->apply(this->next, i)) return true;
+        }
+    }
+    return false;
+}
+
+bool
+matrix_visit_col(visitor_t *this, int col)
+{
+    matrix_t *matrix = (matrix_t *) this->ctx;
+    int i;
+    if (spins_check(col, 0, matrix->cols)) return true;
+    for (i = 0; i < matrix->rows; i++) {
+        if (matrix->dm[matrix->cols * i + col] == matrix->check) {
+            if (this->next->apply(this->next, i)) return true;
+        }
+    }
+    return false;
+}
+
+void matrix_object(visitor_t *this) {
+    matrix_t *matrix = (matrix_t *) this->ctx;
+    printf("matrix%s(%c)", matrix->invert ? "-1" : "", matrix->c);
+}
+
+void matrix_print(visitor_t *this) {
+    matrix_t *matrix = (matrix_t *) this->ctx;
+
+}
+
+visitor_t *
+spins_create_matrix_visitor (int *dm, int rows, int cols, bool invert, char c,
+                             int check)
+{
+    visitor_t *visitor = calloc(sizeof(visitor_t), 1);
+    matrix_t *matrix = calloc(sizeof(matrix_t), 1);
+    matrix->rows = rows;
+    matrix->cols = cols;
+    matrix->dm = dm;
+    matrix->c = c;
+    matrix->invert = invert;
+    matrix->check = check;
+    visitor->ctx = matrix;
+    visitor->object = matrix_object;
+    visitor->in_dim = invert ? cols : rows;
+    visitor->out_dim = invert ? rows : cols;
+    visitor->apply = invert ? matrix_visit_col : matrix_visit_row;
+    //if (SPINS_DEBUG) matrix_print(visitor);
+    return visitor;
+}
+
+visitor_t *
+spins_create_matrix_visitor2 (char c, bool invert, bool negate)
+{
+    int l = spins_get_label_count();
+    int g = spins_get_guard_count();
+    int t = spins_get_transition_groups();
+    int s = spins_get_state_size();
+    int check = negate ? 0 : 1;
+
+    switch(c) {
+    case 'g': return spins_create_matrix_visitor(t2g, t, l, invert, c, check);
+    case 'e': return spins_create_matrix_visitor(nes_dm[0], l, t, invert, c, check);
+    case 'd': return spins_create_matrix_visitor(nds_dm[0], l, t, invert, c, check);
+    case 'u': return spins_create_matrix_visitor(commutes_dm[0], t, t, invert, c, check);
+    case 'a': return spins_create_matrix_visitor(dna_dm[0], t, t, invert, c, check);
+    case 'A': return spins_create_matrix_visitor(dna, t, t, invert, c, check);
+    case 'b': return spins_create_matrix_visitor(dnb, t, t, invert, c, check);
+    case 'c': return spins_create_matrix_visitor(co_dm[0], l, l, invert, c, check);
+    case 't': return spins_create_matrix_visitor(gm_dm[0], t, t, invert, c, check);
+    case 'm': return spins_create_matrix_visitor(dm_must_disable[0], l, t, invert, c, check);
+    case 'r': return spins_create_matrix_visitor(actions_read_dependency[0], t, s, invert, c, check);
+    case 'R': return spins_create_matrix_visitor(t2r, t, s, invert, c, check);
+    case 'w': return spins_create_matrix_visitor(t2w, t, s, invert, c, check);
+    default: return NULL;
+    }
+}
+
+void
+spins_visitor_destroy (visitor_t *visitor)
+{
+    if (visitor->ctx != NULL) {
+        if (((long)visitor->ctx) > 99999999) free (visitor->ctx); // reusing pointer
+    }
+    if (visitor->next != NULL) {
+        spins_visitor_destroy (visitor->next);
+    }
+    free (visitor);
+}
+
+typedef struct printer_s {
+    visitor_t      *first;
+    visitor_t      *last;
+} printer_t;
+
+void
+printer_reinit (printer_t *p)
+{
+    if (p->first != NULL)
+        spins_visitor_destroy (p->first);
+    p->first = p->last = NULL;
+}
+
+bool
+printer_chain (printer_t *p, visitor_t *v)
+{
+    if (p->first == NULL || p->last == NULL) {
+        printf("Failed chaining "); v->object(v); printf(" (no chain)\n");
+        return true;
+    }
+    if (p->last->out_dim != v->in_dim && p->last->out_dim != 0 && v->in_dim != 0) {
+        printf ("Failed chaining "); v->object(v); printf(" to ");
+        p->last->object(p->last); printf(" (dimension mismatch: %d ~ %d)\n", p->last->out_dim, v->in_dim);
+        return true;
+    }
+    visitor_t *prev = p->last;
+    p->last = p->last->next = v;
+    p->last->prev = prev;
+    return false;
+}
+
+bool
+printer_add (printer_t *p, int val)
+{
+    if (p->first == NULL) {
+        p->first = p->last = io_create_start(val);
+    } else if (val >= 0 ) {
+        visitor_t *v = io_create_end2(val);
+        if (printer_chain(p, v)) {
+            return true;
+        }
+    }
+    return false; // ok
+}
+
+bool
+printer_add3 (printer_t *p, char **n)
+{
+    if (**n == '@') {
+        (*n)++;
+        if (p->last == NULL) {
+            printf("Failed adding '%c', no previous", **n);
+            return true;
+        }
+        visitor_t *v = io_create_end3(p->last->out_dim);
+        if (printer_chain(p, v)) return true;
+    }
+    return false; // ok
+}
+
+#include <ctype.h>
+
+bool
+printer_add2 (printer_t *p, char c, bool invert, bool *negate)
+{
+    if (!isalpha(c)) return false;
+    visitor_t *v = spins_create_matrix_visitor2 (c, invert, *negate);
+    if (*negate) *negate = false;
+
+    if (v == NULL) {
+        printf ("Wrong command: '%c'\n", c);
+        return true;
+    }
+
+    if (p->first == NULL) { // create default forall visitor suited for this matrix
+        p->first = p->last = io_create_forall(v->in_dim);
+    }
+    if (p->last->out_dim == -1) {
+        printf ("Failed creating "); p->last->object(p->last); printf(" (previous command provides no input)\n");
+        return true;
+    }
+
+    if (printer_chain(p, v))
+        return true;
+    return false; // ok
+}
+
+bool
+printer_print (printer_t *p)
+{
+    if (p->first == NULL) return false; // ok: empty command
+
+    if (p->first->out_dim == -1) {
+        printf("Failed executing "); p->first->object(p->last); printf(" (first command provides no output)\n");
+        return true;
+    }
+
+    if (p->last->out_dim != -1) { // add default visitor
+        visitor_t *v = io_create_end(); // prints all
+        if (printer_chain(p, v)) {
+            return true;
+        }
+    }
+
+    // do stuff
+    bool premature = p->first->apply (p->first, -1);
+    if (SPINS_DEBUG) printf("%s\n", premature ? " (shortcutted)" : "");
+
+    if (p->last->print == NULL) {
+        printf("Failed printing "); p->last->object(p->last); printf(" (last command provides no print function)\n");
+        return true;
+    }
+    p->last->print (p->last);
+    return false;
+}
+
+void
+spins_query()
+{
+    spins_create_matrices();
+
+use:spins_use_query();
+
+    printer_t p;
+    p.first = p.last = NULL;
+    while (true) { // parse
+        size_t len;
+        char *begin;
+        char *in = begin = fgetln(stdin, &len);
+        if (feof(stdin) || ferror(stdin)) break;
+        if (len == 0) continue;
+
+        printer_reinit(&p);
+        bool invert = false;
+        bool negate = false;
+        char *end = in, *term = in + len;
+        while (end != term) {
+            if (end[0] == '-') {
+                invert = !invert;
+                end++;
+                continue;
+            } else if (end[0] == '!') {
+                negate = !negate;
+                end++;
+            }
+
+            in = end;
+            int v = strtol(in, &end, 10);
+            if (end != in) { // parsed number
+
+                if (printer_add(&p, v)) goto use; // may fail
+
+            } else { // must be a command:
+
+                if (printer_add3(&p, &end)) goto use;
+
+                if ((end == term)) { printf("Premature end after ! at pos %d", (int)(end - begin)); break; }
+                char command = end++[0];
+
+                if (printer_add2(&p, command, invert, &negate)) goto use; // may fail
+            }
+        }
+
+        if (printer_print(&p)) goto use;
+    }
+
+    printer_reinit(&p); // destroy stuff
+    free (t2g);
+    free (dnb);
+}
+
+int
+main(int argc, char **argv)
+{
+    spins_query();
+}
+
+#endif
+
+typedef struct spins_stack_s spins_stack_t;
+
+typedef struct spins_args_s {
+    void               *model;
+    void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy);
+    void               *arg;
+    size_t              outs;
+    int                 sid;
+    transition_info_t  *ti_orig;
+    void               *table;
+    spins_stack_t      *stack;      // on first use
+    size_t              level;      // of recursion
+    size_t              depth;      // of the state that is expanded
+    int                 empty;      // no successor of the state waits yet
+    int (*seen)(struct spins_args_s *args, state_t *state);
+} spins_args_t;
+
+/* Counters of the atomic expansions and the state database (see the
+ * metrics of the generated code), which are empty without SPINS_METRICS. */
+#ifdef SPINS_METRICS
+#define SPINS_METRIC_INC(field) (spins_metrics()->field++)
+#define SPINS_METRICS_REACH(args) (spins_metrics()->reach++)
+#define SPINS_METRICS_EXPAND(depth) do { spins_metrics_t *m = spins_metrics(); \
+        m->reach_states++; \
+        if ((depth) > m->reach_depth) m->reach_depth = (depth); \
+    } while (0)
+#else
+#define SPINS_METRIC_INC(field)
+#define SPINS_METRICS_REACH(args)
+#define SPINS_METRICS_EXPAND(depth)
+#endif
+
+/* The states of an atomic block are searched depth-first. The callbacks of
+ * the sid functions recurse into the successors while the recursion fits in
+ * about SPINS_ATOMIC_STACK bytes of the C stack. Below that, the successors
+ * wait on an explicit stack: in a frame per expanded state, in the order of
+ * the callbacks, in which they are emitted (if they leave the block) or
+ * expanded, so the successors come out as in a recursive search. The
+ * entries live in chunks that do not move, and are reused by the searches
+ * of a thread. A search deeper than SPINS_ATOMIC_DEPTH states is an error. */
+#ifndef SPINS_ATOMIC_DEPTH
+#define SPINS_ATOMIC_DEPTH 65536
+#endif
+#ifndef SPINS_ATOMIC_STACK
+#define SPINS_ATOMIC_STACK 65536
+#endif
+#define SPINS_ATOMIC_RECURSION (SPINS_ATOMIC_STACK / (2 * sizeof(state_t) + 256))
+#define SPINS_CHUNK 64
+
+typedef enum {
+    SPINS_EMIT,                     // leaves the atomic block
+    SPINS_EXPAND,                   // stays in the atomic block
+    SPINS_CHECK                     // stays in it, and may lie on a cycle
+} spins_kind_t;
+
+typedef struct spins_entry_s {
+    spins_kind_t        kind;
+    int                 atomic;     // the process that continues
+    size_t              depth;
+    int                 has_cpy;
+    int                 cpy[sizeof(state_t) / sizeof(int)];
+    state_t             state;
+} spins_entry_t;
+
+typedef struct spins_frame_s {
+    size_t              begin;      // the successors are begin .. top
+    size_t              next;
+} spins_frame_t;
+
+struct spins_stack_s {
+    spins_entry_t     **chunks;
+    size_t              nchunks;
+    size_t              top;
+    spins_frame_t      *frames;
+    size_t              nframes;
+    size_t              depth;
+};
+
+static pthread_once_t spins_stack_once = PTHREAD_ONCE_INIT;
+static pthread_key_t spins_stack_key;
+static __thread spins_stack_t *spins_stack = NULL;
+
+void
+spins_free_stack (void *a)
+{
+    spins_stack_t *stack = (spins_stack_t *)a;
+    size_t i;
+    for (i = 0; i < stack->nchunks; i++)
+        free (stack->chunks[i]);
+    free (stack->chunks);
+    free (stack->frames);
+    free (stack);
+}
+
+void
+spins_initialize_stack_key ()
+{
+    pthread_key_create (&spins_stack_key, spins_free_stack);
+}
+
+static void *
+spins_realloc (void *p, size_t size)
+{
+    p = realloc (p, size);
+    if (p == NULL) {
+        printf ("Out of memory - ");
+        exit (1);
+    }
+    return p;
+}
+
+spins_stack_t *
+spins_get_stack ()
+{
+    if (EXPECT_FALSE(spins_stack == NULL)) {
+        (void) pthread_once (&spins_stack_once, spins_initialize_stack_key);
+        spins_stack = spins_realloc (NULL, sizeof(spins_stack_t));
+        memset (spins_stack, 0, sizeof(spins_stack_t));
+        pthread_setspecific (spins_stack_key, spins_stack); // frees it
+    }
+    return spins_stack;
+}
+
+static inline spins_entry_t *
+spins_entry (spins_stack_t *stack, size_t ref)
+{
+    return &stack->chunks[ref / SPINS_CHUNK][ref % SPINS_CHUNK];
+}
+
+static inline void
+spins_push_frame (spins_stack_t *stack)
+{
+    if (EXPECT_FALSE(stack->depth == stack->nframes)) {
+        stack->nframes = stack->nframes == 0 ? SPINS_CHUNK : stack->nframes << 1;
+        stack->frames = spins_realloc (stack->frames, sizeof(spins_frame_t[stack->nframes]));
+    }
+    spins_frame_t *frame = &stack->frames[stack->depth++];
+    frame->begin = frame->next = stack->top;
+}
+
+/* Expands a state: its successors are emitted, searched recursively or
+ * pushed by the callbacks. It is emitted itself if it has none. */
+static inline void
+spins_expand (spins_args_t *args, state_t *state, int atomic, int *cpy, size_t depth)
+{
+    if (EXPECT_FALSE(depth > SPINS_ATOMIC_DEPTH)) {
+        printf ("ERROR: model's atomic search is too deep "
+                "(max depth = %d). Increase SPINS_ATOMIC_DEPTH.", SPINS_ATOMIC_DEPTH);
+        exit (1);
+    }
+    SPINS_METRICS_EXPAND (depth);
+    args->depth = depth;
+    args->empty = true;
+    state_t out;
+    int count = spins_get_successor_sid (args->model, state, args, &out, atomic, cpy);
+    if (count == 0) { // blocked: the state is a successor
+        args->callback (args->arg, args->ti_orig, state, cpy);
+        args->outs++;
+    }
+}
+
+/* Searches the atomic block from a state, until its successors that had to
+ * wait on the stack are done. */
+void
+spins_atomic_dfs (spins_args_t *args, state_t *state, int atomic, int *cpy, size_t depth)
+{
+    spins_expand (args, state, atomic, cpy, depth);
+    if (args->empty) return;
+    spins_stack_t *stack = args->stack;
+    size_t bottom = stack->depth - 1;
+    while (stack->depth > bottom) {
+        spins_frame_t *frame = &stack->frames[stack->depth - 1];
+        if (frame->next == stack->top) {
+            stack->top = frame->begin;
+            stack->depth--;
+            continue;
+        }
+        spins_entry_t *e = spins_entry (stack, frame->next++);
+        int *c = e->has_cpy ? e->cpy : NULL;
+        if (e->kind == SPINS_EMIT) {
+            args->callback (args->arg, args->ti_orig, &e->state, c);
+            args->outs++;
+            continue;
+        }
+        if (e->kind == SPINS_CHECK && args->seen (args, &e->state))
+            continue;
+        spins_expand (args, &e->state, e->atomic, c, e->depth);
+    }
+}
+
+/* Handles a successor of the state that is expanded. */
+void
+spins_push_atomic (spins_args_t *args, state_t *out, int atomic, int *cpy,
+                   spins_kind_t kind)
+{
+    if (args->empty) { // no earlier successor waits
+        if (kind == SPINS_EMIT) {
+            args->callback (args->arg, args->ti_orig, out, cpy);
+            args->outs++;
+            return;
+        }
+        if (args->level < SPINS_ATOMIC_RECURSION) {
+            if (kind == SPINS_CHECK && args->seen (args, out))
+                return;
+            size_t depth = args->depth;
+            args->level++;
+            spins_atomic_dfs (args, out, atomic, cpy, depth + 1);
+            args->level--;
+            args->depth = depth;
+            args->empty = true;
+            return;
+        }
+        if (args->stack == NULL)
+            args->stack = spins_get_stack ();
+        spins_push_frame (args->stack);
+        args->empty = false;
+    }
+    spins_stack_t *stack = args->stack;
+    if (EXPECT_FALSE(stack->top == stack->nchunks * SPINS_CHUNK)) {
+        stack->chunks = spins_realloc (stack->chunks, sizeof(spins_entry_t *[stack->nchunks + 1]));
+        stack->chunks[stack->nchunks++] = spins_realloc (NULL, sizeof(spins_entry_t[SPINS_CHUNK]));
+    }
+    spins_entry_t *e = spins_entry (stack, stack->top++);
+    e->kind = kind;
+    e->atomic = atomic;
+    e->depth = args->depth + 1;
+    e->has_cpy = cpy != NULL;
+    if (cpy != NULL) memcpy (e->cpy, cpy, sizeof(e->cpy));
+    memcpy (&e->state, out, sizeof(state_t));
+}
+
+void
+spins_simple_atomic_cb (void* arg, transition_info_t *transition_info, state_t *out, int atomic, int *cpy)
+{
+    spins_args_t *args = (spins_args_t *)arg;
+    spins_kind_t kind = leaves_atomic[transition_info->group] ? SPINS_EMIT : SPINS_EXPAND;
+    spins_push_atomic (args, out, atomic, cpy, kind);
+}
+
+/* Searches the atomic block from state in. A callback may start a search of
+ * its own, which uses the stack above the frames of this one. */
+void
+spins_search (spins_args_t *args, state_t *in, int atomic, int *cpy, spins_kind_t kind)
+{
+    args->stack = NULL;
+    args->level = 0;
+    if (kind == SPINS_CHECK && args->seen (args, in))
+        return;
+    spins_atomic_dfs (args, in, atomic, cpy, 1);
+}
+
+inline int
+spins_simple_reach (void* model, transition_info_t *transition_info, state_t *in,
+       void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy),
+       void *arg, int sid, int *cpy) {
+    spins_args_t args;
+    args.table = NULL;
+    args.seen = NULL;
+    args.model = model;
+    args.callback = callback;
+    args.arg = arg;
+    args.outs = 0;
+    args.sid = sid;
+    args.ti_orig = transition_info;
+    SPINS_METRICS_REACH (&args);
+    spins_search (&args, in, sid, cpy, SPINS_EXPAND);
+    return args.outs;
+}
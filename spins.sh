@@ -35,6 +35,11 @@ output_file="${promela_name}.spins.c"
 if [ -f "$output_file" ]; then
 	rm -f "$output_file";
 fi
+# makefile of a split model (option -s)
+make_file="${promela_name}.spins.mk"
+if [ -f "$make_file" ]; then
+	rm -f "$make_file";
+fi
 
 # Total memory in KB
 if [ -e /proc/meminfo ]; then 
@@ -70,6 +75,10 @@ CC="gcc -fPIC -shared -O2 -ggdb $CFLAGS -Wno-unused-variable \
     -Wno-unknown-warning-option \
     $output_file -o $promela_name.spins"
 
+if [ -f "$make_file" ]; then
+    CC="make -j -f $make_file"
+fi
+
 if [ $verbose = 1 ]; then
     echo $CC
 fi
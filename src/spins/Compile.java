@@ -23,23 +23,32 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import spins.options.BooleanOption;
 import spins.options.MultiStringOption;
+import spins.options.NumberOption;
 import spins.options.OptionParser;
 import spins.options.StringOption;
 import spins.promela.compiler.Preprocessor;
 import spins.promela.compiler.Preprocessor.DefineMapping;
 import spins.promela.compiler.Proctype;
 import spins.promela.compiler.Specification;
+import spins.promela.compiler.actions.OptionAction;
 import spins.promela.compiler.automaton.State;
+import spins.promela.compiler.automaton.Transition;
 import spins.promela.compiler.expression.Expression;
 import spins.promela.compiler.ltsmin.LTSminPrinter;
 import spins.promela.compiler.ltsmin.LTSminTreeWalker;
 import spins.promela.compiler.ltsmin.LTSminTreeWalker.Options;
+import spins.promela.compiler.ltsmin.TransitionProfile;
+import spins.promela.compiler.ltsmin.matrix.DepMatrix;
+import spins.promela.compiler.ltsmin.matrix.DepMatrix.Backend;
+import spins.promela.compiler.ltsmin.matrix.MatrixFile;
 import spins.promela.compiler.ltsmin.model.LTSminModel;
 import spins.promela.compiler.ltsmin.model.LTSminTransition;
 import spins.promela.compiler.ltsmin.util.LTSminDebug;
@@ -132,7 +141,72 @@ public class Compile {
 		return null;
 	}
 
+	/**
+	 * Thrown instead of terminating the VM, so that a compilation job can
+	 * also be run on behalf of the {@link CompileServer}.
+	 */
+	public static class CompileExit extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		private final int status;
+
+		public CompileExit(int status) {
+			super("compilation exited with status "+ status);
+			this.status = status;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+	}
+
+	private static void exit(int status) {
+		throw new CompileExit(status);
+	}
+
+	/**
+	 * Clears the global state left behind by a previous compilation.
+	 */
+	private static void reset() {
+		Preprocessor.reset();
+		State.resetIds();
+		Transition.resetIds();
+		OptionAction.resetLabels();
+		Specification._NR_PR.unsetAssignedTo();
+		Specification._NR_PR.unsetInitExpr();
+	}
+
+	/**
+	 * Parses and optimizes a Promela file like a compilation job does, for
+	 * tools that build on the front end (spins.bench).
+	 * @return the specification, or null if the file could not be parsed
+	 */
+	public static synchronized Specification parse(final File promFile,
+	                                               final Options opts) {
+		reset();
+		return compile(promFile, true, opts);
+	}
+
 	public static void main(final String[] args) {
+		try {
+			run(args, new File(System.getProperty("user.dir")));
+		} catch (CompileExit e) {
+			System.exit(e.getStatus());
+		}
+	}
+
+	/**
+	 * Runs one compilation job. The parser and the walkers share global
+	 * state, therefore jobs are serialized.
+	 * @param args the command line arguments of the job
+	 * @param workDir the directory relative to which the model is looked up
+	 *                and in which the output is written
+	 * @return the written file or null if only the preprocessor output
+	 *         was printed
+	 * @throws CompileExit if the compilation failed
+	 */
+	public static synchronized File run(final String[] args, final File workDir) {
+		reset();
+
 		final String  shortd  = 
 			"SpinS Promela Compiler - version " + Version.VERSION + " (" + Version.DATE + ")\n" +
 			"(C) University of Twente, Formal Methods and Tools group";
@@ -217,83 +291,201 @@ public class Compile {
 			"compilation process.");
 		parser.addOption(verbose);
 
+		final NumberOption threads = new NumberOption('j',
+			"number of threads used to generate the guard matrices", 1, 1, 1024);
+		parser.addOption(threads);
+
+		final BooleanOption bitmaps = new BooleanOption('b',
+			"store the dependency matrices as compressed bitmaps");
+		parser.addOption(bitmaps);
+
+		final BooleanOption packed = new BooleanOption('m',
+			"write the matrices as packed bit sets or sparse arrays in the C code");
+		parser.addOption(packed);
+
+		final BooleanOption matrixFile = new BooleanOption('x',
+			"write the matrices to a binary file (.spins.dm), which the C code maps at load time");
+		parser.addOption(matrixFile);
+
+		final NumberOption split = new NumberOption('s',
+			"split the C code into a header and units, of which n for the\n" +
+			"transitions, with a makefile to build them in parallel (make -j)",
+			0, 0, 1024);
+		parser.addOption(split);
+
+		final BooleanOption pcDispatch = new BooleanOption('p',
+			"evaluate only the guards of the transitions that leave the\n" +
+			"current locations (switch on program counters) in get_successor_all");
+		parser.addOption(pcDispatch);
+
+		final BooleanOption lazyGuards = new BooleanOption('g',
+			"evaluate the guards in get_successor_all on first use, instead\n" +
+			"of all guards up front");
+		parser.addOption(lazyGuards);
+
+		final BooleanOption subexpressions = new BooleanOption('e',
+			"compute common subexpressions of the guards and state labels\n" +
+			"once in spins_get_labels_many");
+		parser.addOption(subexpressions);
+
+		final BooleanOption writeSets = new BooleanOption('w',
+			"copy a state once per get_successor_all, and restore only the\n" +
+			"slots that a transition may write after its callback");
+		parser.addOption(writeSets);
+
+		final BooleanOption hash = new BooleanOption('z',
+			"generate an (incremental) Zobrist hash of the states, which the\n" +
+			"hashed successor functions pass to their callback");
+		parser.addOption(hash);
+
+		final BooleanOption profileCounters = new BooleanOption('n',
+			"count per transition group how often get_successor_all tries and\n" +
+			"fires it, and write the counts to a profile at exit (see -f)");
+		parser.addOption(profileCounters);
+
+		final StringOption profile = new StringOption('f',
+			"generate the frequently enabled transitions of a profile (see -n)\n" +
+			"first, and mark rarely enabled ones as unlikely", false);
+		parser.addOption(profile);
+
+		final NumberOption metrics = new NumberOption('a',
+			"instrument the C code with per-thread counters (1), and cycle\n" +
+			"timers (2), which spins_dump_metrics writes at exit", 0, 0, 2);
+		parser.addOption(metrics);
+
+		final BooleanOption fuseAtomic = new BooleanOption('u',
+			"fuse the deterministic steps of atomic sequences into the code of\n" +
+			"the transitions that enter them, instead of searching them at run time");
+		parser.addOption(fuseAtomic);
+
+		final BooleanOption packState = new BooleanOption('k',
+			"pack narrow variables (bit, bool, byte, short) into shared 32-bit\n" +
+			"slots of the state vector, instead of one slot per variable");
+		parser.addOption(packState);
+
+		final BooleanOption ranges = new BooleanOption('r',
+			"infer the value ranges of the variables, export them per slot\n" +
+			"(spins_get_state_variable_range), and narrow int and short variables\n" +
+			"to them in a packed state vector (-k)");
+		parser.addOption(ranges);
+
+		final BooleanOption shortCalls = new BooleanOption('R',
+			"generate the short vector next-state functions (as LTSmin's R2W\n" +
+			"short calls), which wrap the full ones: they expand the read slots\n" +
+			"into a state, and project the successors on the may-write slots");
+		parser.addOption(shortCalls);
+
 		final BooleanOption no_atomic = new BooleanOption('i',
 			"Ignore atomic sections (better for LTSmin POR and symbolic tools).");
 		parser.addOption(no_atomic);
 
-		parser.parse(args);
+		final StringOption cacheDir = new StringOption('c',
+			"cache generated code in (and reuse it from) a directory", false);
+		parser.addOption(cacheDir);
+
+		final NumberOption cacheSize = new NumberOption('M',
+			"maximum size of the code cache in MB", 1024, 1, 1024 * 1024);
+		parser.addOption(cacheSize);
+
+		try {
+			parser.parse(args);
+		} catch (IllegalArgumentException e) {
+			exit(-1);
+		}
 		final List<String> files = parser.getFiles();
 
 		if (files.size() != 1) {
 			System.out.println("Please specify one file that is to be compiled!");
 			parser.printUsage();
-	        System.exit(-1);
+	        exit(-1);
 		}
 
-		final File file = new File(files.get(0));
+		File file = new File(files.get(0));
+		if (!file.isAbsolute())
+			file = new File(workDir, files.get(0));
 		if (!file.exists() || !file.isFile()) {
 			System.out.println("File " + file.getName() + " does not exist or is not a valid file!");
 			parser.printUsage();
-	        System.exit(-1);
+	        exit(-1);
 		}
 
         if (textbook_ltl.isSet()) {
             System.err.println("Textbook LTL semantics not yet implemented.");
-            System.exit(-1);
+            exit(-1);
         }
 
-		for (String def : define) {
-		    int indexEq = def.indexOf('=');
-		    String defName = def;
-		    String defArg = "";
-		    if (indexEq != -1) {
-		        defName = def.substring(0, indexEq).trim();
-		        defArg = def.substring(indexEq + 1);
-		    }
-		    Preprocessor.define.name = defName;
-		    Preprocessor.addDefine(defArg, false);
-		}
+		addDefines(define);
 
 		if (preprocessor.isSet()) {
-			Preprocessor.setFilename(file.getName());
-			String path = file.getAbsoluteFile().getParent();
-			Preprocessor.setDirname(path);
-			PromelaTokenManager tm;
-			try {
-				tm = new PromelaTokenManager(null, new SimpleCharStream(new FileInputStream(file)));
-			} catch (FileNotFoundException e) {
-				throw new AssertionError(e);
-			}
-			while (true) {
-				try {
-					Token t = tm.getNextToken();
-					System.out.print(t.image);
-					if (t.image == "") break;
-				} catch (TokenMgrError e) {
-					break;
-				}
-			}
-			System.exit(0);
+			System.out.print(preprocess(file));
+			return null;
 		}
 
         Options opts = new Options(verbose.isSet(), no_guards.isSet(),
                 					  must_write.isSet(), !no_cnf.isSet(),
                 					  java.isSet(), no_atomic.isSet(),
                 					  total.isSet(), no_cpy.isSet());
+        opts.threads = threads.getValue();
+        opts.packed = packed.isSet() || matrixFile.isSet();
+        opts.split = split.getValue();
+        opts.pc_dispatch = pcDispatch.isSet();
+        opts.lazy_guards = lazyGuards.isSet();
+        opts.cse = subexpressions.isSet();
+        opts.write_sets = writeSets.isSet();
+        opts.hash = hash.isSet();
+        opts.profile_counters = profileCounters.isSet();
+        opts.metrics = metrics.getValue();
+        opts.fuse_atomic = fuseAtomic.isSet();
+        opts.packed_state = packState.isSet();
+        opts.ranges = ranges.isSet();
+        opts.short_calls = shortCalls.isSet();
+        if (profile.isSet()) {
+            try {
+                opts.profile = TransitionProfile.read(new File(profile.getValue()));
+            } catch (IOException e) {
+                System.out.println("Cannot read profile: "+ e.getMessage());
+                exit(-1);
+            }
+        }
+        DepMatrix.setDefaultBackend(bitmaps.isSet() ? Backend.BITMAP
+                                                    : Backend.SPARSE);
+
+		CompileCache cache = null;
+		String key = null;
+		File cFile = new File(workDir, file.getName()+".spins.c");
+		if (cacheDir.isSet() && !dot.isSet() && !matrixFile.isSet() &&
+				opts.split == 0) {
+			cache = new CompileCache(new File(cacheDir.getValue()),
+									 cacheSize.getValue() * 1024L * 1024L);
+			CompileCache.Key k = new CompileCache.Key();
+			k.add(file.getName()).add(preprocess(file));
+			for (String def : define) k.add(def);
+			for (String defined : export) k.add(defined);
+			k.add(progress.getValue()).add(opts).add(ltsmin_ltl.isSet());
+			k.add(useNever.isSet()).add(optimalizations.isSet("3"));
+			key = k.digest();
+			Preprocessor.reset(); // tokenizing has changed the defines
+			addDefines(define);
+			if (cache.fetch(key, cFile)) {
+				System.out.println("Written cached C code to " + cFile);
+				System.out.println(cache);
+				return cFile;
+			}
+		}
 
 		final Specification spec = 
 			Compile.compile(file, !optimalizations.isSet("3"), opts);
 
+        if (spec == null) {
+            exit(-4);
+        }
+
 		if (!useNever.isSet() && spec.getNever() != null) {
     			LTSminTreeWalker.NEVER = false;
     			System.out.println("\nWARNING: Ignoring NEVER claim. Supply LTL formula to LTSmin or override with -N.\n\n");
         		spec.setNever(null);
         }
 
-        if (spec == null) {
-            System.exit(-4);
-        }
-
         Expression progressLabel = null;        
         String progressLabelName = progress.getValue();
         if (progressLabelName != null) {
@@ -314,18 +506,74 @@ public class Compile {
         }
 
 
-		File outputDir = new File(System.getProperty("user.dir"));
+		File outputDir = workDir;
 		if (dot.isSet()) {
 			Compile.writeLTSminDotFile(spec, file.getName(), outputDir,
 			                           ltsmin_ltl.isSet(), opts,
 	                                   exportLabels, progressLabel);
 			System.out.println("Written DOT file to " + outputDir + "/" + file.getName()+".spins.dot");
+			return new File(outputDir, file.getName()+".spins.dot");
 		} else {
+			MatrixFile mf = null;
+			if (matrixFile.isSet()) {
+				mf = new MatrixFile(new File(outputDir, file.getName() + MatrixFile.SUFFIX));
+			}
 			Compile.writeLTSMinFiles(spec, file.getName(), outputDir,
 			                         ltsmin_ltl.isSet(), opts,
-			                         exportLabels, progressLabel);
+			                         exportLabels, progressLabel, mf);
 			System.out.println("Written C code to " + outputDir + "/" + file.getName()+".spins.c");
+			if (opts.split > 0) {
+				System.out.println("Written makefile to " + outputDir + "/" + file.getName()+".spins.mk");
+			}
+			if (mf != null) {
+				System.out.println("Written matrices to " + mf.getFile());
+			}
+			if (cache != null) {
+				cache.store(key, cFile);
+				System.out.println(cache);
+			}
+			return cFile;
+		}
+	}
+
+	private static void addDefines(StringOption define) {
+		for (String def : define) {
+		    int indexEq = def.indexOf('=');
+		    String defName = def;
+		    String defArg = "";
+		    if (indexEq != -1) {
+		        defName = def.substring(0, indexEq).trim();
+		        defArg = def.substring(indexEq + 1);
+		    }
+		    Preprocessor.define.name = defName;
+		    Preprocessor.addDefine(defArg, false);
+		}
+	}
+
+	/**
+	 * @return the token stream of the preprocessed model
+	 */
+	private static String preprocess(File file) {
+		Preprocessor.setFilename(file.getName());
+		String path = file.getAbsoluteFile().getParent();
+		Preprocessor.setDirname(path);
+		PromelaTokenManager tm;
+		try {
+			tm = new PromelaTokenManager(null, new SimpleCharStream(new FileInputStream(file)));
+		} catch (FileNotFoundException e) {
+			throw new AssertionError(e);
+		}
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			try {
+				Token t = tm.getNextToken();
+				sb.append(t.image);
+				if (t.image == "") break;
+			} catch (TokenMgrError e) {
+				break;
+			}
 		}
+		return sb.toString();
 	}
 
     private static Expression parseDefine(Specification spec, String name) {
@@ -334,7 +582,7 @@ public class Compile {
             System.err.println("Could not set '"+ name +"' as label.");
             System.err.println(def == null ? "It does not exist."
                                            : "It has parameters.");
-            System.exit(-1);
+            exit(-1);
         }
         InputStream is = new ByteArrayInputStream(def.defineText.getBytes());
         final Promela prom = new Promela(spec, is); // start new parser for condition
@@ -345,7 +593,7 @@ public class Compile {
             System.err.println("Could not set "+ name +" as label.");
             System.err.println("Failure in parsing: "+ e.getMessage());
             e.printStackTrace();
-            System.exit(-1);
+            exit(-1);
         }
         return null;
     }
@@ -416,19 +664,40 @@ public class Compile {
 										 final String name, final File outputDir,
 										 boolean ltsmin_ltl, Options opts,
 										 Map<String, Expression> exports,
-	                                     Expression progress) {
+	                                     Expression progress,
+	                                     MatrixFile matrices) {
 		LTSminTreeWalker walker = new LTSminTreeWalker(spec, ltsmin_ltl);
 		LTSminModel model = walker.createLTSminModel(name, opts, exports, progress);
-		String code = LTSminPrinter.generateCode(model, opts);
+		if (opts.profile != null &&
+				opts.profile.getGroups() != model.getTransitions().size()) {
+			System.out.println("Cannot use profile: it has "+ opts.profile.getGroups() +
+			                   " transition groups, the model has "+
+			                   model.getTransitions().size());
+			exit(-1);
+		}
 		final File javaFile = new File(outputDir, name + ".spins.c");
 		try {
-			final FileOutputStream fos = new FileOutputStream(javaFile);
-            fos.write(code.getBytes());
-			fos.flush();
-			fos.close();
+			if (opts.split > 0) {
+				LTSminPrinter.generateSplitCode(model, opts, matrices, javaFile);
+			} else {
+				final Writer out = new OutputStreamWriter(new FileOutputStream(javaFile));
+				try {
+					LTSminPrinter.generateCode(model, opts, matrices, out);
+				} finally {
+					out.close();
+				}
+			}
 		} catch (final IOException ex) {
 			System.out.println("IOException while writing java files: " + ex.getMessage());
-			System.exit(-5);
+			exit(-5);
+		}
+		if (matrices != null) {
+			try {
+				matrices.write();
+			} catch (final IOException ex) {
+				System.out.println("IOException while writing "+ matrices.getFile() +": " + ex.getMessage());
+				exit(-5);
+			}
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,190 @@
+// Copyright 2010, University of Twente, Formal Methods and Tools group
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package spins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+/**
+ * A content-addressed on-disk cache of generated C code.
+ *
+ * Entries are keyed by a digest over everything that determines the
+ * output: the preprocessed token stream of the model, the defines, labels
+ * and options, and the SpinS version. The modification time of an entry is
+ * its last use; when the cache outgrows its bound, the least recently used
+ * entries are evicted.
+ */
+public class CompileCache {
+
+	private static final String SUFFIX = ".spins.c";
+	private static final String STATS = "cache.stats";
+
+	private static final FilenameFilter ENTRIES = new FilenameFilter() {
+		public boolean accept(File dir, String name) {
+			return name.endsWith(SUFFIX);
+		}
+	};
+
+	private final File dir;
+	private final long maxBytes;
+	private final Properties stats = new Properties();
+
+	public CompileCache(File dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new AssertionError("Could not create cache directory "+ dir);
+		File f = new File(dir, STATS);
+		if (f.exists()) {
+			try {
+				FileInputStream in = new FileInputStream(f);
+				stats.load(in);
+				in.close();
+			} catch (IOException e) {
+				stats.clear(); // start counting anew
+			}
+		}
+	}
+
+	/**
+	 * Incrementally computes a cache key.
+	 */
+	public static class Key {
+		private final MessageDigest md;
+
+		public Key() {
+			try {
+				md = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new AssertionError(e);
+			}
+			add(Version.VERSION);
+		}
+
+		public Key add(Object o) {
+			byte[] b = String.valueOf(o).getBytes(StandardCharsets.UTF_8);
+			md.update(b);
+			md.update((byte)0); // separator
+			return this;
+		}
+
+		public String digest() {
+			StringBuilder sb = new StringBuilder();
+			for (byte b : md.digest())
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Copies the entry for key to the output file.
+	 * @return whether the entry existed
+	 */
+	public boolean fetch(String key, File output) {
+		File entry = new File(dir, key + SUFFIX);
+		if (entry.isFile()) {
+			try {
+				Files.copy(entry.toPath(), output.toPath(),
+						   StandardCopyOption.REPLACE_EXISTING);
+				entry.setLastModified(System.currentTimeMillis());
+				count("hits");
+				return true;
+			} catch (IOException e) {
+				System.err.println("Could not read cache entry "+ entry +": "+ e.getMessage());
+			}
+		}
+		count("misses");
+		return false;
+	}
+
+	/**
+	 * Stores the output file under key and evicts entries over the bound.
+	 */
+	public void store(String key, File output) {
+		File entry = new File(dir, key + SUFFIX);
+		try {
+			File tmp = File.createTempFile(key, ".tmp", dir);
+			Files.copy(output.toPath(), tmp.toPath(),
+					   StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tmp.toPath(), entry.toPath(),
+					   StandardCopyOption.REPLACE_EXISTING,
+					   StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Could not write cache entry "+ entry +": "+ e.getMessage());
+			return;
+		}
+		evict();
+	}
+
+	private void evict() {
+		File[] entries = dir.listFiles(ENTRIES);
+		if (entries == null) return;
+		long size = 0;
+		for (File f : entries)
+			size += f.length();
+		Arrays.sort(entries, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		for (File f : entries) {
+			if (size <= maxBytes) break;
+			long length = f.length();
+			if (f.delete()) {
+				size -= length;
+				count("evictions");
+			}
+		}
+		stats.setProperty("bytes", Long.toString(size));
+		stats.setProperty("entries", Integer.toString(dir.list(ENTRIES).length));
+		save();
+	}
+
+	private long get(String stat) {
+		return Long.parseLong(stats.getProperty(stat, "0"));
+	}
+
+	private void count(String stat) {
+		stats.setProperty(stat, Long.toString(get(stat) + 1));
+		save();
+	}
+
+	private void save() {
+		try {
+			FileOutputStream out = new FileOutputStream(new File(dir, STATS));
+			stats.store(out, "SpinS compilation cache statistics");
+			out.close();
+		} catch (IOException e) {
+			System.err.println("Could not write cache statistics: "+ e.getMessage());
+		}
+	}
+
+	public String toString() {
+		return "cache "+ dir +": "+ get("hits") +" hits, "+ get("misses") +
+				" misses, "+ get("evictions") +" evictions, "+ get("entries") +
+				" entries ("+ get("bytes") / 1024 +" of "+ maxBytes / 1024 +" KB)";
+	}
+}
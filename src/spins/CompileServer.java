@@ -0,0 +1,154 @@
+// Copyright 2010, University of Twente, Formal Methods and Tools group
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package spins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import spins.Compile.CompileExit;
+import spins.options.NumberOption;
+import spins.options.OptionParser;
+
+/**
+ * A compile server that keeps the VM (and its JIT-compiled code) warm across
+ * many compilations.
+ *
+ * It listens on a local port. A client sends one job per line: the working
+ * directory followed by the arguments of {@link Compile}, all separated by
+ * tabs. For every job the server answers with a single line:
+ *
+ *   OK <tab> path of the written file <tab> ms waiting <tab> ms compiling
+ *   ERROR <tab> exit status <tab> message
+ *
+ * Jobs from different connections are accepted concurrently, but executed
+ * one at a time by {@link Compile#run(String[], File)}.
+ *
+ * Like spins.sh does for Compile, start the server with a large stack
+ * (java -Xss64m spins.CompileServer): the parser and the walkers recurse
+ * deeply on large models. A job that still overflows the stack, or fails
+ * otherwise, is answered with an ERROR line.
+ */
+public class CompileServer {
+
+	public static final int DEFAULT_PORT = 7010;
+
+	private final ServerSocket socket;
+
+	private final ExecutorService clients = Executors.newCachedThreadPool();
+
+	public CompileServer(int port) throws IOException {
+		socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+	}
+
+	public void serve() throws IOException {
+		System.out.println("SpinS compile server listening on port "+ socket.getLocalPort());
+		while (true) {
+			final Socket client = socket.accept();
+			clients.execute(new Runnable() {
+				public void run() {
+					handle(client);
+				}
+			});
+		}
+	}
+
+	private void handle(Socket client) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+			PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.trim().isEmpty()) continue;
+				out.println(job(line));
+			}
+		} catch (IOException e) {
+			System.err.println("Lost connection to client: "+ e.getMessage());
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	static String job(String line) {
+		String[] split = line.split("\t");
+		File workDir = new File(split[0]);
+		String[] args = Arrays.copyOfRange(split, 1, split.length);
+		if (!workDir.isDirectory())
+			return "ERROR\t-1\tNot a directory: "+ workDir;
+		long start = System.currentTimeMillis();
+		long begin = start;
+		try {
+			synchronized (Compile.class) { // measure the time spent waiting
+				begin = System.currentTimeMillis();
+				File result = Compile.run(args, workDir);
+				long end = System.currentTimeMillis();
+				return "OK\t"+ (result == null ? "" : result.getPath()) +"\t"+
+						(begin - start) +"\t"+ (end - begin);
+			}
+		} catch (CompileExit e) {
+			return "ERROR\t"+ e.getStatus() +"\t"+ e.getMessage();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return "ERROR\t-1\t"+ e;
+		} catch (AssertionError e) {
+			e.printStackTrace();
+			return "ERROR\t-1\t"+ e.getMessage();
+		} catch (Throwable e) { // e.g. StackOverflowError: keep serving
+			e.printStackTrace();
+			return "ERROR\t-1\t"+ e;
+		}
+	}
+
+	public static void main(final String[] args) {
+		final String  shortd  =
+			"SpinS Compile Server - version " + Version.VERSION + " (" + Version.DATE + ")\n" +
+			"(C) University of Twente, Formal Methods and Tools group";
+		final String  longd   =
+			"SpinS Compile Server: compiles Promela models on request.\n" +
+			"Send a line with the working directory and the compiler arguments\n" +
+			"(separated by tabs) to the port for each compilation.\n" +
+			"Start it with a large stack, like spins.sh: java -Xss64m spins.CompileServer\n";
+
+		final OptionParser parser =
+			new OptionParser("java spins.CompileServer", shortd, longd, false);
+
+		final NumberOption port = new NumberOption('p',
+			"the local port to listen on", DEFAULT_PORT, 1, 65535);
+		parser.addOption(port);
+
+		try {
+			parser.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.exit(-1);
+		}
+
+		try {
+			new CompileServer(port.getValue()).serve();
+		} catch (IOException e) {
+			System.out.println("IOException in compile server: " + e.getMessage());
+			System.exit(-5);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+// Copyright 2010, University of Twente, Formal Methods and Tools group
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package spins.bench;
+
+import static spins.promela.compiler.ltsmin.LTSminPrinter.ICE_DM_NAME;
+import static spins.promela.compiler.ltsmin.LTSminPrinter.MDS_DM_NAME;
+import static spins.promela.compiler.ltsmin.LTSminPrinter.MES_DM_NAME;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import spins.Compile;
+import spins.Compile.CompileExit;
+import spins.Version;
+import spins.options.NumberOption;
+import spins.options.OptionParser;
+import spins.promela.compiler.Specification;
+import spins.promela.compiler.expression.Expression;
+import spins.promela.compiler.ltsmin.LTSminTreeWalker;
+import spins.promela.compiler.ltsmin.LTSminTreeWalker.Options;
+import spins.promela.compiler.ltsmin.matrix.DepMatrix;
+import spins.promela.compiler.ltsmin.matrix.DepMatrix.Backend;
+import spins.promela.compiler.ltsmin.model.GuardInfo;
+import spins.promela.compiler.ltsmin.model.LTSminModel;
+
+/**
+ * Compares the {@link DepMatrix} backends on the matrices of Promela models
+ * (e.g. those in tests/beem/all).
+ *
+ * The matrices are generated with the default backend, then copied to each
+ * backend. For every matrix and backend, the benchmark times (best of n
+ * runs, after a warm-up run) row/row intersection tests, row unions,
+ * cardinalities and row iteration.
+ *
+ * It is not part of the jar; build and run it with "ant bench".
+ */
+public class DepMatrixBenchmark {
+
+	private static final String[] OPS = { "intersect", "union", "card", "iterate" };
+
+	private static final int MAX_PAIR_ROWS = 2000;
+
+	private static int sink = 0; // prevents dead code elimination
+
+	private static DepMatrix copy(DepMatrix m, Backend backend) {
+		DepMatrix copy = new DepMatrix(m.getNrRows(), m.getNrCols(), backend);
+		for (int i = 0; i < m.getNrRows(); i++)
+			copy.orRow(i, m.getRow(i));
+		copy.lockRows();
+		return copy;
+	}
+
+	private static long run(DepMatrix m, int op) {
+		int rows = m.getNrRows();
+		long start = System.nanoTime();
+		int result = 0;
+		switch (op) {
+		case 0:
+			int n = Math.min(rows, MAX_PAIR_ROWS);
+			for (int i = 0; i < n; i++)
+				for (int j = i + 1; j < n; j++)
+					if (m.rowsDepenendent(i, j)) result++;
+			break;
+		case 1:
+			DepMatrix union = new DepMatrix(1, m.getNrCols(), m.getBackend());
+			for (int i = 0; i < rows; i++)
+				union.orRow(0, m.getRow(i));
+			result = union.getRow(0).getCardinality();
+			break;
+		case 2:
+			for (int i = 0; i < rows; i++)
+				result += m.getRow(i).getCardinality();
+			break;
+		case 3:
+			for (int i = 0; i < rows; i++)
+				for (int col : m.getRow(i))
+					result += col;
+			break;
+		}
+		sink += result;
+		return System.nanoTime() - start;
+	}
+
+	private static long best(DepMatrix m, int op, int runs) {
+		long best = run(m, op); // warm-up
+		for (int i = 0; i < runs; i++)
+			best = Math.min(best, run(m, op));
+		return best;
+	}
+
+	/**
+	 * Builds the LTSmin model of a Promela file as Compile does (with state
+	 * merging, without a never claim), without generating code.
+	 */
+	private static LTSminModel createModel(File file, Options opts)
+			throws IOException {
+		Specification spec = Compile.parse(file, opts);
+		if (spec == null)
+			throw new IOException("cannot parse "+ file);
+		spec.setNever(null);
+		LTSminTreeWalker walker = new LTSminTreeWalker(spec, false);
+		return walker.createLTSminModel(file.getName(), opts,
+		                                new HashMap<String, Expression>(), null);
+	}
+
+	private static Map<String, DepMatrix> matrices(LTSminModel model) {
+		Map<String, DepMatrix> ms = new LinkedHashMap<String, DepMatrix>();
+		ms.put("read", model.getDepMatrix().read);
+		ms.put("write", model.getDepMatrix().mayWrite);
+		ms.put("atomic", model.getAtomicDepMatrix().mayWrite);
+		ms.put("actions", model.getActionDepMatrix().mayWrite);
+		GuardInfo gi = model.getGuardInfo();
+		ms.put("guards", gi.getDepMatrix());
+		ms.put("coen", gi.getCoMatrix());
+		ms.put("ice", gi.getMatrix(ICE_DM_NAME));
+		ms.put("nes", gi.getNESMatrix());
+		ms.put("nds", gi.getNDSMatrix());
+		ms.put("mds", gi.getMatrix(MDS_DM_NAME));
+		ms.put("mes", gi.getMatrix(MES_DM_NAME));
+		ms.put("dna", gi.getDNAMatrix());
+		return ms;
+	}
+
+	public static void main(final String[] args) {
+		final String  shortd  =
+			"SpinS DepMatrix Benchmark - version " + Version.VERSION + " (" + Version.DATE + ")\n" +
+			"(C) University of Twente, Formal Methods and Tools group";
+		final String  longd   =
+			"Compares the dependency matrix backends on the matrices of the given models.\n";
+
+		final OptionParser parser =
+			new OptionParser("java spins.bench.DepMatrixBenchmark", shortd, longd, true);
+
+		final NumberOption runs = new NumberOption('n',
+			"number of timed runs per operation", 5, 1, 1000);
+		parser.addOption(runs);
+
+		try {
+			parser.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.exit(-1);
+		}
+		List<String> files = parser.getFiles();
+		if (files.isEmpty()) {
+			parser.printUsage();
+			System.exit(-1);
+		}
+
+		Backend[] backends = Backend.values();
+		long[][] total = new long[backends.length][OPS.length];
+		StringBuilder table = new StringBuilder();
+		table.append(String.format("%-28s %-8s %11s", "model", "matrix", "size"));
+		for (Backend b : backends)
+			for (String op : OPS)
+				table.append(String.format(" %9s", op.substring(0, 4) +"/"+ b.name().charAt(0)));
+		table.append("\n");
+
+		for (String f : files) {
+			File file = new File(f);
+			Options opts = new Options(false, false, false, true, false,
+			                           false, false, false);
+			DepMatrix.setDefaultBackend(Backend.SPARSE);
+			LTSminModel model;
+			try {
+				model = createModel(file, opts);
+			} catch (IOException e) {
+				System.err.println("Skipping "+ file +": "+ e);
+				continue;
+			} catch (CompileExit e) {
+				System.err.println("Skipping "+ file +": "+ e.getMessage());
+				continue;
+			} catch (RuntimeException e) {
+				System.err.println("Skipping "+ file +": "+ e);
+				continue;
+			}
+			for (Map.Entry<String, DepMatrix> e : matrices(model).entrySet()) {
+				DepMatrix org = e.getValue();
+				if (org == null) continue;
+				table.append(String.format("%-28s %-8s %5dx%-5d", file.getName(),
+				             e.getKey(), org.getNrRows(), org.getNrCols()));
+				for (int b = 0; b < backends.length; b++) {
+					DepMatrix m = copy(org, backends[b]);
+					for (int op = 0; op < OPS.length; op++) {
+						long t = best(m, op, runs.getValue());
+						total[b][op] += t;
+						table.append(String.format(" %9.3f", t / 1e6));
+					}
+				}
+				table.append("\n");
+			}
+		}
+		System.out.print(table);
+		System.out.println("\nTotal (ms):");
+		for (int b = 0; b < backends.length; b++) {
+			System.out.print(String.format("%-8s", backends[b]));
+			for (int op = 0; op < OPS.length; op++)
+				System.out.print(String.format(" %s %.1f", OPS[op], total[b][op] / 1e6));
+			System.out.println();
+		}
+		if (sink == 42) System.out.println();
+	}
+}
@@ -76,7 +76,7 @@ public class OptionParser {
                     if (c != '?') {
                         System.out.println("Option not recognized: " + arg +"\n");
                     }
-                    System.exit(-1);
+                    throw new IllegalArgumentException("Option not recognized: " + arg);
     			}
     			option.parseOption(arg.substring(2));
     		}
@@ -62,6 +62,23 @@ public class Preprocessor {
 	public static Stack<String> files = new Stack<String>();
 
 	public static DefineMapping define = new DefineMapping();
+
+	/**
+	 * Clears all preprocessor state, so that a new model can be parsed in
+	 * the same VM with the same outcome as in a fresh one.
+	 */
+	public static void reset() {
+		dirName = null;
+		fileName = null;
+		defs.clear();
+		defines = new HashMap<String, DefineMapping>();
+		level = 0;
+		preprocessing.clear();
+		current.clear();
+		ifs.clear();
+		files.clear();
+		define = new DefineMapping();
+	}
 	
 	public static String getDirName() {
 		return dirName;
@@ -32,6 +32,13 @@ public class OptionAction extends Action implements Iterable<Sequence> {
 	private boolean hasSuccessor = false;
 	static int number = 0;
 
+	/**
+	 * Restarts the numbering of loop labels.
+	 */
+	public static void resetLabels() {
+		number = 0;
+	}
+
 	public OptionAction(Token token, boolean loops) {
 		super(token);
 		this.loops = loops;
@@ -49,6 +49,17 @@ public class State {
 		private static synchronized int nextId() {
 			return id++;
 		}
+
+		private static synchronized void reset() {
+			id = 0;
+		}
+	}
+
+	/**
+	 * Restarts the numbering of newly created states.
+	 */
+	public static void resetIds() {
+		StateIdCounter.reset();
 	}
 
 	private boolean inAtomic;
@@ -40,6 +40,17 @@ public abstract class Transition implements ActionContainer {
 		private static synchronized int nextId() {
 			return TransitionIdCounter.id++;
 		}
+
+		private static synchronized void reset() {
+			TransitionIdCounter.id = 0;
+		}
+	}
+
+	/**
+	 * Restarts the numbering of newly created transitions.
+	 */
+	public static void resetIds() {
+		TransitionIdCounter.reset();
 	}
 
 	private State from, to;
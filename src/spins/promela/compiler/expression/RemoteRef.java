@@ -146,7 +146,7 @@ public class RemoteRef extends Expression {
 	}
 
 	Expression labelExpr = null;
-	public Expression getLabelExpression(LTSminModel model) {
+	public synchronized Expression getLabelExpression(LTSminModel model) {
 
         if (labelExpr != null)
             return labelExpr;
@@ -100,17 +100,18 @@ public class LTSminDMWalker {
 		}
 	}
 	
-	private static RWMatrix DUMMY_MATRIX = new RWMatrix(null, null, null);
 	private static Options DUMMY_OPTIONS = new Options(false, false, false, false, false, false, false, false);
-	private static Params sParams = new Params(null, null, DUMMY_MATRIX,
-	                                           0, DUMMY_OPTIONS);
+
+	/**
+	 * Marks the slots read by e in row num of dm. Thread safe, as long as
+	 * dm is not shared.
+	 */
 	public static void walkOneGuard(LTSminModel model, DepMatrix dm,
 									Expression e, int num, MarkAction mark) {
-	    sParams.model = model;
-	    sParams.depMatrix.read = dm;
-	    sParams.trans = num;
+	    Params params = new Params(model, null, new RWMatrix(dm, null, null),
+	                                num, DUMMY_OPTIONS);
 	    try {
-	    		walkExpression(sParams, e, mark);
+	    		walkExpression(params, e, mark);
 	    } catch (AssertionError ae) {
 	    		throw new AssertionError("Guard failed: "+ e +"\n"+ ae);
 	    }
@@ -576,16 +577,24 @@ public class LTSminDMWalker {
     static void DMIncMayMustWrite(Params params, LTSminSubVector sub) {
         if (!(sub instanceof LTSminSlot))
             throw new AssertionError("Variable is not a native type: "+ sub);
-        int offset = ((LTSminSlot)sub).getIndex();
+        LTSminSlot slot = (LTSminSlot)sub;
+        int offset = slot.getIndex();
         params.depMatrix.incMayWrite(params.trans, offset);
-        params.depMatrix.incMustWrite(params.trans, offset);
+        if (slot.isShared()) { // the other variables of the slot are copied
+            params.depMatrix.incRead(params.trans, offset);
+        } else {
+            params.depMatrix.incMustWrite(params.trans, offset);
+        }
     }
 
     static void DMIncMayWrite(Params params, LTSminSubVector sub) {
         if (!(sub instanceof LTSminSlot))
             throw new AssertionError("Variable is not a native type: "+ sub);
-        int offset = ((LTSminSlot)sub).getIndex();
+        LTSminSlot slot = (LTSminSlot)sub;
+        int offset = slot.getIndex();
         params.depMatrix.incMayWrite(params.trans, offset);
+        if (slot.isShared()) // the other variables of the slot are copied
+            params.depMatrix.incRead(params.trans, offset);
     }
 
 	static void DMIncRead(Params params, LTSminSubVector sub) {
@@ -10,7 +10,6 @@ import static spins.promela.compiler.ltsmin.util.LTSminUtil.decr;
 import static spins.promela.compiler.ltsmin.util.LTSminUtil.id;
 import static spins.promela.compiler.ltsmin.util.LTSminUtil.incr;
 import static spins.promela.compiler.ltsmin.util.SimplePredicate.depCheck;
-import static spins.promela.compiler.ltsmin.util.SimplePredicate.extract_conjunct_predicates;
 import static spins.promela.compiler.parser.PromelaConstants.ASSIGN;
 import static spins.promela.compiler.parser.PromelaConstants.CH_READ;
 import static spins.promela.compiler.parser.PromelaConstants.DECR;
@@ -19,8 +18,14 @@ import static spins.promela.compiler.parser.PromelaConstants.INCR;
 import static spins.promela.compiler.parser.PromelaConstants.LNOT;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import spins.promela.compiler.ProcInstance;
 import spins.promela.compiler.Proctype;
@@ -38,6 +43,8 @@ import spins.promela.compiler.expression.RunExpression;
 import spins.promela.compiler.expression.TimeoutExpression;
 import spins.promela.compiler.ltsmin.LTSminDMWalker.MarkAction;
 import spins.promela.compiler.ltsmin.LTSminTreeWalker.Options;
+import spins.promela.compiler.ltsmin.matrix.BoolMatrix;
+import spins.promela.compiler.ltsmin.matrix.DepIndex;
 import spins.promela.compiler.ltsmin.matrix.DepMatrix;
 import spins.promela.compiler.ltsmin.matrix.DepMatrix.DepRow;
 import spins.promela.compiler.ltsmin.matrix.LTSminGuard;
@@ -50,6 +57,8 @@ import spins.promela.compiler.ltsmin.model.LTSminTransition;
 import spins.promela.compiler.ltsmin.model.ResetProcessAction;
 import spins.promela.compiler.ltsmin.util.LTSminDebug;
 import spins.promela.compiler.ltsmin.util.LTSminProgress;
+import spins.promela.compiler.ltsmin.util.PredicateCache;
+import spins.promela.compiler.ltsmin.util.PredicateCache.Conjuncts;
 import spins.promela.compiler.ltsmin.util.SimplePredicate;
 import spins.promela.compiler.parser.ParseException;
 import spins.promela.compiler.parser.PromelaTokenManager;
@@ -63,7 +72,6 @@ import spins.promela.compiler.variable.VariableType;
  * A container for boolean state labels (part of which are guards), guard
  * matrices and state label matrix 
  * 
- * TODO: avoid allocation of dependency matrices in recurring tree searches
  * TODO: optimize case "missing" in nes search
  * TODO: RunExpr
  * 
@@ -86,17 +94,27 @@ public class LTSminGMWalker {
 	}
 
 	static LTSminProgress report;
-	
+
+	/**
+	 * Pool used to generate matrices in parallel (null if sequential).
+	 */
+	private static ForkJoinPool pool = null;
+
+	/**
+	 * Predicates of the guard leaves (read-only during generation).
+	 */
+	private static PredicateCache predicates = null;
+
 	/**
 	 * Adds all guards labels and generates the guards matrices for POR
 	 * @param model
 	 * @param debug
 	 */
-	static void generateGuardInfo(LTSminModel model, Options opts,
+	static void generateGuardInfo(final LTSminModel model, Options opts,
 	                              LTSminDebug debug) {
 		if(model.getGuardInfo()==null)
 			model.setGuardInfo(new GuardInfo(model));
-		GuardInfo guardInfo = model.getGuardInfo();
+		final GuardInfo guardInfo = model.getGuardInfo();
         report = new LTSminProgress(debug);
 
         if (opts.no_gm) {
@@ -112,194 +130,427 @@ public class LTSminGMWalker {
         report.resetTimer().startTimer();
         debug.say_indent++;
 
-        generateDepMatrices (model, guardInfo);
+        allocateMatrices (model, guardInfo);
+        predicates = new PredicateCache(model, guardInfo, debug);
+        ModelMatrixGenerator.debug = debug;
 
+        Step g2g = new Step(guardInfo.getMatrix(G2G),
+                            nLabels*nLabels/2, "Guard/guard dependencies") {
+            int generate() { return generateG2G (model, guardInfo); }
+        };
+        Step t2g = new Step(guardInfo.getMatrix(T2G),
+                            nTrans*nLabels, "Transition/guard writes") {
+            int generate() { return generateT2G (model, guardInfo); }
+        };
+        Step t2t = new Step(guardInfo.getMatrix(T2T),
+                            nTrans*nTrans, "Transition/transition writes") {
+            int generate() { return generateT2T (model, guardInfo); }
+        };
         // generate Maybe Coenabled matrix
-        report.setTotal(nLabels*nLabels/2);
-        int nmce = generateCoenMatrix (model, guardInfo);
-        report.overwriteTotals(nmce, "!MCE guards");
-
-        report.setTotal(nTrans*nTrans/2);
-        int mct = generateMCtrans (model, guardInfo);
-        report.overwriteTotals(mct, "!MCE transitions");
-
+        Step mce = new Step(guardInfo.getCoMatrix(),
+                            nLabels*nLabels/2, "!MCE guards") {
+            int generate() { return generateCoenMatrix (model, guardInfo); }
+        };
+        Step mct = new Step(guardInfo.getMatrix(MCT),
+                            nTrans*nTrans/2, "!MCE transitions") {
+            int generate() { return generateMCtrans (model, guardInfo); }
+        };
         // generate Maybe Coenabled matrix
-        report.setTotal(nLabels*nLabels);
-        int nice = generateICoenMatrix (model, guardInfo);
-        report.overwriteTotals(nice, "!ICE guards");
-
+        Step ice = new Step(guardInfo.getICoMatrix(),
+                            nLabels*nLabels, "!ICE guards") {
+            int generate() { return generateICoenMatrix (model, guardInfo); }
+        };
         // generate NES matrix
-        report.setTotal(nTrans*nLabels);
-        int nnes = generateNESMatrix (model, guardInfo);
-        report.overwriteTotals(nnes, "!NES guards");
-
-        report.setTotal(nTrans*nTrans);
-        int nnet = generateNEStrans (model, guardInfo);
-        report.overwriteTotals(nnet, "!NES transitions");
-
+        Step nes = new Step(guardInfo.getNESMatrix(),
+                            nTrans*nLabels, "!NES guards") {
+            int generate() { return generateNESMatrix (model, guardInfo); }
+        };
+        Step net = new Step(guardInfo.getMatrix(NET),
+                            nTrans*nTrans, "!NES transitions") {
+            int generate() { return generateNEStrans (model, guardInfo); }
+        };
         // generate NDS matrix
-        report.setTotal(nTrans*nLabels);
-        int nnds = generateNDSMatrix (model, guardInfo);
-        report.overwriteTotals(nnds, "!NDS guards");
-
+        Step nds = new Step(guardInfo.getNDSMatrix(),
+                            nTrans*nLabels, "!NDS guards") {
+            int generate() { return generateNDSMatrix (model, guardInfo); }
+        };
         // generate MDS matrix
-        report.setTotal(nTrans*nLabels);
-        int disables = generateMDSMatrix (model, guardInfo);
-        report.overwriteTotals(disables, "MDS guards");
-
+        Step mds = new Step(guardInfo.getMatrix(MDS_DM_NAME),
+                            nTrans*nLabels, "MDS guards") {
+            int generate() { return generateMDSMatrix (model, guardInfo); }
+        };
         // generate MES matrix
-        report.setTotal(nTrans*nLabels);
-        int enables = generateMESMatrix (model, guardInfo);
-        report.overwriteTotals(enables, "MES guards");
-
+        Step mes = new Step(guardInfo.getMatrix(MES_DM_NAME),
+                            nTrans*nLabels, "MES guards") {
+            int generate() { return generateMESMatrix (model, guardInfo); }
+        };
         // generate NDS transitions
-        ModelMatrixGenerator.debug = debug;
-        report.setTotal(nTrans*nTrans);
-        int nndt = generateNDStrans (model, guardInfo);
-        report.overwriteTotals(nndt, "!NDS transitions");
-        
+        Step ndt = new Step(guardInfo.getMatrix(NDT),
+                            nTrans*nTrans, "!NDS transitions") {
+            int generate() { return generateNDStrans (model, guardInfo); }
+        };
         // generate Do Not Accord Matrix
-        report.setTotal(nTrans*nTrans/2);
-        int ndna = generateDoNoAccord (model, guardInfo);
-        report.overwriteTotals(ndna, "!DNA transitions");
-
+        Step dna = new Step(guardInfo.getDNAMatrix(),
+                            nTrans*nTrans/2, "!DNA transitions") {
+            int generate() { return generateDoNoAccord (model, guardInfo); }
+        };
         // generate Commutes Matrix
-        report.setTotal(nTrans*nTrans/2);
-        int commuting = generateCommutes (model, guardInfo);
-        report.overwriteTotals(commuting, "Commuting actions");
-        
+        Step commutes = new Step(guardInfo.getCommutesMatrix(),
+                            nTrans*nTrans/2, "Commuting actions") {
+            int generate() { return generateCommutes (model, guardInfo); }
+        };
+
+        if (opts.threads <= 1) {
+            for (Step step : new Step[] {g2g, t2g, t2t, mce, mct, ice, nes,
+                                         net, nds, mds, mes, ndt, dna,
+                                         commutes}) {
+                report.setTotal(step.total);
+                step.run();
+                step.report();
+            }
+        } else {
+            // waves of steps that only depend on the steps in earlier waves
+            pool = new ForkJoinPool(opts.threads);
+            try {
+                lockRows(model.getDepMatrix(), model.getAtomicDepMatrix(),
+                         model.getActionDepMatrix());
+                guardInfo.getDepMatrix().lockRows();
+                guardInfo.getGuardMatrix(); // lazily built, not thread-safe
+                generateWave(g2g, t2g, t2t, mds, mes);
+                generateWave(mce, ice);
+                generateWave(mct, nes, nds);
+                generateWave(net, ndt);
+                generateWave(dna, commutes);
+            } finally {
+                pool.shutdown();
+                pool = null;
+            }
+        }
+        predicates = null;
+
 		debug.say_indent--;
 		debug.say("Generating guard dependency matrices done (%s sec)",
 		          report.stopTimer().sec()).say("");
 	}
 
+	/**
+	 * A step in the generation of the guard matrices.
+	 */
+	private static abstract class Step implements Runnable {
+	    final DepMatrix matrix;
+	    final int total;
+	    final String msg;
+	    int result;
+
+	    Step(DepMatrix matrix, int total, String msg) {
+	        this.matrix = matrix;
+	        this.total = total;
+	        this.msg = msg;
+	    }
+
+	    abstract int generate();
+
+	    public void run() {
+	        result = generate();
+	    }
+
+	    void report() {
+	        report.setTotal(total);
+	        report.overwriteTotals(result, msg);
+	    }
+	}
+
+	/**
+	 * Runs independent steps concurrently and reports on them in order.
+	 * Afterwards the generated matrices are locked for concurrent reading.
+	 */
+	private static void generateWave(Step... steps) {
+	    int total = 0;
+	    final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+	    for (Step step : steps) {
+	        total += step.total;
+	        tasks.add(ForkJoinTask.adapt(step));
+	    }
+	    report.setTotal(total);
+	    pool.invoke(new RecursiveAction() {
+	        private static final long serialVersionUID = 1L;
+	        protected void compute() {
+	            invokeAll(tasks);
+	        }
+	    });
+	    for (Step step : steps) {
+	        step.report();
+	        step.matrix.lockRows();
+	    }
+	}
+
+	private static void lockRows(RWMatrix... matrices) {
+	    for (RWMatrix m : matrices) {
+	        m.read.lockRows();
+	        m.mayWrite.lockRows();
+	        m.mustWrite.lockRows();
+	    }
+	}
+
+	/**
+	 * A buffer of matrix cells, confined to the thread that generates them.
+	 */
+	private static class Cells {
+	    private int[] cells = new int[32];
+	    private int size = 0;
+
+	    void add(int row, int col) {
+	        if (size + 2 > cells.length)
+	            cells = Arrays.copyOf(cells, cells.length << 1);
+	        cells[size++] = row;
+	        cells[size++] = col;
+	    }
+
+	    void apply(DepMatrix m) {
+	        for (int i = 0; i < size; i += 2)
+	            m.setDependent(cells[i], cells[i + 1]);
+	    }
+
+	    void clear() {
+	        size = 0;
+	    }
+	}
+
+	/**
+	 * Generates the cells set by one row iteration of a matrix generation.
+	 */
+	private interface RowGenerator {
+	    /**
+	     * @return the count that is reported for the row
+	     */
+	    int generate(int row, Cells cells);
+	}
+
+	/**
+	 * Generates a matrix row by row. In parallel mode, ranges of rows are
+	 * generated by fork/join tasks into separate buffers, which are applied
+	 * to the matrix in row order afterwards. Hence the matrix is set exactly
+	 * as in a sequential run.
+	 */
+	private static int generateRows(DepMatrix m, int rows, RowGenerator gen) {
+	    if (pool == null) {
+	        Cells cells = new Cells();
+	        int num = 0;
+	        for (int r = 0; r < rows; r++) {
+	            cells.clear();
+	            num += gen.generate(r, cells);
+	            cells.apply(m);
+	        }
+	        return num;
+	    }
+	    Cells[] buffers = new Cells[rows];
+	    int grain = Math.max(1, rows / (pool.getParallelism() * 16));
+	    RowTask task = new RowTask(gen, buffers, 0, rows, grain);
+	    int num = ForkJoinTask.inForkJoinPool() ? task.invoke() : pool.invoke(task);
+	    for (Cells cells : buffers) {
+	        cells.apply(m);
+	    }
+	    return num;
+	}
+
+	private static class RowTask extends RecursiveTask<Integer> {
+	    private static final long serialVersionUID = 1L;
+	    private final RowGenerator gen;
+	    private final Cells[] buffers;
+	    private final int from, to, grain;
+
+	    RowTask(RowGenerator gen, Cells[] buffers, int from, int to, int grain) {
+	        this.gen = gen;
+	        this.buffers = buffers;
+	        this.from = from;
+	        this.to = to;
+	        this.grain = grain;
+	    }
+
+	    protected Integer compute() {
+	        if (to - from <= grain) {
+	            int num = 0;
+	            for (int r = from; r < to; r++) {
+	                buffers[r] = new Cells();
+	                num += gen.generate(r, buffers[r]);
+	            }
+	            return num;
+	        }
+	        int mid = (from + to) >>> 1;
+	        RowTask left = new RowTask(gen, buffers, from, mid, grain);
+	        RowTask right = new RowTask(gen, buffers, mid, to, grain);
+	        left.fork();
+	        return right.compute() + left.join();
+	    }
+	}
+
 	static final String MCT = "MCT"; 
-    private static int generateMCtrans(LTSminModel model, GuardInfo guardInfo) {
-        DepMatrix coen = guardInfo.getCoMatrix();
+    static final String NDT = "NDT"; 
+    static final String NET = "NET"; 
+    static final String T2G = "T2G";
+    static final String G2G = "G2G"; // guard reads from guard
+    static final String T2T = "T2T"; // transitions excluding guards, including atomic (write dep)
+
+    /**
+     * Allocates (and registers) all matrices up front, so that steps can run
+     * in any order.
+     */
+    private static void allocateMatrices(LTSminModel model, GuardInfo guardInfo) {
         int nTrans = model.getTransitions().size();
-        DepMatrix mct = new DepMatrix(nTrans, nTrans);
-        guardInfo.setMatrix(MCT, mct);
+        int nLabels = guardInfo.getNumberOfLabels();
+        guardInfo.setMatrix(G2G, new DepMatrix(nLabels, nLabels));
+        guardInfo.setMatrix(T2G, new DepMatrix(nTrans, nLabels));
+        guardInfo.setMatrix(T2T, new DepMatrix(nTrans, nTrans));
+        guardInfo.setCoMatrix(new DepMatrix(nLabels, nLabels));
+        guardInfo.setMatrix(MCT, new DepMatrix(nTrans, nTrans));
+        guardInfo.setMatrix(ICE_DM_NAME, new DepMatrix(nLabels, nLabels), true);
+        guardInfo.setNESMatrix(new DepMatrix(nLabels, nTrans));
+        guardInfo.setMatrix(NET, new DepMatrix(nTrans, nTrans));
+        guardInfo.setNDSMatrix(new DepMatrix(nLabels, nTrans));
+        guardInfo.setMatrix(MDS_DM_NAME, new DepMatrix(nLabels, nTrans), true);
+        guardInfo.setMatrix(MES_DM_NAME, new DepMatrix(nLabels, nTrans), true);
+        guardInfo.setMatrix(NDT, new DepMatrix(nTrans, nTrans));
+        guardInfo.setDNAMatrix(new DepMatrix(nTrans, nTrans));
+        guardInfo.setCommutesMatrix(new DepMatrix(nTrans, nTrans));
+    }
+
+    /**
+     * MCT = T x CO x T', where T is the transition/guard incidence matrix
+     */
+    private static int generateMCtrans(LTSminModel model, final GuardInfo guardInfo) {
+        final int nTrans = model.getTransitions().size();
+        BoolMatrix t2g = BoolMatrix.of(guardInfo.getTransMatrix(),
+                                       guardInfo.getNumberOfLabels());
+        BoolMatrix t2co = BoolMatrix.multiply(t2g,
+                                BoolMatrix.of(guardInfo.getCoMatrix()), pool, null);
+        BoolMatrix product = BoolMatrix.multiply(t2co, t2g.transpose(), pool,
+                                                 new BoolMatrix.Progress() {
+            public void rowsDone(int rows) {
+                report.updateProgress(rows * nTrans / 2);
+            }
+        });
+        DepMatrix mct = guardInfo.getMatrix(MCT);
         int ce = 0;
         for (int t1 = 0; t1 < nTrans; t1++) {
             mct.setDependent(t1, t1);
-            for (int t2 = t1+1; t2 < nTrans; t2++) {
-guard_loop:     for (int g1 : guardInfo.getTransMatrix().get(t1)) { 
-                    for (int g2 : guardInfo.getTransMatrix().get(t2)) {  
-                        if (coen.isDependent(g1, g2)) {
-                            mct.setDependent(t1, t2);
-                            mct.setDependent(t2, t1);
-                            ce++;
-                            break guard_loop;
-                        }
-                    }
-                }
-                report.updateProgress();
+            for (int t2 = product.nextSetBit(t1, t1 + 1); t2 >= 0;
+                     t2 = product.nextSetBit(t1, t2 + 1)) {
+                mct.setDependent(t1, t2);
+                mct.setDependent(t2, t1);
+                ce++;
             }
         }
-        return report.getTotal() - ce;
+        return nTrans*nTrans/2 - ce;
     }
 
-    static final String NDT = "NDT"; 
-    private static int generateNDStrans(LTSminModel model, GuardInfo guardInfo) {
-        DepMatrix nds = guardInfo.getNDSMatrix();
+    /**
+     * NDT = NDS' x T', where T is the transition/guard incidence matrix
+     */
+    private static int generateNDStrans(LTSminModel model, final GuardInfo guardInfo) {
+        DepMatrix ndt = guardInfo.getMatrix(NDT);
         int nTrans = model.getTransitions().size();
-        DepMatrix ndt = new DepMatrix(nTrans, nTrans);
-        guardInfo.setMatrix(NDT, ndt);
-        int ndts = 0;
-        for (int t1 = 0; t1 < nTrans; t1++) {
-            for (int t2 = 0; t2 < nTrans; t2++) {
-guard_loop:     for (int g2 : guardInfo.getTransMatrix().get(t2)) { 
-                    if (nds.isDependent(g2, t1)) {
-                        ndt.setDependent(t1, t2);
-                        ndts++;
-                        break guard_loop;
-                    }
-                }
-                report.updateProgress();
-            }
-        }
-        return report.getTotal() - ndts;
+        int ndts = guardedBy(model, guardInfo, guardInfo.getNDSMatrix(), ndt);
+        return nTrans*nTrans - ndts;
     }
 
-    static final String NET = "NET"; 
-    private static int generateNEStrans(LTSminModel model, GuardInfo guardInfo) {
-        DepMatrix nes = guardInfo.getNESMatrix();
+    /**
+     * NET = NES' x T', where T is the transition/guard incidence matrix
+     */
+    private static int generateNEStrans(LTSminModel model, final GuardInfo guardInfo) {
+        DepMatrix net = guardInfo.getMatrix(NET);
         int nTrans = model.getTransitions().size();
-        DepMatrix net = new DepMatrix(nTrans, nTrans);
-        guardInfo.setMatrix(NET, net);
-        int nets = 0;
+        int nets = guardedBy(model, guardInfo, guardInfo.getNESMatrix(), net);
+        return nTrans*nTrans - nets;
+    }
+
+    /**
+     * Sets t2t[t1][t2] iff g2t[g][t1] for some guard g of t2.
+     * @return the number of cells set
+     */
+    private static int guardedBy(LTSminModel model, GuardInfo guardInfo,
+                                 DepMatrix g2t, DepMatrix t2t) {
+        final int nTrans = model.getTransitions().size();
+        BoolMatrix g2trans = BoolMatrix.of(guardInfo.getTransMatrix(),
+                                           guardInfo.getNumberOfLabels()).transpose();
+        BoolMatrix product = BoolMatrix.multiply(BoolMatrix.of(g2t).transpose(),
+                                                 g2trans, pool,
+                                                 new BoolMatrix.Progress() {
+            public void rowsDone(int rows) {
+                report.updateProgress(rows * nTrans);
+            }
+        });
+        int num = 0;
         for (int t1 = 0; t1 < nTrans; t1++) {
-            for (int t2 = 0; t2 < nTrans; t2++) {
-guard_loop:     for (int g2 : guardInfo.getTransMatrix().get(t2)) { 
-                    if (nes.isDependent(g2, t1)) {
-                        net.setDependent(t1, t2);
-                        nets++;
-                        break guard_loop;
-                    }
-                }
-                report.updateProgress();
+            for (int t2 = product.nextSetBit(t1, 0); t2 >= 0;
+                     t2 = product.nextSetBit(t1, t2 + 1)) {
+                t2t.setDependent(t1, t2);
+                num++;
             }
         }
-        return report.getTotal() - nets;
+        return num;
     }
 
-    static final String T2G = "T2G";
-    static final String G2G = "G2G"; // guard reads from guard
-    static final String T2T = "T2T"; // transitions excluding guards, including atomic (write dep)
-    private static void generateDepMatrices(LTSminModel model,
-                                            GuardInfo guardInfo) {
-        int nTrans = model.getTransitions().size();
-        int nLabels = model.getGuardInfo().getNumberOfLabels();
-        DepMatrix g2s = guardInfo.getDepMatrix();
-
-        DepMatrix g2g = new DepMatrix(nLabels, nLabels);
-        guardInfo.setMatrix(G2G, g2g);
-        report.setTotal(nLabels * nLabels / 2);
-        int num = 0;
-        for (int g1 = 0; g1 < nLabels; g1++) {
-            g2g.setDependent(g1, g1);
-            for (int g2 = g1 + 1; g2 < nLabels; g2++) {
-                if (g2s.rowsDepenendent(g1, g2)) {
-                    g2g.setDependent(g1, g2);
-                    g2g.setDependent(g2, g1);
+    private static int generateG2G(LTSminModel model, GuardInfo guardInfo) {
+        final int nLabels = guardInfo.getNumberOfLabels();
+        final DepMatrix g2s = guardInfo.getDepMatrix();
+        final DepIndex s2g = new DepIndex(g2s);
+        DepMatrix g2g = guardInfo.getMatrix(G2G);
+        return generateRows(g2g, nLabels, new RowGenerator() {
+            public int generate(int g1, Cells g2g) {
+                int num = 0;
+                g2g.add(g1, g1);
+                BitSet dependent = s2g.dependent(g2s.getRow(g1));
+                for (int g2 = dependent.nextSetBit(g1 + 1); g2 >= 0;
+                         g2 = dependent.nextSetBit(g2 + 1)) {
+                    g2g.add(g1, g2);
+                    g2g.add(g2, g1);
                     num++;
                 }
-                report.updateProgress();
+                report.updateProgress(nLabels - g1 - 1);
+                return num;
             }
-        }
-        report.overwriteTotals(num, "Guard/guard dependencies");
-
-        RWMatrix deps = model.getDepMatrix();
-        DepMatrix t2g = new DepMatrix(nTrans, nLabels);
-        guardInfo.setMatrix(T2G, t2g);
-        report.setTotal(nTrans * nLabels);
-        num = 0;
-        for (int t = 0; t < nTrans; t++) {
-            for (int g = 0; g < nLabels; g++) {
-                if (deps.getRow(t).mayWrites(g2s.getRow(g))) {
-                    t2g.setDependent(t, g);
+        });
+    }
+
+    private static int generateT2G(LTSminModel model, GuardInfo guardInfo) {
+        int nTrans = model.getTransitions().size();
+        final int nLabels = guardInfo.getNumberOfLabels();
+        final DepMatrix g2s = guardInfo.getDepMatrix();
+        final RWMatrix deps = model.getDepMatrix();
+        final DepIndex s2g = new DepIndex(g2s);
+        DepMatrix t2g = guardInfo.getMatrix(T2G);
+        return generateRows(t2g, nTrans, new RowGenerator() {
+            public int generate(int t, Cells t2g) {
+                int num = 0;
+                BitSet written = s2g.dependent(deps.getRow(t).mayWrite);
+                for (int g = written.nextSetBit(0); g >= 0;
+                         g = written.nextSetBit(g + 1)) {
+                    t2g.add(t, g);
                     num++;
                 }
-                report.updateProgress();
+                report.updateProgress(nLabels);
+                return num;
             }
-        }
-        report.overwriteTotals(num, "Transition/guard writes");
+        });
+    }
 
-        DepMatrix t2t = new DepMatrix(nTrans, nTrans);
-        guardInfo.setMatrix(T2T, t2t);
-        RWMatrix trans = model.getAtomicDepMatrix();
-        num = 0;
-        report.setTotal(nTrans * nTrans);
-        for (int t1 = 0; t1 < nTrans; t1++) {
-            RWDepRow t1Row = trans.getRow(t1);
-            for (int t2 = 0; t2 < nTrans; t2++) {
-                if (t1Row.mayWrites(trans.getRow(t2))) {
-                    t2t.setDependent(t1, t2);
+    private static int generateT2T(LTSminModel model, GuardInfo guardInfo) {
+        final int nTrans = model.getTransitions().size();
+        final RWMatrix trans = model.getAtomicDepMatrix();
+        final DepIndex s2t = new DepIndex(trans.read, trans.mayWrite);
+        DepMatrix t2t = guardInfo.getMatrix(T2T);
+        return generateRows(t2t, nTrans, new RowGenerator() {
+            public int generate(int t1, Cells t2t) {
+                int num = 0;
+                BitSet dependent = s2t.dependent(trans.getRow(t1).mayWrite);
+                for (int t2 = dependent.nextSetBit(0); t2 >= 0;
+                         t2 = dependent.nextSetBit(t2 + 1)) {
+                    t2t.add(t1, t2);
                     num++;
                 }
+                return num;
             }
-        }
-        report.overwriteTotals(num, "Transition/transition writes");
+        });
     }
     
 	/**************
@@ -311,81 +562,83 @@ guard_loop:     for (int g2 : guardInfo.getTransMatrix().get(t2)) {
      *
      * @return false of trans,guard not in nes, TRUE IF UNKNOWN
      */
-	private static int generateNDSMatrix(LTSminModel model, GuardInfo guardInfo) {
-        int nlabels = guardInfo.getNumberOfLabels();
-		DepMatrix nds = new DepMatrix(nlabels, model.getTransitions().size());
-		guardInfo.setNDSMatrix(nds);
-		DepMatrix coen = guardInfo.getCoMatrix();
-		int notNDS = 0;
-        DepMatrix t2g = model.getGuardInfo().getMatrix(T2G);
-		for (int g = 0; g <  nds.getNrRows(); g++) {
-            LTSminGuard guard = (LTSminGuard) guardInfo.get(g);
-
-            if (guard.getExpr() instanceof TimeoutExpression) {
-                for (LTSminTransition trans : model.getTransitions()) {
-                    if (trans.isTimeout()) { // guard only disabled by timeout trans
-                        nds.setDependent(g, trans.getGroup()); 
-                    } else {
-                        notNDS++;
-                    }
-                }
-                continue;
-            }
-            for (LTSminTransition trans : model.getTransitions()) {
-                report.updateProgress ();
-                if (!t2g.isDependent(trans.getGroup(), g)) {
-                    notNDS += 1;
-                    continue;
-                }
-
-                boolean ce = true;
-                for (int g1 : guardInfo.getTransMatrix().get(trans.getGroup())) {  
-                    if (!coen.isDependent(g, g1)) ce = false;
-                }
-                
-                if (ce && atomicNES(model, guardInfo, guard, trans, true)) {
-                    nds.setDependent(g, trans.getGroup());
-                } else {
-                    notNDS += 1;
-                }
-			}
-		}
-		return notNDS;
+	private static int generateNDSMatrix(final LTSminModel model,
+	                                     final GuardInfo guardInfo) {
+		DepMatrix nds = guardInfo.getNDSMatrix();
+		final DepMatrix coen = guardInfo.getCoMatrix();
+        final DepMatrix t2g = model.getGuardInfo().getMatrix(T2G);
+		return generateRows(nds, nds.getNrRows(), new RowGenerator() {
+		    public int generate(int g, Cells nds) {
+		        int notNDS = 0;
+	            LTSminGuard guard = (LTSminGuard) guardInfo.get(g);
+	
+	            if (guard.getExpr() instanceof TimeoutExpression) {
+	                for (LTSminTransition trans : model.getTransitions()) {
+	                    if (trans.isTimeout()) { // guard only disabled by timeout trans
+	                        nds.add(g, trans.getGroup()); 
+	                    } else {
+	                        notNDS++;
+	                    }
+	                }
+	                return notNDS;
+	            }
+	            for (LTSminTransition trans : model.getTransitions()) {
+	                report.updateProgress ();
+	                if (!t2g.isDependent(trans.getGroup(), g)) {
+	                    notNDS += 1;
+	                    continue;
+	                }
+	
+	                boolean ce = true;
+	                for (int g1 : guardInfo.getTransMatrix().get(trans.getGroup())) {  
+	                    if (!coen.isDependent(g, g1)) ce = false;
+	                }
+	                
+	                if (ce && atomicNES(model, guardInfo, guard, trans, true)) {
+	                    nds.add(g, trans.getGroup());
+	                } else {
+	                    notNDS += 1;
+	                }
+				}
+	            return notNDS;
+		    }
+		});
 	}
 
 	/**************
 	 * NES
 	 * ************/
 
-	private static int generateNESMatrix(LTSminModel model, GuardInfo guardInfo) {
-        int nlabels = guardInfo.getNumberOfLabels();
-		DepMatrix nes = new DepMatrix(nlabels, model.getTransitions().size());
-		guardInfo.setNESMatrix(nes);
-        DepMatrix icoen = guardInfo.getICoMatrix();
-		int notNES = 0;
-        DepMatrix t2g = model.getGuardInfo().getMatrix(T2G);
-		for (int g = 0; g <  nes.getNrRows(); g++) {
-            LTSminGuard guard = (LTSminGuard) guardInfo.get(g);
-			for (LTSminTransition trans : model.getTransitions()) {
-			    report.updateProgress ();
-			    if (!t2g.isDependent(trans.getGroup(), g)) {
-                    notNES += 1;
-			        continue;
-			    }
-
-		        boolean ice = true;
-		        for (int g1 : guardInfo.getTransMatrix().get(trans.getGroup())) {
-		            if (!icoen.isDependent(g, g1)) ice = false;
-		        }
-			    
-                if (ice && atomicNES(model, guardInfo, guard, trans, false)) {
-                    nes.setDependent(g, trans.getGroup());
-                } else {
-                    notNES += 1;
-                }
-			}
-		}
-		return notNES;
+	private static int generateNESMatrix(final LTSminModel model,
+	                                     final GuardInfo guardInfo) {
+		DepMatrix nes = guardInfo.getNESMatrix();
+        final DepMatrix icoen = guardInfo.getICoMatrix();
+        final DepMatrix t2g = model.getGuardInfo().getMatrix(T2G);
+		return generateRows(nes, nes.getNrRows(), new RowGenerator() {
+		    public int generate(int g, Cells nes) {
+		        int notNES = 0;
+	            LTSminGuard guard = (LTSminGuard) guardInfo.get(g);
+				for (LTSminTransition trans : model.getTransitions()) {
+				    report.updateProgress ();
+				    if (!t2g.isDependent(trans.getGroup(), g)) {
+	                    notNES += 1;
+				        continue;
+				    }
+	
+			        boolean ice = true;
+			        for (int g1 : guardInfo.getTransMatrix().get(trans.getGroup())) {
+			            if (!icoen.isDependent(g, g1)) ice = false;
+			        }
+				    
+	                if (ice && atomicNES(model, guardInfo, guard, trans, false)) {
+	                    nes.add(g, trans.getGroup());
+	                } else {
+	                    notNES += 1;
+	                }
+				}
+				return notNES;
+		    }
+		});
 	}
 
 
@@ -469,19 +722,14 @@ guard_loop:     for (int g2 : guardInfo.getTransMatrix().get(t2)) {
                        enables(model, t, ce.getExpr2(), invert);
             }
         } else {
-            List<SimplePredicate> sps = new ArrayList<SimplePredicate>();
-            boolean missed = extract_conjunct_predicates(model, sps, e, invert);
-            if (missed) {
+            Conjuncts c = predicates.get(e);
+            if (c.isMissed(invert)) {
                 RWMatrix deps = model.getDepMatrix();
-                DepMatrix temp = new DepMatrix(1, model.sv.size());
-                LTSminDMWalker.walkOneGuard(model, temp, e, 0, MarkAction.READ);
-                return deps.getRow(t.getGroup()).mayWrites(temp.getRow(0));
+                return deps.getRow(t.getGroup()).mayWrites(c.getReads());
             }
-            for (SimplePredicate sp : sps) {
-                if (invert)
-                    sp = sp.invert();
-
-                if (agrees(model, t, sp)) {
+            List<SimplePredicate> sps = c.getPredicates(invert);
+            for (int i = 0; i < sps.size(); i++) {
+                if (agrees(model, t, sps.get(i), c.getReads(i))) {
                     return true;
                 }
             }
@@ -490,15 +738,13 @@ guard_loop:     for (int g2 : guardInfo.getTransMatrix().get(t2)) {
 	}
 
     private static boolean agrees (LTSminModel model,
-                                   LTSminTransition t, SimplePredicate sp) {
-        DepMatrix testSet = new DepMatrix(1, model.sv.size());
+                                   LTSminTransition t, SimplePredicate sp,
+                                   DepRow reads) {
         RWMatrix a2s = model.getActionDepMatrix();
 
         for (Action a : t.getActions()) {
-            testSet.clear();
-            LTSminDMWalker.walkOneGuard(model, testSet, sp.e, 0, MarkAction.READ);
             RWDepRow writeSet = a2s.getRow(a.getIndex());
-            if (!writeSet.mayWrites(testSet.getRow(0)))
+            if (!writeSet.mayWrites(reads))
                 continue;
 
             boolean conflicts = sp.conflicts(model, a, false);
@@ -512,43 +758,45 @@ guard_loop:     for (int g2 : guardInfo.getTransMatrix().get(t2)) {
     /**
      * MUST DISABLE
      */
-    private static int generateMDSMatrix(LTSminModel model, GuardInfo guardInfo) {
-        int nlabels = guardInfo.getNumberOfLabels();
-        DepMatrix mds = new DepMatrix(nlabels, model.getTransitions().size());
-        guardInfo.setMatrix(MDS_DM_NAME, mds, true);
-        int disables = 0;
-        for (int g = 0; g <  mds.getNrRows(); g++) {
-            LTSminGuard guard = (LTSminGuard) guardInfo.get(g);
-            for (LTSminTransition trans : model.getTransitions()) {
-                report.updateProgress ();
-                if (disables(model, trans, guard.getExpr(), g, false)) {
-                    mds.setDependent(g, trans.getGroup());
-                    disables += 1;
+    private static int generateMDSMatrix(final LTSminModel model,
+                                         final GuardInfo guardInfo) {
+        DepMatrix mds = guardInfo.getMatrix(MDS_DM_NAME);
+        return generateRows(mds, mds.getNrRows(), new RowGenerator() {
+            public int generate(int g, Cells mds) {
+                int disables = 0;
+                LTSminGuard guard = (LTSminGuard) guardInfo.get(g);
+                for (LTSminTransition trans : model.getTransitions()) {
+                    report.updateProgress ();
+                    if (disables(model, trans, guard.getExpr(), g, false)) {
+                        mds.add(g, trans.getGroup());
+                        disables += 1;
+                    }
                 }
+                return disables;
             }
-        }
-        return disables;
+        });
     }
 
     /**
      * MUST ENABLE
      */
-    private static int generateMESMatrix(LTSminModel model, GuardInfo guardInfo) {
-        int nlabels = guardInfo.getNumberOfLabels();
-        DepMatrix mes = new DepMatrix(nlabels, model.getTransitions().size());
-        guardInfo.setMatrix(MES_DM_NAME, mes, true);
-        int disables = 0;
-        for (int g = 0; g <  mes.getNrRows(); g++) {
-            LTSminGuard guard = (LTSminGuard) guardInfo.get(g);
-            for (LTSminTransition trans : model.getTransitions()) {
-                report.updateProgress ();
-                if (disables(model, trans, guard.getExpr(), g, true)) {
-                    mes.setDependent(g, trans.getGroup());
-                    disables += 1;
+    private static int generateMESMatrix(final LTSminModel model,
+                                         final GuardInfo guardInfo) {
+        DepMatrix mes = guardInfo.getMatrix(MES_DM_NAME);
+        return generateRows(mes, mes.getNrRows(), new RowGenerator() {
+            public int generate(int g, Cells mes) {
+                int disables = 0;
+                LTSminGuard guard = (LTSminGuard) guardInfo.get(g);
+                for (LTSminTransition trans : model.getTransitions()) {
+                    report.updateProgress ();
+                    if (disables(model, trans, guard.getExpr(), g, true)) {
+                        mes.add(g, trans.getGroup());
+                        disables += 1;
+                    }
                 }
+                return disables;
             }
-        }
-        return disables;
+        });
     }
 
     /**
@@ -572,11 +820,11 @@ guard_loop:     for (int g2 : guardInfo.getTransMatrix().get(t2)) {
                        disables(model, t, ce.getExpr2(), g,invert);
             }
         } else {
-            List<SimplePredicate> sps = new ArrayList<SimplePredicate>();
-            extract_conjunct_predicates(model, sps, e, invert);
-            for (SimplePredicate sp : sps) {
-                if (invert) sp = sp.invert();
-                if (disables(model, t, g, sp)) return true;
+            Conjuncts c = predicates.get(e);
+            List<SimplePredicate> sps = c.getPredicates(invert);
+            for (int i = 0; i < sps.size(); i++) {
+                if (disables(model, t, g, sps.get(i), c.getReads(i)))
+                    return true;
             }
             return false;
         }
@@ -587,15 +835,12 @@ guard_loop:     for (int g2 : guardInfo.getTransMatrix().get(t2)) {
      */
     private static boolean disables (LTSminModel model,
                                    LTSminTransition t, int g,
-                                   SimplePredicate sp) {
-        DepMatrix testSet = new DepMatrix(1, model.sv.size());
+                                   SimplePredicate sp, DepRow reads) {
         RWMatrix a2s = model.getActionDepMatrix();
 
         for (Action a : t.getActions()) {
-            testSet.clear();
-            LTSminDMWalker.walkOneGuard(model, testSet, sp.e, 0, MarkAction.READ);
             RWDepRow writeSet = a2s.getRow(a.getIndex());
-            if (!writeSet.mayWrites(testSet.getRow(0)))
+            if (!writeSet.mayWrites(reads))
                 continue;
 
             boolean conflicts = sp.conflicts(model, a, false);
@@ -618,50 +863,54 @@ guard_loop:     for (int g2 : guardInfo.getTransMatrix().get(t2)) {
      *  v         v
      * s1 --t1--> s1'
      */
-    private static int generateDoNoAccord(LTSminModel model, GuardInfo guardInfo) {
-        int nTrans = model.getTransitions().size();
-        DepMatrix nda = new DepMatrix(nTrans, nTrans);
-        guardInfo.setDNAMatrix(nda);
-        int neverDNA = 0;
-        DepMatrix mct = guardInfo.getMatrix(MCT);
-        DepMatrix net = guardInfo.getMatrix(NET);
-        DepMatrix ndt = guardInfo.getMatrix(NDT);
-        DepMatrix t2t = model.getGuardInfo().getMatrix(T2T);
-        for (int t1 = 0; t1 < nTrans; t1++) {
-            nda.setDependent(t1, t1);
-            for (int t2 = t1+1; t2 < nTrans; t2++) {
-                if (transDNA(model, guardInfo, mct, net, ndt, t2t, t1, t2)) {
-                    nda.setDependent(t1, t2);
-                    nda.setDependent(t2, t1);
-                } else {
-                    neverDNA++;
+    private static int generateDoNoAccord(final LTSminModel model,
+                                          final GuardInfo guardInfo) {
+        final int nTrans = model.getTransitions().size();
+        DepMatrix nda = guardInfo.getDNAMatrix();
+        final DepMatrix mct = guardInfo.getMatrix(MCT);
+        final DepMatrix net = guardInfo.getMatrix(NET);
+        final DepMatrix ndt = guardInfo.getMatrix(NDT);
+        final DepMatrix t2t = model.getGuardInfo().getMatrix(T2T);
+        return generateRows(nda, nTrans, new RowGenerator() {
+            public int generate(int t1, Cells nda) {
+                int neverDNA = 0;
+                nda.add(t1, t1);
+                for (int t2 = t1+1; t2 < nTrans; t2++) {
+                    if (transDNA(model, guardInfo, mct, net, ndt, t2t, t1, t2)) {
+                        nda.add(t1, t2);
+                        nda.add(t2, t1);
+                    } else {
+                        neverDNA++;
+                    }
+                    report.updateProgress ();
                 }
-                report.updateProgress ();
+                return neverDNA;
             }
-        }
-        return neverDNA;
+        });
     }
 
-    private static int generateCommutes(LTSminModel model, GuardInfo guardInfo) {
-        int nTrans = model.getTransitions().size();
-        DepMatrix commutes = new DepMatrix(nTrans, nTrans);
-        guardInfo.setCommutesMatrix(commutes);
-        DepMatrix net = guardInfo.getMatrix(NET);
-        DepMatrix ndt = guardInfo.getMatrix(NDT);
-        DepMatrix t2t = model.getGuardInfo().getMatrix(T2T);
-        int commute = 0;
-        for (int t1 = 0; t1 < nTrans; t1++) {
-            for (int t2 = t1; t2 < nTrans; t2++) {
-                if (!transNotCommute(model, net, ndt, t2t, t1, t2)) {
-                    commutes.setDependent(t1, t2);
-                    commutes.setDependent(t2, t1);
-                } else {
-                    commute++;
+    private static int generateCommutes(final LTSminModel model,
+                                        GuardInfo guardInfo) {
+        final int nTrans = model.getTransitions().size();
+        DepMatrix commutes = guardInfo.getCommutesMatrix();
+        final DepMatrix net = guardInfo.getMatrix(NET);
+        final DepMatrix ndt = guardInfo.getMatrix(NDT);
+        final DepMatrix t2t = model.getGuardInfo().getMatrix(T2T);
+        return generateRows(commutes, nTrans, new RowGenerator() {
+            public int generate(int t1, Cells commutes) {
+                int commute = 0;
+                for (int t2 = t1; t2 < nTrans; t2++) {
+                    if (!transNotCommute(model, net, ndt, t2t, t1, t2)) {
+                        commutes.add(t1, t2);
+                        commutes.add(t2, t1);
+                    } else {
+                        commute++;
+                    }
+                    report.updateProgress ();
                 }
-                report.updateProgress ();
+                return commute;
             }
-        }
-        return commute;
+        });
     }
 
     private static boolean transNotCommute (LTSminModel model,
@@ -1039,89 +1288,126 @@ guard_loop:     for (int g2 : guardInfo.getTransMatrix().get(t2)) {
 	 * MCE
 	 * ************/
 
-	private static int generateCoenMatrix(LTSminModel model, GuardInfo guardInfo) {
-	    int nlabels = guardInfo.getNumberOfLabels();
-		DepMatrix co = new DepMatrix(nlabels, nlabels);
-		guardInfo.setCoMatrix(co);
-		int neverCoEnabled = 0;
-        DepMatrix g2g = model.getGuardInfo().getMatrix(G2G);
-		for (int g1 = 0; g1 < nlabels; g1++) {
-
-            co.setDependent(g1, g1);
-
-            Expression ge1 = guardInfo.get(g1).getExpr();
-            for (int g2 = g1+1; g2 < nlabels; g2++) {
+	private static int generateCoenMatrix(final LTSminModel model,
+	                                      final GuardInfo guardInfo) {
+	    final int nlabels = guardInfo.getNumberOfLabels();
+		DepMatrix co = guardInfo.getCoMatrix();
+        final DepMatrix g2g = model.getGuardInfo().getMatrix(G2G);
+        final BitSet timeouts = timeoutGuards(guardInfo);
+		return generateRows(co, nlabels, new RowGenerator() {
+		    public int generate(int g1, Cells co) {
+		        int neverCoEnabled = 0;
+	            co.add(g1, g1);
 	
-                report.updateProgress ();
-
-                if (isTimeout(model, co, g1, g2) || isTimeout(model, co, g2, g1)) {
-                    neverCoEnabled += co.isDependent(g1,  g2) ? 0 : 1;
-                    continue;   
-                }
-
-                if (!g2g.isDependent(g1, g2)) { // independent
-                    co.setDependent(g1, g2);
-                    co.setDependent(g2, g1);
-                    continue;
-                }
-                
-                Expression ge2 = guardInfo.get(g2).getExpr();
-                Boolean coenabled = MCE(model, ge1, ge2, false, false, null, null);
-                if (coenabled == null || coenabled) {
-                    co.setDependent(g1, g2);
-                    co.setDependent(g2, g1);
-                } else {
-                    neverCoEnabled++;
-                }
-			}
-		}
-		return neverCoEnabled;
+	            // only timeout guards and dependent guards need analysis
+	            BitSet candidates = new BitSet(nlabels);
+	            for (int g2 : g2g.getRow(g1))
+	                candidates.set(g2);
+	            if (timeouts.get(g1)) {
+	                candidates.set(g1 + 1, nlabels);
+	            } else {
+	                candidates.or(timeouts);
+	            }
+	            for (int g2 = candidates.nextClearBit(g1 + 1); g2 < nlabels;
+	                     g2 = candidates.nextClearBit(g2 + 1)) {
+	                co.add(g1, g2); // independent
+	                co.add(g2, g1);
+	            }
+
+	            Expression ge1 = guardInfo.get(g1).getExpr();
+	            for (int g2 = candidates.nextSetBit(g1 + 1); g2 >= 0;
+	                     g2 = candidates.nextSetBit(g2 + 1)) {
+	                Boolean timeout = isTimeout(model, g1, g2);
+	                if (timeout == null)
+	                    timeout = isTimeout(model, g2, g1);
+	                if (timeout != null) {
+	                    if (timeout) {
+	                        co.add(g1, g2);
+	                        co.add(g2, g1);
+	                    } else {
+	                        neverCoEnabled++;
+	                    }
+	                    continue;
+	                }
+
+	                Expression ge2 = guardInfo.get(g2).getExpr();
+	                Boolean coenabled = MCE(model, ge1, ge2, false, false, null, null);
+	                if (coenabled == null || coenabled) {
+	                    co.add(g1, g2);
+	                    co.add(g2, g1);
+	                } else {
+	                    neverCoEnabled++;
+	                }
+				}
+	            report.updateProgress (nlabels - g1 - 1);
+	            return neverCoEnabled;
+		    }
+		});
 	}
 
-    private static boolean isTimeout(LTSminModel model, DepMatrix m,
-                                     int g1, int g2) {
+    /**
+     * @return the labels of which the expression is a timeout
+     */
+    private static BitSet timeoutGuards(GuardInfo guardInfo) {
+        BitSet timeouts = new BitSet(guardInfo.getNumberOfLabels());
+        for (int g = 0; g < guardInfo.getNumberOfLabels(); g++) {
+            if (guardInfo.get(g).getExpr() instanceof TimeoutExpression)
+                timeouts.set(g);
+        }
+        return timeouts;
+    }
+
+    /**
+     * @return null if g1 is not a timeout guard, otherwise whether g2 is a
+     *         guard of a timeout transition (i.e. whether g1 and g2 are
+     *         maybe coenabled)
+     */
+    private static Boolean isTimeout(LTSminModel model, int g1, int g2) {
         GuardInfo guardInfo = model.getGuardInfo();
         LTSminGuard guard1 = guardInfo.get(g1);
         if (guard1.getExpr() instanceof TimeoutExpression) {
             for (int t2 : guardInfo.getGuardMatrix().get(g2)) {
                 if (model.getTransitions().get(t2).isTimeout()) {
-                    m.setDependent(g1, g2);
-                    m.setDependent(g2, g1);
-                    break;
+                    return true;
                 }
             }
-            return true;
+            return false;
         }
-        return false;
+        return null;
     }
 
-    private static int generateICoenMatrix(LTSminModel model, GuardInfo guardInfo) {
-        int nlabels = guardInfo.getNumberOfLabels();
-        int neverICoEnabled = 0;
-        DepMatrix ico = new DepMatrix(nlabels, nlabels);
-        guardInfo.setMatrix(ICE_DM_NAME, ico, true);
-        DepMatrix g2g = model.getGuardInfo().getMatrix(G2G);
-        for (int g1 = 0; g1 < nlabels; g1++) {
-            Expression ge1 = guardInfo.get(g1).getExpr();
-            for (int g2 = 0; g2 < nlabels; g2++) {
-                report.updateProgress ();
-                if (!g2g.isDependent(g1, g2)) { // independent
-                    ico.setDependent(g1, g2);
-                    ico.setDependent(g2, g1);
-                    continue;
+    private static int generateICoenMatrix(final LTSminModel model,
+                                           final GuardInfo guardInfo) {
+        final int nlabels = guardInfo.getNumberOfLabels();
+        DepMatrix ico = guardInfo.getICoMatrix();
+        final DepMatrix g2g = model.getGuardInfo().getMatrix(G2G);
+        return generateRows(ico, nlabels, new RowGenerator() {
+            public int generate(int g1, Cells ico) {
+                int neverICoEnabled = 0;
+                BitSet dependent = new BitSet(nlabels);
+                for (int g2 : g2g.getRow(g1))
+                    dependent.set(g2);
+                for (int g2 = dependent.nextClearBit(0); g2 < nlabels;
+                         g2 = dependent.nextClearBit(g2 + 1)) {
+                    ico.add(g1, g2); // independent
+                    ico.add(g2, g1);
                 }
-                Expression ge2 = guardInfo.get(g2).getExpr();
-                
-                Boolean icoenabled = MCE(model, ge1, ge2, true, false, null, null);
-                if (icoenabled == null || icoenabled) {
-                    ico.setDependent(g1, g2);
-                } else {
-                    neverICoEnabled = neverICoEnabled + 1;
+                Expression ge1 = guardInfo.get(g1).getExpr();
+                for (int g2 = dependent.nextSetBit(0); g2 >= 0;
+                         g2 = dependent.nextSetBit(g2 + 1)) {
+                    Expression ge2 = guardInfo.get(g2).getExpr();
+                    
+                    Boolean icoenabled = MCE(model, ge1, ge2, true, false, null, null);
+                    if (icoenabled == null || icoenabled) {
+                        ico.add(g1, g2);
+                    } else {
+                        neverICoEnabled = neverICoEnabled + 1;
+                    }
                 }
+                report.updateProgress (nlabels);
+                return neverICoEnabled;
             }
-        }
-
-        return neverICoEnabled;
+        });
 	}
 
     /**
@@ -1176,25 +1462,23 @@ guard_loop:     for (int g2 : guardInfo.getTransMatrix().get(t2)) {
             if (limit1 != null | limit2 != null) {
                 DepRow limit = limit1 != null ? limit1 : limit2;
                 Expression e = limit1 != null ? e1 : e2;
-                DepMatrix testSet = new DepMatrix(1, model.sv.size());
-                LTSminDMWalker.walkOneGuard(model, testSet, e, 0, MarkAction.READ);
-                if (!testSet.getRow(0).isDependent(limit)) return null;
+                if (!predicates.get(e).getReads().isDependent(limit)) return null;
             }
-            List<SimplePredicate> ga_sp = new ArrayList<SimplePredicate>();
-            boolean missed = extract_conjunct_predicates(model, ga_sp, e1, invert1);
+            Conjuncts ga = predicates.get(e1);
             if (invert1) {
-                if (missed)
+                if (ga.isMissed(invert1))
                     return true; // don't know
-                for(SimplePredicate a : ga_sp) {                   
-                    a = a.invert();
-                    if (mce(model, e2, a, invert2)) {
+                Conjuncts gb = predicates.get(e2);
+                for(SimplePredicate a : ga.getPredicates(invert1)) {
+                    if (mce(model, gb, a, invert2)) {
                         return true;
                     }
                 }
                 return false;
             } else {
-                for(SimplePredicate a : ga_sp) {
-                    if (!mce(model, e2, a, invert2)) {
+                Conjuncts gb = predicates.get(e2);
+                for(SimplePredicate a : ga.getPredicates(invert1)) {
+                    if (!mce(model, gb, a, invert2)) {
                         return false;
                     }
                 }
@@ -1215,22 +1499,19 @@ guard_loop:     for (int g2 : guardInfo.getTransMatrix().get(t2)) {
         return left || right;
     }
 
-    private static boolean mce(LTSminModel model, Expression e2,
+    private static boolean mce(LTSminModel model, Conjuncts gb,
                                SimplePredicate a, boolean invert) {
-        List<SimplePredicate> gb_sp = new ArrayList<SimplePredicate>();
-        boolean missed = extract_conjunct_predicates(model, gb_sp, e2, invert);
         if (invert) {
-            if (missed)
+            if (gb.isMissed(invert))
                 return true; // don't know
-            for(SimplePredicate b : gb_sp) {
-                b = b.invert();
+            for(SimplePredicate b : gb.getPredicates(invert)) {
                 if (!a.is_conflict_predicate(model, b)) {
                     return true;
                 }
             }
             return false;
         } else {
-            for(SimplePredicate b : gb_sp) {
+            for(SimplePredicate b : gb.getPredicates(invert)) {
                 if (a.is_conflict_predicate(model, b)) {
                     return false;
                 }
@@ -35,11 +35,24 @@ import static spins.promela.compiler.parser.PromelaConstants.SKIP_;
 import static spins.promela.compiler.parser.PromelaConstants.TRUE;
 
 import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
 
 import spins.promela.compiler.ProcInstance;
 import spins.promela.compiler.Proctype;
@@ -73,8 +86,10 @@ import spins.promela.compiler.expression.TranslatableExpression;
 import spins.promela.compiler.ltsmin.LTSminTreeWalker.Options;
 import spins.promela.compiler.ltsmin.matrix.DepMatrix;
 import spins.promela.compiler.ltsmin.matrix.DepMatrix.DepRow;
+import spins.promela.compiler.ltsmin.matrix.LTSminGuard;
 import spins.promela.compiler.ltsmin.matrix.LTSminGuardAnd;
 import spins.promela.compiler.ltsmin.matrix.LTSminGuardBase;
+import spins.promela.compiler.ltsmin.matrix.MatrixFile;
 import spins.promela.compiler.ltsmin.matrix.RWMatrix;
 import spins.promela.compiler.ltsmin.matrix.RWMatrix.RWDepRow;
 import spins.promela.compiler.ltsmin.model.GuardInfo;
@@ -83,12 +98,15 @@ import spins.promela.compiler.ltsmin.model.LTSminModel;
 import spins.promela.compiler.ltsmin.model.LTSminTransition;
 import spins.promela.compiler.ltsmin.model.ResetProcessAction;
 import spins.promela.compiler.ltsmin.state.LTSminPointer;
+import spins.promela.compiler.ltsmin.state.LTSminRange;
 import spins.promela.compiler.ltsmin.state.LTSminSlot;
 import spins.promela.compiler.ltsmin.state.LTSminSubVector;
 import spins.promela.compiler.ltsmin.state.LTSminTypeI;
 import spins.promela.compiler.ltsmin.state.LTSminTypeNative;
 import spins.promela.compiler.ltsmin.state.LTSminTypeStruct;
 import spins.promela.compiler.ltsmin.state.LTSminVariable;
+import spins.promela.compiler.ltsmin.util.LTSminDebug;
+import spins.promela.compiler.ltsmin.util.LTSminDebug.MessageKind;
 import spins.promela.compiler.ltsmin.util.LTSminRendezVousException;
 import spins.promela.compiler.ltsmin.util.LTSminUtil.Pair;
 import spins.promela.compiler.parser.ParseException;
@@ -153,20 +171,164 @@ public class LTSminPrinter {
 	static int n_active = 0;
 
 	public static String generateCode(LTSminModel model, Options opts) {
+		return generateCode(model, opts, null);
+	}
+
+	/**
+	 * @param file receives the matrices instead of the C code, or null. The
+	 *             caller writes it (the C code only maps it).
+	 */
+	public static String generateCode(LTSminModel model, Options opts,
+	                                  MatrixFile file) {
 		StringWriter w = new StringWriter(opts);
-		LTSminPrinter.generateModel(w, model);
+		generateCode(w, model, file);
 		return w.toString();
 	}
 
+	/**
+	 * Streams the C code to out, with a buffer of bounded size instead of
+	 * the whole program in memory.
+	 * @param file see {@link #generateCode(LTSminModel, Options, MatrixFile)}
+	 */
+	public static void generateCode(LTSminModel model, Options opts,
+	                                MatrixFile file, Writer out) throws IOException {
+		StringWriter w = new StringWriter(opts, out);
+		try {
+			generateCode(w, model, file);
+			w.flush();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Splits the C code over several files, so that the C compiler can build
+	 * them in parallel (see {@link Options#split}). For cFile name.c, writes:
+	 *
+	 *   name.h              the types, helpers and shared declarations
+	 *   name.c              the state, atomic successors, dispatchers and reach
+	 *   name.trans[k].c     the successors of part k of the transition groups
+	 *   name.guards.c       the state labels
+	 *   name.matrices.c     the dependency matrices and their accessors
+	 *   name.descriptors.c  the state and edge descriptors
+	 *   name.mk             a makefile that links them to the PINS library
+	 *
+	 * @param file see {@link #generateCode(LTSminModel, Options, MatrixFile)}
+	 * @return the makefile
+	 */
+	public static File generateSplitCode(final LTSminModel model, Options opts,
+	                                     MatrixFile file, File cFile)
+	                                                     throws IOException {
+		String base = cFile.getPath().substring(0, cFile.getPath().length() - 2);
+		final String header = new File(base +".h").getName();
+		final int parts = splitParts(model, opts);
+		final List<File> units = new ArrayList<File>();
+		extra_label = 0;
+		n_active = 0;
+		opts.matrixFile = file;
+		opts.decls = new StringWriter(opts);
+		try {
+			// the matrices unit collects the declarations for the header
+			units.add(cFile);
+			units.add(writeUnit(opts, new File(base +".matrices.c"), header, new Unit() {
+				void generate(StringWriter w) {
+					generateMatrixUnit(w, model);
+				}
+			}));
+			writeUnit(opts, new File(base +".h"), null, new Unit() {
+				void generate(StringWriter w) {
+					generateSplitHeader(w, model, parts);
+				}
+			});
+			writeUnit(opts, cFile, header, new Unit() {
+				void generate(StringWriter w) {
+					generateMainUnit(w, model);
+				}
+			});
+			for (int k = 0; k < parts; k++) {
+				final int part = k;
+				units.add(writeUnit(opts, new File(base +".trans"+ k +".c"), header, new Unit() {
+					void generate(StringWriter w) {
+						generateTransitionUnit(w, model, part);
+					}
+				}));
+			}
+			units.add(writeUnit(opts, new File(base +".guards.c"), header, new Unit() {
+				void generate(StringWriter w) {
+					generateGuardFunctions(w, model, w.options.no_gm);
+				}
+			}));
+			units.add(writeUnit(opts, new File(base +".descriptors.c"), header, new Unit() {
+				void generate(StringWriter w) {
+					generateStateDescriptors(w, model);
+					generateEdgeDescriptors(w, model);
+				}
+			}));
+		} finally {
+			opts.matrixFile = null;
+			opts.decls = null;
+		}
+		final String lib = new File(base).getName();
+		return writeUnit(opts, new File(base +".mk"), null, new Unit() {
+			void generate(StringWriter w) {
+				generateMakefile(w, lib, header, units);
+			}
+		});
+	}
+
+	private static abstract class Unit {
+		abstract void generate(StringWriter w);
+	}
+
+	/**
+	 * Streams a file of a split model, which includes header (if not null).
+	 * @return file
+	 */
+	private static File writeUnit(Options opts, File file, String header,
+	                              Unit unit) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file));
+		try {
+			StringWriter w = new StringWriter(opts, out);
+			if (header != null) {
+				w.appendLine("#include \"", header, "\"");
+				w.appendLine("");
+			}
+			unit.generate(w);
+			w.flush();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static void generateCode(StringWriter w, LTSminModel model,
+	                                 MatrixFile file) {
+		extra_label = 0;
+		n_active = 0;
+		w.options.matrixFile = file;
+		try {
+			LTSminPrinter.generateModel(w, model);
+		} finally {
+			w.options.matrixFile = null;
+		}
+	}
+
 	private static void generateModel(StringWriter w, LTSminModel model) {
 		if (w.options.no_gm) {
 			w.appendLine("#define SPINS_TEST_CODE").appendLine("");
 		}
+		if (w.options.matrixFile != null) {
+			w.appendLine("#define _GNU_SOURCE // dladdr").appendLine("");
+		}
 		
 		generateHeader(w, model);
 		generateNativeTypes(w);
 		generateTypeDef(w, model);
 		generateForwardDeclarations(w, model);
+		generateProfileCounters(w, model);
+		generateMetricsDeclarations(w, model);
 		generateStateCount(w, model);
 		generateInitialState(w, model);
 		generateLeavesAtomic(w, model);
@@ -174,16 +336,29 @@ public class LTSminPrinter {
 		generateGetNext(w, model);
 		generateGetAll(w, model);
 		generateTransitionCount(w, model);
+		if (w.options.packed) {
+			generatePackedMatrixFunctions(w);
+		}
 		generateEdgeMatrices(w, model);
         generateDepMatrix(w, model.getAtomicDepMatrix().read, DM_ACTIONS_NAME);
 		generateDepMatrix(w, model.getDepMatrix(), DM_NAME);
 		generateDMFunctions(w, model.getDepMatrix());
+		generateShortFunctions(w, model);
+		generateHashFunctions(w, model);
 		generateGuardMatrices(w, model, w.options.no_gm);
 	    generateOtherMatrices(w, model);
 		generateGuardFunctions(w, model, w.options.no_gm);
+		generateGuardMatrixFunctions(w, model, w.options.no_gm);
+		if (w.options.matrixFile != null) {
+			generateMatrixFileLoader(w);
+		}
 		generateStateDescriptors(w, model);
 		generateEdgeDescriptors(w, model);
+		generateMetricsFunctions(w, model);
+		generateReachCode(w, model);
+	}
 
+	private static void generateReachCode(StringWriter w, LTSminModel model) {
         // Used when control flow in atomics is a DAGs, i.e. when  there is no
         // need for duplicate detection
         generateReachNoTable(w, model);
@@ -195,11 +370,205 @@ public class LTSminPrinter {
 		}
 	}
 
+	/**
+	 * @return the number of parts of the transition groups of a split model
+	 */
+	private static int splitParts(LTSminModel model, Options opts) {
+		int n = model.getTransitions().size();
+		int chunk = splitChunk(model, opts);
+		return Math.max(1, (n + chunk - 1) / chunk);
+	}
+
+	/**
+	 * @return the number of transition groups per part of a split model
+	 */
+	private static int splitChunk(LTSminModel model, Options opts) {
+		int n = model.getTransitions().size();
+		return Math.max(1, (n + opts.split - 1) / opts.split);
+	}
+
+	private static void generateSplitHeader(StringWriter w, LTSminModel model,
+	                                        int parts) {
+		if (w.options.no_gm) {
+			w.appendLine("#define SPINS_TEST_CODE").appendLine("");
+		}
+		if (w.options.matrixFile != null) {
+			w.appendLine("#define _GNU_SOURCE // dladdr").appendLine("");
+		}
+		generateHeader(w, model);
+		generateNativeTypes(w);
+		generateTypeDef(w, model);
+		generateForwardDeclarations(w, model);
+		generateSplitDeclarations(w, model, parts);
+		if (w.options.packed) {
+			generatePackedMatrixFunctions(w);
+		}
+		w.append(w.options.decls.toString());
+		w.appendLine("");
+	}
+
+	/**
+	 * Declares the functions and data, which the units of a split model
+	 * share.
+	 */
+	private static void generateSplitDeclarations(StringWriter w,
+	                                              LTSminModel model, int parts) {
+		String cb = "void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy)";
+		w.appendLine("extern char leaves_atomic[", model.getTransitions().size(), "];");
+		w.appendLine("");
+		w.appendLine("typedef int (*spins_group_f) (void *model, int t, state_t *in, "+ cb +", void *arg);");
+		String ws = "";
+		if (w.options.write_sets) {
+			w.appendLine("typedef int (*spins_into_f) (void *model, int t, state_t *in, state_t *out, int *cpy, "+ cb +", void *arg);");
+			ws = ", state_t *out, int *cpy";
+		}
+		for (int k = 0; k < parts; k++) {
+			if (w.options.write_sets) {
+				w.appendLine("extern int spins_get_actions_into_", k, " (void *model, int t, state_t *in, state_t *out, int *cpy, "+ cb +", void *arg);");
+			} else {
+				w.appendLine("extern int spins_get_actions_", k, " (void *model, int t, state_t *in, "+ cb +", void *arg);");
+			}
+			w.appendLine("extern int spins_get_successor_", k, " (void *model, int t, state_t *in, "+ cb +", void *arg);");
+			w.appendLine("extern int spins_get_successor_all_", k, " (void *model, state_t *in, "+ cb +", void *arg, int *__guards"+ ws +");");
+		}
+		w.appendLine("");
+		w.appendLine("extern const int spins_get_state_size();");
+		w.appendLine("extern "+ C_STATE +" "+ INITIAL_VAR +"; // for the reset of processes");
+		w.appendLine("extern void spins_get_initial_state(state_t *to);");
+		w.appendLine("extern int spins_get_transition_groups();");
+		w.appendLine("extern int spins_get_guard_count();");
+		w.appendLine("extern int spins_get_label_count();");
+		w.appendLine("extern const int* spins_get_labels(int t);");
+		w.appendLine("extern const int*** spins_get_all_labels();");
+		w.appendLine("extern const char *spins_get_label_name(int g);");
+		w.appendLine("extern void spins_get_labels_many(void *model, state_t *in, int *label, bool guards_only);");
+		w.appendLine("extern void spins_get_labels_all(void *model, state_t *in, int *label);");
+		w.appendLine("extern void spins_get_guards_all(void *model, state_t *in, int *label);");
+		w.appendLine("extern const int spins_transition_has_edge(int t, int e, int v);");
+		w.appendLine("extern const int* spins_get_transition_read_dependencies(int t);");
+		w.appendLine("extern const int* spins_get_transition_may_write_dependencies(int t);");
+		w.appendLine("extern const int* spins_get_transition_write_dependencies(int t);");
+		w.appendLine("extern const int* spins_get_transition_must_write_dependencies(int t);");
+		w.appendLine("extern const int* spins_get_actions_read_dependencies(int t);");
+		w.appendLine("extern const int* spins_get_matrix(int m, int x);");
+		w.appendLine("extern const int spins_get_matrix_count();");
+		w.appendLine("extern const char *spins_get_matrix_name(int m);");
+		w.appendLine("extern const int spins_get_matrix_row_count(int m);");
+		w.appendLine("extern const int spins_get_matrix_col_count(int m);");
+		w.appendLine("extern const int* spins_get_label_matrix(int g);");
+		if (!w.options.no_gm) {
+			w.appendLine("extern const int* spins_get_trans_commutes_matrix(int t);");
+			w.appendLine("extern const int* spins_get_trans_do_not_accord_matrix(int t);");
+			w.appendLine("extern const int* spins_get_label_may_be_coenabled_matrix(int g);");
+			w.appendLine("extern const int* spins_get_label_nes_matrix(int g);");
+			w.appendLine("extern const int* spins_get_label_nds_matrix(int g);");
+		}
+		w.appendLine("extern const char* spins_get_state_variable_name(unsigned int var);");
+		w.appendLine("extern int spins_get_state_variable_type(int var);");
+		if (null != model.getRanges())
+			w.appendLine("extern void spins_get_state_variable_range(int var, int *min, int *max);");
+		if (model.sv.isPacked()) {
+			w.appendLine("extern int spins_get_state_field_count();");
+			w.appendLine("extern const char* spins_get_state_field_name(int field);");
+			w.appendLine("extern int spins_get_state_field_slot(int field);");
+			w.appendLine("extern int spins_get_state_field(state_t *state, int field);");
+			w.appendLine("extern void spins_set_state_field(state_t *state, int field, int value);");
+		}
+		w.appendLine("extern int spins_get_type_count();");
+		w.appendLine("extern const char* spins_get_type_name(int type);");
+		w.appendLine("extern int spins_get_type_value_count(int type);");
+		w.appendLine("extern const char* spins_get_type_value_name(int type, int value);");
+		w.appendLine("extern const char* spins_get_edge_name(int index);");
+		w.appendLine("extern int spins_get_edge_count();");
+		w.appendLine("extern int spins_get_edge_type(int edge);");
+		w.appendLine("");
+	}
+
+	private static void generateMainUnit(StringWriter w, LTSminModel model) {
+		generateStateCount(w, model);
+		generateInitialState(w, model);
+		generateLeavesAtomic(w, model);
+		generateGetActions(w, model);
+		generateGetNext(w, model);
+		generateGetAll(w, model);
+		generateTransitionCount(w, model);
+		generateReachCode(w, model);
+	}
+
+	private static void generateTransitionUnit(StringWriter w,
+	                                           LTSminModel model, int part) {
+		int n = model.getTransitions().size();
+		int from = Math.min(n, part * splitChunk(model, w.options));
+		int to = Math.min(n, from + splitChunk(model, w.options));
+		generateGetActions(w, model, actionsName(w) +"_"+ part, from, to);
+		generateGetNext(w, model, "spins_get_successor_"+ part, from, to);
+		if (n > 0) {
+			generateGetAllTransitions(w, model, "spins_get_successor_all_"+ part, from, to);
+		}
+	}
+
+	private static void generateMatrixUnit(StringWriter w, LTSminModel model) {
+		generateProfileCounters(w, model);
+		generateMetricsDeclarations(w, model);
+		generateMetricsFunctions(w, model);
+		generateEdgeMatrices(w, model);
+        generateDepMatrix(w, model.getAtomicDepMatrix().read, DM_ACTIONS_NAME);
+		generateDepMatrix(w, model.getDepMatrix(), DM_NAME);
+		generateDMFunctions(w, model.getDepMatrix());
+		generateShortFunctions(w, model);
+		generateHashFunctions(w, model);
+		generateGuardMatrices(w, model, w.options.no_gm);
+	    generateOtherMatrices(w, model);
+		generateGuardMatrixFunctions(w, model, w.options.no_gm);
+		if (w.options.matrixFile != null) {
+			generateMatrixFileLoader(w);
+		}
+	}
+
+	/**
+	 * Generates a makefile that builds the PINS library lib from the units
+	 * (make -j -f lib.mk, in the directory of the units).
+	 */
+	private static void generateMakefile(StringWriter w, String lib,
+	                                     String header, List<File> units) {
+		w.appendLine("# Builds the PINS library ", lib, " from the units of the split model:");
+		w.appendLine("#   make -j -f ", lib, ".mk");
+		w.appendLine("CC = gcc");
+		w.appendLine("SPINS_CFLAGS = -fPIC -O2 -ggdb $(CFLAGS) -Wno-unused-variable \\");
+		w.appendLine("    -Wno-parentheses-equality \\");
+		w.appendLine("    -Wno-initializer-overrides \\");
+		w.appendLine("    -Wno-unused-but-set-variable \\");
+		w.appendLine("    -Wno-unknown-warning-option");
+		w.appendPrefix().append("SPINS_OBJECTS =");
+		for (File unit : units) {
+			String name = unit.getName();
+			w.append(" \\").appendPostfix().appendPrefix();
+			w.append("    "+ name.substring(0, name.length() - 2) +".o");
+		}
+		w.appendPostfix();
+		w.appendLine("");
+		w.appendLine(lib, ": $(SPINS_OBJECTS)");
+		w.appendLine("\t$(CC) -shared $(SPINS_CFLAGS) -o $@ $(SPINS_OBJECTS)");
+		w.appendLine("");
+		w.appendLine("%.o: %.c ", header);
+		w.appendLine("\t$(CC) -c $(SPINS_CFLAGS) -o $@ $<");
+		w.appendLine("");
+		w.appendLine("clean:");
+		w.appendLine("\trm -f ", lib, " $(SPINS_OBJECTS)");
+		w.appendLine("");
+		w.appendLine(".PHONY: clean");
+	}
+
 	private static void generateOtherMatrices(StringWriter w, LTSminModel model) {
         GuardInfo gi = model.getGuardInfo();
 
         w.appendLine("");
-        w.appendLine("static const char *matrices[] = {");
+        if (w.options.decls == null) {
+            w.appendLine("static const char *matrices[] = {");
+        } else { // for reach2.c
+            w.appendLine("const char *matrices[] = {");
+            declare(w, "extern const char *matrices[];");
+        }
         w.indent();
         for (String matrix : gi.exports) {
             w.appendLine("\"",matrix,"\",");
@@ -237,7 +606,7 @@ public class LTSminPrinter {
             w.appendLine("case ",m,": {");
             w.indent();
             w.appendLine("assert(x < ", dm.getNrRows(), ", \"spins_get_matrix: invalid row index %d\", x);");
-            w.appendLine("return "+ matrix +"[x];");
+            w.appendLine("return "+ matrixRow(w, matrix, "x") +";");
             w.outdent();
             w.appendLine("}");
             ++m;
@@ -294,7 +663,12 @@ public class LTSminPrinter {
 				w.appendPostfix();
 			}
 			w.outdent();
-			w.appendLine("} "+ struct.getName() +";");
+			if (model.sv.isPacked() && struct.getName().equals(C_STATE)) {
+				// a whole number of slots
+				w.appendLine("} __attribute__ ((aligned (4))) "+ struct.getName() +";");
+			} else {
+				w.appendLine("} "+ struct.getName() +";");
+			}
 			w.appendLine("");
 		}
 		w.appendLine("typedef "+ C_STATE +" state_t;");
@@ -347,6 +721,8 @@ public class LTSminPrinter {
 		w.appendLine("int* label;");
 		w.appendLine("int  group;");
 		w.appendLine("int  dummy;"); // just to make sure we don't overwrite POR info
+		if (w.options.hash)
+			w.appendLine("uint64_t hash; // of the successor, by the hashed functions");
 		w.outdent();
 		w.appendLine("} transition_info_t;");
 		w.appendLine("");
@@ -365,6 +741,7 @@ public class LTSminPrinter {
 
 	private static void generateHashTable(StringWriter w, LTSminModel model) {
 		//if (!model.hasAtomic()) return;
+		w.appendLine("#define SPINS_STATE_LENGTH ", model.sv.size());
 		try {
 			w.appendLine(readTextFile(new LTSminPrinter().getClass(), "hashtable.c"));
 		} catch (IOException e) {
@@ -409,13 +786,17 @@ public class LTSminPrinter {
 	}
 
 	private static void generateForwardDeclarations(StringWriter w,LTSminModel model) {
+		// the other units of a split model cannot inline the reach functions
+		String inline = w.options.split > 0 ? "" : "inline ";
             if (model.hasAtomicCycles) {
-		w.appendLine("extern inline int spins_reach (void* model, transition_info_t *transition_info, state_t *in, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg, int pid, int *cpy);");
+		w.appendLine("extern "+ inline +"int spins_reach (void* model, transition_info_t *transition_info, state_t *in, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg, int pid, int *cpy);");
             }
-		w.appendLine("extern inline int spins_simple_reach (void *model, transition_info_t *transition_info, state_t *in, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg, int pid, int *cpy);");
+		w.appendLine("extern "+ inline +"int spins_simple_reach (void *model, transition_info_t *transition_info, state_t *in, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg, int pid, int *cpy);");
 		w.appendLine("extern int spins_get_successor_all (void *model, state_t *in, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg);");
 		w.appendLine("extern int spins_get_successor (void *model, int t, state_t *in, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg);");
 		w.appendLine("extern int spins_get_actions (void *model, int t, state_t *in, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg);");
+		if (w.options.write_sets)
+			w.appendLine("extern int spins_get_actions_into (void *model, int t, state_t *in, state_t *out, int *cpy, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg);");
         w.appendLine("extern void spins_atomic_cb (void *arg, transition_info_t *transition_info, state_t *out, int atomic, int *cpy);");
         w.appendLine("extern void spins_simple_atomic_cb (void *arg, transition_info_t *transition_info, state_t *out, int atomic, int *cpy);");
         w.appendLine("extern int *spins_get_guards (state_t *in);");
@@ -428,18 +809,22 @@ public class LTSminPrinter {
 		w.append(C_STATE +" "+ INITIAL_VAR +" = ("+ C_STATE +") {");
 		w.indent();
 		// Insert initial expression of each state element into initial state struct
+		int previous = -1; // slot of the previous element
 		for (LTSminSlot slot : model.sv) {
-			if (0 != slot.getIndex())
-				w.append(", // "+ (slot.getIndex()-1));
+			if (-1 != previous)
+				w.append(", // "+ previous);
+			previous = slot.getIndex();
 			w.appendPostfix().appendPrefix();
 			String name = slot.fullName();
 
             char[] chars = new char[Math.max(40 - name.length(),0)];
             Arrays.fill(chars, ' ');
             String prefix = new String(chars);
-            w.append(name.replace(".var", ".pad"));
-            w.append(prefix +" = 0,");
-            w.appendPostfix().appendPrefix();
+            if (!model.sv.isPacked()) {
+                w.append(name.replace(".var", ".pad"));
+                w.append(prefix +" = 0,");
+                w.appendPostfix().appendPrefix();
+            }
 
             w.append(name);
             w.append(prefix +" = ");
@@ -514,11 +899,9 @@ public class LTSminPrinter {
 		}
 		if (guards == 0) w.append("true");	w.append(") {").appendPostfix();
 		w.indent();
-		w.appendLine("memcpy(", OUT_VAR,", ", IN_VAR , ", sizeof(", C_STATE,"));");
-		if (!w.options.no_cpy)
-			w.appendLine("int cpy[" + model.sv.size() + "]; memcpy(cpy, cpy_src, sizeof(int[" + model.sv.size() + "]));");
-		else 
-			w.appendLine("int *cpy = NULL;");
+		if (!w.options.write_sets) {
+			generateCopy(w, model, "cpy_src");
+		}
 		w.appendPostfix();
 		
 		List<Action> actions = t.getActions();
@@ -543,13 +926,21 @@ public class LTSminPrinter {
 		    w.appendLine("spins_simple_atomic_cb(arg,&transition_info,"+OUT_VAR+","+ t.getEndId() +",cpy);");
 		}
 		w.appendLine("++states_emitted;");
+		if (w.options.write_sets) {
+			generateRestore(w, model, t, "cpy_src");
+		}
 		w.outdent();
 		w.appendLine("}");
 	}
 
 	private static void generateGetAll(StringWriter w, LTSminModel model) {
-		/* PROMELA specific per-proctype code */
 	    if (model.getTransitions().size() == 0) return;
+		generateGetSid(w, model);
+		generateGetAllTransitions(w, model);
+	}
+
+	private static void generateGetSid(StringWriter w, LTSminModel model) {
+		/* PROMELA specific per-proctype code */
 		for (ProcInstance p : model.getTransitions().get(0).getProcess().getSpecification()) {
 			w.appendLine("int spins_get_successor_sid"+ p.getID() +"( void* model, state_t *in, void *arg, state_t *"+ OUT_VAR +", int *cpy_src) {");
 			w.indent();
@@ -562,11 +953,17 @@ public class LTSminPrinter {
 			for (Variable local : model.getLocals()) {
 				w.appendLine("int "+ local.getName() +";");
 			}
-			w.appendLine();
-			List<LTSminTransition> transitions = model.getTransitions();
-			for(LTSminTransition t : transitions) {
+			List<LTSminTransition> transitions = new ArrayList<LTSminTransition>();
+			for(LTSminTransition t : model.getTransitions()) {
 				if (t.getProcess() != p) continue;
 				if (!t.isBeginAtomic()) continue;
+				transitions.add(t);
+			}
+			if (w.options.write_sets && !transitions.isEmpty()) {
+				generateCopy(w, model, "cpy_src");
+			}
+			w.appendLine();
+			for(LTSminTransition t : transitions) {
 				generateAnAtomicTransition(w, t, model);
 			}
 			w.appendLine("return states_emitted;");
@@ -586,18 +983,234 @@ public class LTSminPrinter {
 		w.appendLine("}");
 		w.appendLine();
 		/* END PROMELA specific code */
+	}
 
+	private static void generateGetAllTransitions(StringWriter w, LTSminModel model) {
 		w.appendLine("int spins_get_successor_all( void* model, state_t *in, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg) {");
 		w.indent();
 		w.appendLine("int states_emitted = 0;");
-		w.appendLine("int *__guards = spins_get_guards(in);");
+		String guards = "NULL"; // evaluated on demand
+		if (w.options.lazy_guards) {
+			int n = Math.max(1, model.getGuardInfo().getNumberOfGuards());
+			w.appendLine("int __guards[", n, "];");
+			w.appendLine("memset(__guards, -1, sizeof(__guards));");
+			guards = "__guards";
+		} else if (!w.options.pc_dispatch) {
+			w.appendLine("int *__guards = spins_get_guards(in);");
+			guards = "__guards";
+		}
+		String ws = "";
+		if (w.options.write_sets) {
+			w.appendLine(C_STATE," local_state;");
+			w.appendLine(C_STATE,"* ",OUT_VAR," = &local_state;");
+			generateCopy(w, model, null);
+			ws = ", "+ OUT_VAR +", cpy";
+		}
         generateAssertions(w, model);
 		w.appendLine();
-		List<LTSminTransition> transitions = model.getTransitions();
+		if (w.options.split > 0) {
+			for (int k = 0; k < splitParts(model, w.options); k++) {
+				w.appendLine("states_emitted += spins_get_successor_all_"+ k +"(model, in, callback, arg, "+ guards + ws +");");
+			}
+		} else {
+			generateTransitions(w, model, model.getTransitions());
+		}
+		w.appendLine("return states_emitted;");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine();
+	}
+
+	/**
+	 * Generates the successor_all function of part [from, to) of the groups
+	 * of a split model.
+	 */
+	private static void generateGetAllTransitions(StringWriter w, LTSminModel model,
+	                                              String name, int from, int to) {
+		String ws = w.options.write_sets ? ", state_t *"+ OUT_VAR +", int *cpy" : "";
+		w.appendLine("int "+ name +"( void* model, state_t *in, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg, int *__guards"+ ws +") {");
+		w.indent();
+		w.appendLine("int states_emitted = 0;");
+		generateTransitions(w, model, model.getTransitions().subList(from, to));
+		w.appendLine("return states_emitted;");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine();
+	}
+
+	private static void generateTransitions(StringWriter w, LTSminModel model,
+	                                        List<LTSminTransition> transitions) {
+		transitions = ordered(w, model, transitions);
+		if (w.options.pc_dispatch) {
+			generatePCDispatch(w, model, transitions);
+			return;
+		}
 		for(LTSminTransition t : transitions) {
 			generateATransition(w, t, model, true);
 		}
-		w.appendLine("return states_emitted;");
+	}
+
+	/**
+	 * Switches on the program counter of (one of) the processes of every
+	 * transition, so that only the guards of the transitions that leave the
+	 * current locations are evaluated (with spins_get_label, instead of all
+	 * guards with spins_get_guards). Transitions without a PC guard in the
+	 * transition-guard matrix are tried after the switches.
+	 */
+	private static void generatePCDispatch(StringWriter w, LTSminModel model,
+	                                       List<LTSminTransition> transitions) {
+		GuardInfo gm = model.getGuardInfo();
+		Map<String, Map<Integer, List<LTSminTransition>>> pcs =
+				new LinkedHashMap<String, Map<Integer, List<LTSminTransition>>>();
+		List<LTSminTransition> rest = new ArrayList<LTSminTransition>();
+		Map<LTSminTransition, Integer> skip = new HashMap<LTSminTransition, Integer>();
+		for (LTSminTransition t : transitions) {
+			String pc = null;
+			for (int g : gm.getTransMatrix().get(t.getGroup())) {
+				LTSminGuard guard = gm.getLabel(g);
+				if (!LTSminGuard.isPC(guard)) continue;
+				CompareExpression ce = (CompareExpression) guard.getExpr();
+				int location;
+				try {
+					location = ce.getExpr2().getConstantValue();
+				} catch (ParseException e) {
+					continue;
+				}
+				StringWriter id = new StringWriter(w.options);
+				generateExpression(id, ce.getExpr1(), in(model));
+				pc = id.toString();
+				Map<Integer, List<LTSminTransition>> locations = pcs.get(pc);
+				if (locations == null) {
+					locations = new TreeMap<Integer, List<LTSminTransition>>();
+					pcs.put(pc, locations);
+				}
+				List<LTSminTransition> ts = locations.get(location);
+				if (ts == null) {
+					ts = new ArrayList<LTSminTransition>();
+					locations.put(location, ts);
+				}
+				ts.add(t);
+				skip.put(t, g);
+				break;
+			}
+			if (pc == null) rest.add(t);
+		}
+
+		for (Map.Entry<String, Map<Integer, List<LTSminTransition>>> pc : pcs.entrySet()) {
+			w.appendLine("switch ("+ pc.getKey() +") {");
+			for (Map.Entry<Integer, List<LTSminTransition>> l : pc.getValue().entrySet()) {
+				w.appendLine("case ", l.getKey(), ":");
+				w.indent();
+				for (LTSminTransition t : l.getValue()) {
+					generatePCTransition(w, t, model, skip.get(t));
+				}
+				w.appendLine("break;");
+				w.outdent();
+			}
+			w.appendLine("}");
+		}
+		for (LTSminTransition t : rest) {
+			generatePCTransition(w, t, model, -1);
+		}
+	}
+
+	/**
+	 * Like generateATransition, but evaluates the guards (except skip) on
+	 * demand: first the other PC guards, then the rest. Guards without
+	 * bounds checks (see generateMaybe) are inlined.
+	 */
+	private static void generatePCTransition(StringWriter w, LTSminTransition t,
+	                                         LTSminModel model, int skip) {
+		GuardInfo gm = model.getGuardInfo();
+		List<Integer> list = new ArrayList<Integer>();
+		for (int g : gm.getTransMatrix().get(t.getGroup())) {
+			if (g != skip && LTSminGuard.isPC(gm.getLabel(g))) list.add(g);
+		}
+		for (int g : gm.getTransMatrix().get(t.getGroup())) {
+			if (g != skip && !LTSminGuard.isPC(gm.getLabel(g))) list.add(g);
+		}
+		w.appendLine("// "+ t.getName());
+		if (w.options.profile_counters)
+			w.appendLine("spins_prof_tried[", t.getGroup(), "]++;");
+		boolean unlikely = isUnlikely(w, t);
+		w.appendPrefix().append(unlikely ? "if (EXPECT_FALSE(" : "if (");
+		w.indent();
+		int guards = 0;
+		for (int g : list) {
+			if (guards++ > 0)
+				w.append(" &&").appendPostfix().appendPrefix();
+			generateGuardValue(w, model, g, false);
+		}
+		if (guards == 0) w.append("true");
+		w.outdent();
+		w.append(unlikely ? ")) {" : ") {").appendPostfix();
+		w.indent();
+		generateActionsCall(w, t, true);
+		w.outdent();
+		w.appendLine("}");
+	}
+
+	/**
+	 * Appends the condition that guard g of spins_get_successor_all holds:
+	 * eagerly from __guards, as filled by spins_get_guards, or on demand.
+	 * On demand, guards without bounds checks (see generateMaybe) are
+	 * inlined, the others are evaluated with spins_get_label. With lazy
+	 * guards, __guards memoizes the values (-1 is unknown), except those of
+	 * the PC guards, which are cheaper to compare again.
+	 */
+	private static void generateGuardValue(StringWriter w, LTSminModel model,
+	                                       int g, boolean eager) {
+		if (eager) {
+			w.append("__guards["+ g +"]");
+			if (w.options.total)
+				w.append(" == 1");
+			return;
+		}
+		LTSminGuard guard = model.getGuardInfo().getLabel(g);
+		StringWriter maybe = new StringWriter(w.options);
+		generateMaybe(maybe, guard.getExpr(), in(model));
+		boolean memoize = w.options.lazy_guards && !LTSminGuard.isPC(guard);
+		if (memoize)
+			w.append("(__guards["+ g +"] != -1 ? __guards["+ g +"] : (__guards["+ g +"] = ");
+		if (maybe.length() == 0) {
+			w.append("(");
+			if (w.options.metrics > 0)
+				w.append("spins_metrics()->guards["+ g +"]++, ");
+			generateExpression(w, guard.getExpr(), in(model));
+			w.append(")");
+			if (memoize)
+				w.append(" != 0");
+		} else {
+			w.append("spins_get_label(NULL, "+ g +", "+ IN_VAR +")");
+		}
+		if (memoize)
+			w.append("))");
+		if (w.options.total && maybe.length() != 0)
+			w.append(" == 1");
+	}
+
+	/**
+	 * Generates function name of a split model, which calls the function
+	 * name_k of the part k that contains group t.
+	 */
+	private static void generateDispatcher(StringWriter w, LTSminModel model,
+	                                       String name) {
+		int n = model.getTransitions().size();
+		boolean into = name.endsWith("_into");
+		w.appendLine("static const "+ (into ? "spins_into_f " : "spins_group_f ") + name +"_parts[] = {");
+		w.indent();
+		for (int k = 0; k < splitParts(model, w.options); k++) {
+			w.appendLine(name +"_"+ k +",");
+		}
+		w.outdent();
+		w.appendLine("};");
+		w.appendLine("");
+		String out = into ? "state_t *"+ OUT_VAR +", int *cpy, " : "";
+		w.appendLine("int "+ name +" (void* model, int t, state_t *in, "+ out +"void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg) {");
+		w.indent();
+		w.appendLine("if (t < 0 || t >= "+ n +") return 0;");
+		out = into ? OUT_VAR +", cpy, " : "";
+		w.appendLine("return "+ name +"_parts[t / "+ splitChunk(model, w.options) +"](model, t, in, "+ out +"callback, arg);");
 		w.outdent();
 		w.appendLine("}");
 		w.appendLine();
@@ -616,16 +1229,17 @@ public class LTSminPrinter {
     public static void generateATransition(StringWriter w, LTSminTransition t,
 										   LTSminModel model, boolean many) {
 		w.appendLine("// "+ t.getName());
-        w.appendPrefix().append("if (");
+		if (many && w.options.profile_counters)
+			w.appendLine("spins_prof_tried[", t.getGroup(), "]++;");
+        boolean unlikely = isUnlikely(w, t);
+        w.appendPrefix().append(unlikely ? "if (EXPECT_FALSE(" : "if (");
         w.indent();
 
         int guards = 0;
         if (many) {
 		    List<Integer> list = model.getGuardInfo().getTransMatrix().get(t.getGroup());
             for (int g : list) {
-                w.append("__guards["+ g +"]");
-                if (w.options.total)
-                	w.append(" == 1");
+                generateGuardValue(w, model, g, !w.options.lazy_guards);
                 if (list.size() != ++guards) {
                     w.append(" &&").appendPostfix().appendPrefix();
                 }
@@ -650,10 +1264,10 @@ public class LTSminPrinter {
 		if (guards == 0) w.append("true");
 		w.outdent();
 
-		w.append(") {").appendPostfix();
+		w.append(unlikely ? ")) {" : ") {").appendPostfix();
 		w.indent();
 		//generateActions(w, t, model);
-		w.appendLine("states_emitted += spins_get_actions (model, "+ t.getGroup() +", in, callback, arg);");
+		generateActionsCall(w, t, many);
 		w.outdent();
 		w.appendLine("}");
 	}
@@ -677,17 +1291,92 @@ public class LTSminPrinter {
 	    printEdgeLabels (w, model, t);
 		if (t.isAtomic()) {
 			w.appendLine("transition_info.group = "+ t.getGroup() +";");
-			if (t.getEnd().liesOnCycle()) {
-			    w.appendLine("int count = spins_reach (model, &transition_info, "+ OUT_VAR +", callback, arg, "+ t.getEndId() +", cpy);");
+			List<LTSminTransition> sequence = new ArrayList<LTSminTransition>();
+			if (w.options.fuse_atomic)
+				sequence = t.getAtomicSequence();
+			if (sequence.isEmpty()) {
+				w.appendLine("int count = "+ generateReachCall(t) +";");
 			} else {
-			    w.appendLine("int count = spins_simple_reach (model, &transition_info, "+ OUT_VAR +", callback, arg, "+ t.getEndId() +", cpy);");
+				w.appendLine("int count = 1;");
+				generateAtomicSequence(w, model, sequence, 0);
+			}
+			if (w.options.metrics > 0)
+				w.appendLine("spins_metrics()->emitted[", t.getGroup(), "] += count;");
+			if (w.options.write_sets) {
+				sequence.add(0, t);
+				generateRestore(w, model, sequence, null);
 			}
             w.appendLine("return count;");
+		} else if (w.options.write_sets) {
+			if (w.options.metrics > 0)
+				w.appendLine("spins_metrics()->emitted[", t.getGroup(), "]++;");
+			w.appendLine("callback(arg,&transition_info,"+ OUT_VAR +",cpy);");
+			int aindex = model.getEdgeIndex(ACTION_EDGE_LABEL_NAME);
+			w.appendLine("transition_labels["+ aindex +"] = "+ 0 +";");
+			generateRestore(w, model, t, null);
+			w.appendLine("return 1;");
 		} else {
 			w.appendLine("break;");
 		}
     }
 
+	/**
+	 * @return the call that searches the atomic sequence entered by t at run
+	 *         time, from the state in out
+	 */
+	private static String generateReachCall(LTSminTransition t) {
+		String reach = t.getEnd().liesOnCycle() ? "spins_reach" : "spins_simple_reach";
+		return reach +" (model, &transition_info, "+ OUT_VAR +", callback, arg, "+ t.getEndId() +", cpy)";
+	}
+
+	/**
+	 * Generates the steps of a deterministic atomic sequence (see
+	 * {@link LTSminTransition#getAtomicSequence()}) in place, on out. A
+	 * step whose guards do not hold blocks the sequence, and out is the
+	 * successor. After the last step, out is the successor if the sequence
+	 * left the atomic block, or the start of a search at run time.
+	 */
+	private static void generateAtomicSequence(StringWriter w, LTSminModel model,
+	                                           List<LTSminTransition> sequence,
+	                                           int step) {
+		String emit = "callback(arg,&transition_info,"+ OUT_VAR +",cpy);";
+		if (step == sequence.size()) {
+			LTSminTransition last = sequence.get(step - 1);
+			w.appendLine(last.isAtomic() ? "count = "+ generateReachCall(last) +";" : emit);
+			return;
+		}
+		LTSminTransition t = sequence.get(step);
+		w.appendLine("// "+ t.getName());
+		w.appendPrefix().append("if (");
+		int guards = 0;
+		for (LTSminGuardBase g : t.getGuards()) {
+			if (g != t.getGuards().get(0))
+				w.appendPostfix().appendPrefix().append("&&");
+			guards += generateGuard(w, model, g, out(model));
+		}
+		if (guards == 0) w.append("true");
+		w.append(") {").appendPostfix();
+		w.indent();
+		if (w.options.total)
+			w.appendLine("while (1) {").indent();
+		for (Action a : t.getActions()) {
+			try {
+				generateAction(w, a, model, t);
+			} catch (AssertionError ae) {
+				throw new AssertionError("Generating action failed for "+ a +"\n"+ ae);
+			}
+		}
+		if (w.options.total) {
+			w.appendLine("break;").outdent();
+			w.appendLine("}");
+		}
+		generateAtomicSequence(w, model, sequence, step + 1);
+		w.outdent();
+		w.appendLine("} else {");
+		w.appendLine("	"+ emit);
+		w.appendLine("}");
+	}
+
     private static boolean hasAssert(List<Action> as) {
         for(Action a : as) {
             if (a instanceof AssertAction) return true;
@@ -703,22 +1392,32 @@ public class LTSminPrinter {
     }
 
 	private static void generateGetNext(StringWriter w, LTSminModel model) {
-		w.appendLine("int spins_get_successor (void* model, int t, state_t *in, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg) {");
+		if (w.options.split > 0) {
+			generateDispatcher(w, model, "spins_get_successor");
+			return;
+		}
+		generateGetNext(w, model, "spins_get_successor", 0, model.getTransitions().size());
+	}
+
+	/**
+	 * @param name the name of the function, which handles groups [from, to)
+	 */
+	private static void generateGetNext(StringWriter w, LTSminModel model,
+	                                    String name, int from, int to) {
+		w.appendLine("int "+ name +" (void* model, int t, state_t *in, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg) {");
 		w.indent();
 		w.appendLine("int states_emitted = 0;");
         generateAssertions(w, model);
 		w.appendLine();
 		w.appendLine("switch(t) {");
-		List<LTSminTransition> transitions = model.getTransitions();
-		int trans = 0;
-		for(LTSminTransition t : transitions) {
-			w.appendLine("case ",trans,": {");
+		List<LTSminTransition> transitions = model.getTransitions().subList(from, to);
+		for(LTSminTransition t : ordered(w, model, transitions)) {
+			w.appendLine("case ",t.getGroup(),": {");
 			w.indent();
 			generateATransition(w, t, model, false);
 			w.appendLine("return states_emitted;");
 			w.outdent();
 			w.appendLine("}");
-			++trans;
 		}
 		w.appendLine("}");
 		w.appendLine("return 0;");
@@ -728,7 +1427,371 @@ public class LTSminPrinter {
 	}
 
     private static void generateGetActions(StringWriter w, LTSminModel model) {
-        w.appendLine("int spins_get_actions (void* model, int t, state_t *in, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg) {");
+		if (w.options.split > 0) {
+			generateDispatcher(w, model, actionsName(w));
+		} else {
+			generateGetActions(w, model, actionsName(w), 0, model.getTransitions().size());
+		}
+		if (w.options.write_sets) {
+			generateGetActionsCopy(w, model);
+		}
+    }
+
+	/**
+	 * @return the name of the function that applies the actions of a group
+	 */
+	private static String actionsName(StringWriter w) {
+		return w.options.write_sets ? "spins_get_actions_into" : "spins_get_actions";
+	}
+
+	/**
+	 * Generates the call from spins_get_successor_all (many), or from
+	 * spins_get_successor, to the actions of transition t.
+	 */
+	private static void generateActionsCall(StringWriter w, LTSminTransition t,
+	                                        boolean many) {
+		String call;
+		if (many && w.options.write_sets) {
+			call = "spins_get_actions_into (model, "+ t.getGroup() +", in, "+ OUT_VAR +", cpy, callback, arg);";
+		} else {
+			call = "spins_get_actions (model, "+ t.getGroup() +", in, callback, arg);";
+		}
+		if (w.options.metrics > 1) {
+			w.appendLine("uint64_t __cycles = spins_cycles();");
+		}
+		if (many && w.options.profile_counters) {
+			w.appendLine("int __n = "+ call);
+			w.appendLine("spins_prof_enabled[", t.getGroup(), "]++;");
+			w.appendLine("spins_prof_fired[", t.getGroup(), "] += __n;");
+			w.appendLine("states_emitted += __n;");
+		} else {
+			w.appendLine("states_emitted += "+ call);
+		}
+		if (w.options.metrics > 1) {
+			w.appendLine("spins_metrics()->cycles[", t.getGroup(), "] += spins_cycles() - __cycles;");
+		}
+	}
+
+	/**
+	 * @return the transitions in the order of the profile, if any
+	 */
+	private static List<LTSminTransition> ordered(StringWriter w, LTSminModel model,
+	                                              List<LTSminTransition> transitions) {
+		TransitionProfile profile = w.options.profile;
+		if (profile == null) return transitions;
+		if (profile.getGroups() != model.getTransitions().size())
+			throw new AssertionError("The profile has "+ profile.getGroups() +
+			        " transition groups, but the model has "+ model.getTransitions().size());
+		return profile.order(transitions);
+	}
+
+	/**
+	 * @return whether the guards of t almost never held in the profile
+	 */
+	private static boolean isUnlikely(StringWriter w, LTSminTransition t) {
+		return w.options.profile != null && w.options.profile.isUnlikely(t.getGroup());
+	}
+
+	/**
+	 * Generates the type and the access to the metrics of a thread. Each
+	 * thread has its own metrics, on first use linked in a global list, of
+	 * which spins_dump_metrics writes the sum. The code of the atomic
+	 * expansions and of the state database (reach.c, reach2.c and
+	 * hashtable.c) counts with macros, which are empty without
+	 * SPINS_METRICS.
+	 */
+	private static void generateMetricsDeclarations(StringWriter w, LTSminModel model) {
+		if (w.options.metrics == 0) return;
+		int nTrans = Math.max(1, model.getTransitions().size());
+		int nLabels = Math.max(1, model.getGuardInfo().getNumberOfLabels());
+		StringWriter d = w.options.decls == null ? w : w.options.decls;
+		d.appendLine("#include <time.h>");
+		d.appendLine("");
+		d.appendLine("#define SPINS_METRICS "+ w.options.metrics);
+		d.appendLine("");
+		d.appendLine("typedef struct spins_metrics_s {");
+		d.indent();
+		d.appendLine("struct spins_metrics_s *next;");
+		d.appendLine("uint64_t guards["+ nLabels +"];  // evaluations per label");
+		d.appendLine("uint64_t emitted["+ nTrans +"]; // successors per group");
+		d.appendLine("uint64_t cycles["+ nTrans +"];  // in the actions and callbacks per group");
+		d.appendLine("uint64_t guard_cycles;    // in spins_get_labels_many, guards");
+		d.appendLine("uint64_t label_cycles;    // in spins_get_labels_many, all labels");
+		d.appendLine("uint64_t reach;           // atomic expansions");
+		d.appendLine("uint64_t reach_states;    // states of the atomic expansions");
+		d.appendLine("uint64_t reach_depth;     // maximum depth of the atomic expansions");
+		d.appendLine("uint64_t db_hits;         // of the atomic state database");
+		d.appendLine("uint64_t db_misses;");
+		d.appendLine("uint64_t db_resizes;");
+		d.outdent();
+		d.appendLine("} spins_metrics_t;");
+		d.appendLine("");
+		d.appendLine("extern __thread spins_metrics_t *spins_metrics_local;");
+		d.appendLine("extern spins_metrics_t *spins_metrics_create ();");
+		d.appendLine("extern int spins_dump_metrics (const char *name);");
+		d.appendLine("");
+		d.appendLine("static inline spins_metrics_t *spins_metrics () {");
+		d.appendLine("    spins_metrics_t *m = spins_metrics_local;");
+		d.appendLine("    return EXPECT_TRUE(m != NULL) ? m : spins_metrics_create();");
+		d.appendLine("}");
+		d.appendLine("");
+		d.appendLine("static inline uint64_t spins_cycles () {");
+		d.appendLine("#if defined(__x86_64__) || defined(__i386__)");
+		d.appendLine("    return __builtin_ia32_rdtsc();");
+		d.appendLine("#else");
+		d.appendLine("    struct timespec ts;");
+		d.appendLine("    clock_gettime(CLOCK_MONOTONIC, &ts);");
+		d.appendLine("    return ts.tv_sec * 1000000000ULL + ts.tv_nsec;");
+		d.appendLine("#endif");
+		d.appendLine("}");
+		d.appendLine("");
+	}
+
+	/**
+	 * Generates spins_dump_metrics, which writes the sum of the metrics of
+	 * all threads to a file (JSON if its name ends in .json, otherwise CSV),
+	 * and calls it at exit.
+	 */
+	private static void generateMetricsFunctions(StringWriter w, LTSminModel model) {
+		if (w.options.metrics == 0) return;
+		int nTrans = model.getTransitions().size();
+		int nLabels = model.getGuardInfo().getNumberOfLabels();
+		String file = model.getName() +".spins.metrics.csv";
+		w.appendLine("__thread spins_metrics_t *spins_metrics_local = NULL;");
+		w.appendLine("static spins_metrics_t *spins_metrics_all = NULL;");
+		w.appendLine("static pthread_mutex_t spins_metrics_lock = PTHREAD_MUTEX_INITIALIZER;");
+		w.appendLine("");
+		w.appendLine("spins_metrics_t *spins_metrics_create () {");
+		w.indent();
+		w.appendLine("spins_metrics_t *m = calloc(1, sizeof(spins_metrics_t));");
+		w.appendLine("if (m == NULL) {");
+		w.appendLine("	printf(\"Out of memory for the metrics\\n\");");
+		w.appendLine("	exit(1);");
+		w.appendLine("}");
+		w.appendLine("pthread_mutex_lock(&spins_metrics_lock);");
+		w.appendLine("m->next = spins_metrics_all;");
+		w.appendLine("spins_metrics_all = m;");
+		w.appendLine("pthread_mutex_unlock(&spins_metrics_lock);");
+		w.appendLine("spins_metrics_local = m;");
+		w.appendLine("return m;");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("int spins_dump_metrics (const char *name) {");
+		w.indent();
+		w.appendLine("if (name == NULL) name = getenv(\"SPINS_METRICS\");");
+		w.appendLine("if (name == NULL) name = \""+ file +"\";");
+		w.appendLine("spins_metrics_t sum;");
+		w.appendLine("memset(&sum, 0, sizeof(sum));");
+		w.appendLine("int threads = 0;");
+		w.appendLine("pthread_mutex_lock(&spins_metrics_lock);");
+		w.appendLine("for (spins_metrics_t *m = spins_metrics_all; m != NULL; m = m->next, threads++) {");
+		w.indent();
+		w.appendLine("for (int i = 0; i < "+ nLabels +"; i++) sum.guards[i] += m->guards[i];");
+		w.appendLine("for (int i = 0; i < "+ nTrans +"; i++) sum.emitted[i] += m->emitted[i];");
+		w.appendLine("for (int i = 0; i < "+ nTrans +"; i++) sum.cycles[i] += m->cycles[i];");
+		w.appendLine("sum.guard_cycles += m->guard_cycles;");
+		w.appendLine("sum.label_cycles += m->label_cycles;");
+		w.appendLine("sum.reach += m->reach;");
+		w.appendLine("sum.reach_states += m->reach_states;");
+		w.appendLine("if (m->reach_depth > sum.reach_depth) sum.reach_depth = m->reach_depth;");
+		w.appendLine("sum.db_hits += m->db_hits;");
+		w.appendLine("sum.db_misses += m->db_misses;");
+		w.appendLine("sum.db_resizes += m->db_resizes;");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("pthread_mutex_unlock(&spins_metrics_lock);");
+		w.appendLine("FILE *f = fopen(name, \"w\");");
+		w.appendLine("if (f == NULL) {");
+		w.appendLine("	perror(name);");
+		w.appendLine("	return -1;");
+		w.appendLine("}");
+		w.appendLine("size_t len = strlen(name);");
+		w.appendLine("bool json = len >= 5 && strcmp(name + len - 5, \".json\") == 0;");
+		w.appendLine("#define SPINS_METRIC(key, value) \\");
+		w.appendLine("    fprintf(f, json ? \",\\n  \\\"%s\\\": %llu\" : \"%s,,,%llu\\n\", key, (unsigned long long) (value))");
+		w.appendLine("if (json) {");
+		w.appendLine("	fprintf(f, \"{\\n  \\\"model\\\": \\\""+ model.getName() +"\\\",\\n  \\\"threads\\\": %d\", threads);");
+		w.appendLine("	fprintf(f, \",\\n  \\\"guards\\\": {\");");
+		w.appendLine("	for (int i = 0; i < "+ nLabels +"; i++)");
+		w.appendLine("		fprintf(f, \"%s\\n    \\\"%s\\\": %llu\", i ? \",\" : \"\", spins_get_label_name(i), (unsigned long long) sum.guards[i]);");
+		w.appendLine("	fprintf(f, \"\\n  },\\n  \\\"successors\\\": [\");");
+		w.appendLine("	for (int i = 0; i < "+ nTrans +"; i++)");
+		w.appendLine("		fprintf(f, \"%s%llu\", i ? \", \" : \"\", (unsigned long long) sum.emitted[i]);");
+		w.appendLine("	fprintf(f, \"]\");");
+		w.appendLine("	if (SPINS_METRICS > 1) {");
+		w.appendLine("		fprintf(f, \",\\n  \\\"cycles\\\": [\");");
+		w.appendLine("		for (int i = 0; i < "+ nTrans +"; i++)");
+		w.appendLine("			fprintf(f, \"%s%llu\", i ? \", \" : \"\", (unsigned long long) sum.cycles[i]);");
+		w.appendLine("		fprintf(f, \"]\");");
+		w.appendLine("	}");
+		w.appendLine("} else {");
+		w.appendLine("	fprintf(f, \"metric,index,name,value\\n\");");
+		w.appendLine("	fprintf(f, \"threads,,,%d\\n\", threads);");
+		w.appendLine("	for (int i = 0; i < "+ nLabels +"; i++)");
+		w.appendLine("		fprintf(f, \"guards,%d,%s,%llu\\n\", i, spins_get_label_name(i), (unsigned long long) sum.guards[i]);");
+		w.appendLine("	for (int i = 0; i < "+ nTrans +"; i++)");
+		w.appendLine("		fprintf(f, \"successors,%d,,%llu\\n\", i, (unsigned long long) sum.emitted[i]);");
+		w.appendLine("	for (int i = 0; SPINS_METRICS > 1 && i < "+ nTrans +"; i++)");
+		w.appendLine("		fprintf(f, \"cycles,%d,,%llu\\n\", i, (unsigned long long) sum.cycles[i]);");
+		w.appendLine("}");
+		w.appendLine("if (SPINS_METRICS > 1) {");
+		w.appendLine("	SPINS_METRIC(\"guard_cycles\", sum.guard_cycles);");
+		w.appendLine("	SPINS_METRIC(\"label_cycles\", sum.label_cycles);");
+		w.appendLine("}");
+		w.appendLine("SPINS_METRIC(\"atomic_expansions\", sum.reach);");
+		w.appendLine("SPINS_METRIC(\"atomic_states\", sum.reach_states);");
+		w.appendLine("SPINS_METRIC(\"atomic_max_depth\", sum.reach_depth);");
+		w.appendLine("SPINS_METRIC(\"state_db_hits\", sum.db_hits);");
+		w.appendLine("SPINS_METRIC(\"state_db_misses\", sum.db_misses);");
+		w.appendLine("SPINS_METRIC(\"state_db_resizes\", sum.db_resizes);");
+		w.appendLine("#undef SPINS_METRIC");
+		w.appendLine("if (json) fprintf(f, \"\\n}\\n\");");
+		w.appendLine("fclose(f);");
+		w.appendLine("return 0;");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("__attribute__((destructor)) static void spins_metrics_exit () {");
+		w.appendLine("    if (spins_metrics_all != NULL) spins_dump_metrics(NULL);");
+		w.appendLine("}");
+		w.appendLine("");
+	}
+
+	/**
+	 * Generates the counters of the tried, enabled and fired transitions of
+	 * spins_get_successor_all, and a destructor that writes them as a
+	 * {@link TransitionProfile} to SPINS_PROFILE, or to model.spins.prof.
+	 * Writes are not synchronized, so the counts of a parallel exploration
+	 * are approximate, and only the last process writes its counts.
+	 */
+	private static void generateProfileCounters(StringWriter w, LTSminModel model) {
+		if (!w.options.profile_counters) return;
+		int nTrans = Math.max(1, model.getTransitions().size());
+		String storage = w.options.decls == null ? "static " : "";
+		for (String c : new String[] {"tried", "enabled", "fired"}) {
+			w.appendLine(storage +"uint64_t spins_prof_"+ c +"["+ nTrans +"];");
+			declare(w, "extern uint64_t spins_prof_"+ c +"["+ nTrans +"];");
+		}
+		w.appendLine("");
+		w.appendLine("__attribute__((destructor)) static void spins_prof_write () {");
+		w.indent();
+		w.appendLine("uint64_t total = 0;");
+		w.appendLine("for (int t = 0; t < "+ nTrans +"; t++) total += spins_prof_tried[t];");
+		w.appendLine("if (total == 0) return; // keep the profile of an earlier run");
+		w.appendLine("const char *name = getenv(\"SPINS_PROFILE\");");
+		w.appendLine("if (name == NULL) name = \""+ model.getName() + TransitionProfile.SUFFIX +"\";");
+		w.appendLine("FILE *f = fopen(name, \"w\");");
+		w.appendLine("if (f == NULL) {");
+		w.appendLine("	perror(name);");
+		w.appendLine("	return;");
+		w.appendLine("}");
+		w.appendLine("fprintf(f, \"# transition profile of "+ model.getName() +": group tried enabled successors\\n\");");
+		w.appendLine("fprintf(f, \"groups %d\\n\", "+ model.getTransitions().size() +");");
+		w.appendLine("for (int t = 0; t < "+ model.getTransitions().size() +"; t++)");
+		w.appendLine("	fprintf(f, \"%d %llu %llu %llu\\n\", t, (unsigned long long) spins_prof_tried[t],");
+		w.appendLine("	        (unsigned long long) spins_prof_enabled[t], (unsigned long long) spins_prof_fired[t]);");
+		w.appendLine("fclose(f);");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+	}
+
+	/**
+	 * Generates spins_get_actions for write sets: it copies the state once
+	 * and leaves the rest to spins_get_actions_into.
+	 */
+	private static void generateGetActionsCopy(StringWriter w, LTSminModel model) {
+		w.appendLine("int spins_get_actions (void* model, int t, state_t *in, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg) {");
+		w.indent();
+		w.appendLine(C_STATE," local_state;");
+		w.appendLine(C_STATE,"* ",OUT_VAR," = &local_state;");
+		generateCopy(w, model, null);
+		w.appendLine("return spins_get_actions_into (model, t, in, "+ OUT_VAR +", cpy, callback, arg);");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine();
+	}
+
+	/**
+	 * Copies in to out, and initializes cpy to cpy_src, or to all ones if
+	 * cpy_src is null.
+	 */
+	private static void generateCopy(StringWriter w, LTSminModel model,
+	                                 String cpy_src) {
+		w.appendLine("memcpy(", OUT_VAR,", ", IN_VAR , ", sizeof(", C_STATE,"));");
+		if (w.options.no_cpy) {
+			w.appendLine("int *cpy = NULL;");
+		} else if (cpy_src != null) {
+			w.appendLine("int cpy[" + model.sv.size() + "]; memcpy(cpy, "+ cpy_src +", sizeof(int[" + model.sv.size() + "]));");
+		} else {
+			w.appendPrefix();
+			w.append("int cpy[" + model.sv.size() + "] = { ");
+			for (int i = 0; i < model.sv.size(); i++) w.append("1,");
+			w.append(" };");
+			w.appendPostfix();
+		}
+	}
+
+	/**
+	 * Restores the slots that the actions of t may write: in out to those
+	 * of in, and in cpy to those of cpy_src, or to one if cpy_src is null.
+	 * The slots come from the action dependency matrix, in runs of
+	 * consecutive slots.
+	 */
+	private static void generateRestore(StringWriter w, LTSminModel model,
+	                                    LTSminTransition t, String cpy_src) {
+		generateRestore(w, model, Collections.singletonList(t), cpy_src);
+	}
+
+	/**
+	 * Restores the slots that the actions of any of the transitions may write.
+	 */
+	private static void generateRestore(StringWriter w, LTSminModel model,
+	                                    List<LTSminTransition> ts, String cpy_src) {
+		DepMatrix mayWrite = model.getActionDepMatrix().mayWrite;
+		boolean[] written = new boolean[model.sv.size() + 1];
+		for (LTSminTransition t : ts) {
+			for (Action a : t.getActions()) {
+				for (int slot : mayWrite.getRow(a.getIndex()))
+					written[slot] = true;
+			}
+		}
+		for (int from = 0; from < model.sv.size(); from++) {
+			if (!written[from]) continue;
+			int to = from;
+			while (written[to]) to++;
+			if (to - from == 1) {
+				w.appendLine("((int *)", OUT_VAR, ")[", from, "] = ((int *)", IN_VAR, ")[", from, "];");
+			} else {
+				w.appendLine("memcpy((int *)", OUT_VAR, " + ", from, ", (int *)", IN_VAR, " + ", from, ", sizeof(int[", to - from, "]));");
+			}
+			if (!w.options.no_cpy) {
+				if (cpy_src == null && to - from > 4) {
+					w.appendLine("for (int __i = ", from, "; __i < ", to, "; __i++) cpy[__i] = 1;");
+				} else if (cpy_src == null) {
+					for (int i = from; i < to; i++)
+						w.appendLine("cpy[", i, "] = 1;");
+				} else if (to - from == 1) {
+					w.appendLine("cpy[", from, "] = ", cpy_src, "[", from, "];");
+				} else {
+					w.appendLine("memcpy(cpy + ", from, ", ", cpy_src, " + ", from, ", sizeof(int[", to - from, "]));");
+				}
+			}
+			from = to;
+		}
+	}
+
+	/**
+	 * @param name the name of the function, which handles groups [from, to)
+	 */
+    private static void generateGetActions(StringWriter w, LTSminModel model,
+                                           String name, int from, int to) {
+        if (w.options.write_sets) {
+            w.appendLine("int "+ name +" (void* model, int t, state_t *in, state_t *restrict "+ OUT_VAR +", int *restrict cpy, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg) {");
+        } else {
+            w.appendLine("int "+ name +" (void* model, int t, state_t *in, void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy), void *arg) {");
+        }
         w.indent();
         String edge_array = "";
         for (int i = 0; i < model.getEdges().size(); i++)
@@ -740,18 +1803,10 @@ public class LTSminPrinter {
         w.appendLine("transition_info.group = t;");
         w.appendLine("int minus_one = -1;");
         w.appendLine("int *atomic = &minus_one;");
-        w.appendLine(C_STATE," local_state;");
-        w.appendLine(C_STATE,"* ",OUT_VAR," = &local_state;");
-        w.appendLine("memcpy(", OUT_VAR,", ", IN_VAR , ", sizeof(", C_STATE,"));");
-        
-        if (!w.options.no_cpy) {
-	        w.appendPrefix();
-	        w.append("int cpy[" + model.sv.size() + "] = { ");      
-	        for (int i = 0; i < model.sv.size(); i++) w.append("1,");       
-	        w.append(" };");
-	        w.appendPostfix();
-        } else {
-			w.appendLine("int *cpy = NULL;");
+        if (!w.options.write_sets) {
+            w.appendLine(C_STATE," local_state;");
+            w.appendLine(C_STATE,"* ",OUT_VAR," = &local_state;");
+            generateCopy(w, model, null);
         }
         
         for (Variable local : model.getLocals()) {
@@ -760,19 +1815,26 @@ public class LTSminPrinter {
         generateAssertions(w, model);
         w.appendLine();
         w.appendLine("switch(t) {");
-        List<LTSminTransition> transitions = model.getTransitions();
-        int trans = 0;
-        for(LTSminTransition t : transitions) {
-            w.appendLine("case ",trans,": {");
+        List<LTSminTransition> transitions = model.getTransitions().subList(from, to);
+        for(LTSminTransition t : ordered(w, model, transitions)) {
+            w.appendLine("case ",t.getGroup(),": {");
             w.indent();
             w.appendLine("// "+ t.getName());
             generateActions (w, t, model);
             w.outdent();
             w.appendLine("}");
-            ++trans;
         }
         w.appendLine("}");
+        if (w.options.write_sets) {
+            w.appendLine("return 0;");
+            w.outdent();
+            w.appendLine("}");
+            w.appendLine();
+            return;
+        }
 
+		if (w.options.metrics > 0)
+			w.appendLine("spins_metrics()->emitted[t]++;");
 		w.appendLine("callback(arg,&transition_info,"+ OUT_VAR +",cpy);");
 	    int aindex = model.getEdgeIndex(ACTION_EDGE_LABEL_NAME);
 	    w.appendLine("transition_labels["+ aindex +"] = "+ 0 +";");
@@ -1206,6 +2268,14 @@ public class LTSminPrinter {
 		String var = print(id, out(model));
     	
         if (!var.endsWith(".var")) throw new AssertionError(var +" does not end with '.var'");
+        if (model.sv.isPacked()) { // the variable may share its slot
+            w.appendPrefix();
+            w.append("cpy[((char *)&");
+            w.append(var.substring(0, var.length() - 4));
+            w.append(" - (char *)"+OUT_VAR+") / 4] = 0;");
+            w.appendPostfix();
+            return;
+        }
         String pad = var.substring(0, var.length() - 4) +".pad";
 
         w.appendPrefix();
@@ -1216,19 +2286,24 @@ public class LTSminPrinter {
     }
 
 
-	static StringWriter w2 = new StringWriter();
 	public static String generateExpression(LTSminModel model, Expression e) {
-		w2.clear();
+		StringWriter w2 = new StringWriter();
 		generateExpression(w2, e, out(model));
 		return w2.toString();
 	}
 
 	public static class ExprPrinter {
 		LTSminPointer start;
+		Options options = null; // of the writer that prints e, or null
 		public ExprPrinter(LTSminPointer start) {
 			this.start = start;
 		}
 
+		ExprPrinter(LTSminPointer start, Options options) {
+			this.start = start;
+			this.options = options;
+		}
+
 		public String print(Expression e) {
 			if (null == e)
 				return null;
@@ -1249,7 +2324,7 @@ public class LTSminPrinter {
 				}
 				return start.printIdentifier(this, id);
 			} else {
-				StringWriter w = new StringWriter();
+				StringWriter w = new StringWriter(options);
 				generateExpression(w, e, start);
 				return w.toString();
 			}
@@ -1257,6 +2332,14 @@ public class LTSminPrinter {
 	}
 
 	private static void generateExpression(StringWriter w, Expression e, LTSminPointer state) {
+		Subexpressions cse = w.options == null ? null : w.options.hoisted;
+		if (cse != null) {
+			String local = cse.getLocal(e, w, state);
+			if (local != null) {
+				w.append(local);
+				return;
+			}
+		}
 		if(e instanceof LTSminIdentifier) {
 			LTSminIdentifier id = (LTSminIdentifier)e;
 			if (id.isPointer())
@@ -1266,7 +2349,7 @@ public class LTSminPrinter {
 		} else if(e instanceof Identifier) {
 			Identifier id = (Identifier)e;
 			try {
-				w.append(print(id, state));
+				w.append(new ExprPrinter(state, w.options).print(id));
 			} catch (AssertionError ae) {
 				System.err.println(id);
 				ae.printStackTrace();
@@ -1468,8 +2551,13 @@ public class LTSminPrinter {
     }
 
    private static void generateDepMatrix(StringWriter w, DepMatrix dm, String name) {
+        if (w.options.packed) {
+            generatePackedMatrix(w, name, dm);
+            return;
+        }
         w.appendPrefix();
         w.appendLine("int "+ name + "[]["+ dm.getNrCols() +"] = {");
+        declare(w, "extern int "+ name + "[]["+ dm.getNrCols() +"];");
         w.indent();
 
         // Iterate over all the rows
@@ -1487,8 +2575,13 @@ public class LTSminPrinter {
     }
 
 	private static void generateDepMatrix(StringWriter w, RWMatrix dm, String name) {
+		if (w.options.packed) {
+			generatePackedMatrix(w, name, dm.read, dm.mayWrite, dm.mustWrite);
+			return;
+		}
 		w.appendPrefix();
 		w.appendLine("int "+ name + "[][3]["+ dm.getNrCols() +"] = {");
+		declare(w, "extern int "+ name + "[][3]["+ dm.getNrCols() +"];");
 		w.indent();
 		w.appendLine("// { ... read ...}, { ... may write ...}, { ... must write ... }");
 
@@ -1508,21 +2601,402 @@ public class LTSminPrinter {
 			w.append("}");
 		}
 		w.outdent();
-		// Close array
-		w.appendLine("};");
+		// Close array
+		w.appendLine("};");
+	}
+
+	private static void generateRow(StringWriter w, DepRow dr) {
+		w.append("{");
+
+		// Insert all read dependencies of the current row
+		for (int col = 0; col < dr.getNrCols(); col++) {
+			if (col > 0)
+				w.append(",");
+			w.append(dr.intDependent(col));
+		}
+
+		w.append("}");
+	}
+
+	/**
+	 * Writes the (equally sized) matrices as one packed matrix: every matrix
+	 * is stored either as bit set rows or in compressed sparse row format,
+	 * whichever takes less memory. The const int* rows of the dense encoding
+	 * are expanded on demand by spins_packed_row (see matrixRow). A macro
+	 * with the name of the matrix offers the dense layout of
+	 * generateDepMatrix, for the code that indexes the matrix directly
+	 * (reach2.c); it expands the whole matrix on first use.
+	 *
+	 * With a matrix file, the matrices are added to the file instead, and
+	 * the descriptors are filled by generateMatrixFileLoader.
+	 */
+	private static void generatePackedMatrix(StringWriter w, String name,
+	                                         DepMatrix... dms) {
+		String storage = w.options.decls == null ? "static " : "";
+		String type = w.options.matrixFile != null ? "packed_matrix_t " : "const packed_matrix_t ";
+		if (w.options.matrixFile != null) {
+			for (int k = 0; k < dms.length; k++) {
+				w.options.matrixFile.add(name +"_packed["+ k +"]", dms[k]);
+			}
+			w.appendLine(storage + type + name +"_packed[", dms.length, "]; // from "+ w.options.matrixFile.getFile().getName());
+		} else {
+			String[] packed = new String[dms.length];
+			for (int k = 0; k < dms.length; k++) {
+				packed[k] = generatePackedData(w, dms[k], name +"_"+ k);
+			}
+			w.appendLine(storage + type + name +"_packed[] = {");
+			w.indent();
+			for (String p : packed) {
+				w.appendLine(p, ",");
+			}
+			w.outdent();
+			w.appendLine("};");
+		}
+		w.appendLine("static int **"+ name +"_rows[", dms.length, "];");
+		w.appendLine("__attribute__((destructor)) static void "+ name +"_free_rows () {");
+		w.appendLine("    spins_packed_free_rows ("+ name +"_packed, ", dms.length, ", "+ name +"_rows);");
+		w.appendLine("}");
+		StringWriter d = w;
+		if (w.options.decls != null) { // the other units expand their own dense copy
+			d = w.options.decls;
+			d.appendLine("extern "+ type + name +"_packed[", dms.length, "];");
+		}
+		String dim = dms.length == 1 ? "" : "["+ dms.length +"]";
+		d.appendLine("static int *"+ name +"_dense = NULL;");
+		d.appendLine("__attribute__((destructor)) static void "+ name +"_free_dense () {");
+		d.appendLine("    free ("+ name +"_dense);");
+		d.appendLine("}");
+		d.appendLine("#define "+ name +" ((int (*)"+ dim +"[", dms[0].getNrCols(),
+		             "]) spins_packed_dense("+ name +"_packed, ", dms.length,
+		             ", &"+ name +"_dense))");
+	}
+
+	private static void declare(StringWriter w, String declaration) {
+		if (w.options.decls != null) {
+			w.options.decls.appendLine(declaration);
+		}
+	}
+
+	/**
+	 * @return the initializer of the packed_matrix_t of the written data
+	 */
+	private static String generatePackedData(StringWriter w, DepMatrix dm,
+	                                         String name) {
+		int rows = dm.getNrRows();
+		int cols = dm.getNrCols();
+		int words = MatrixFile.packedWords(dm);
+
+		if (words > 0) {
+			w.appendLine("static const uint64_t "+ name +"_bits[][", words, "] = {");
+			w.indent();
+			long[] bits = new long[words];
+			for (int r = 0; r < rows; r++) {
+				Arrays.fill(bits, 0);
+				for (int col : dm.getRow(r)) {
+					bits[col >>> 6] |= 1L << col;
+				}
+				w.appendPrefix().append("{");
+				for (int i = 0; i < words; i++) {
+					if (i > 0)
+						w.append(",");
+					w.append(bits[i] == 0 ? "0" : "0x"+ Long.toHexString(bits[i]) +"ULL");
+				}
+				w.append("}, // "+ r).appendPostfix();
+			}
+			w.outdent();
+			w.appendLine("};");
+			return "{ "+ rows +", "+ cols +", "+ words +", &"+ name +"_bits[0][0], NULL, NULL }";
+		}
+
+		w.appendLine("static const int "+ name +"_index[] = {");
+		w.indent();
+		w.appendPrefix().append(0);
+		int start = 0;
+		for (int r = 0; r < rows; r++) {
+			start += dm.getRow(r).getCardinality();
+			w.append(r % 16 == 15 ? "," : ", ");
+			if (r % 16 == 15)
+				w.appendPostfix().appendPrefix();
+			w.append(start);
+		}
+		w.appendPostfix();
+		w.outdent();
+		w.appendLine("};");
+		w.appendLine("static const int "+ name +"_cols[] = {");
+		w.indent();
+		if (start == 0)
+			w.appendLine("0 // empty");
+		for (int r = 0; r < rows; r++) {
+			DepRow dr = dm.getRow(r);
+			if (dr.getCardinality() == 0) continue;
+			w.appendPrefix();
+			for (int col : dr) {
+				w.append(col).append(",");
+			}
+			w.append(" // "+ r).appendPostfix();
+		}
+		w.outdent();
+		w.appendLine("};");
+		return "{ "+ rows +", "+ cols +", 0, NULL, "+ name +"_index, "+ name +"_cols }";
+	}
+
+	/**
+	 * The dense rows of packed matrices are expanded on demand, so that the
+	 * const int* accessors keep their interface. The threads share the
+	 * expanded rows: a thread publishes a row with a compare-and-swap, and
+	 * frees its own copy if another thread was first. The destructors of
+	 * generatePackedMatrix free the rows.
+	 */
+	private static void generatePackedMatrixFunctions(StringWriter w) {
+		w.appendLine("typedef struct packed_matrix {");
+		w.indent();
+		w.appendLine("int             rows;");
+		w.appendLine("int             cols;");
+		w.appendLine("int             words;  // words per bit set row, or 0 if sparse");
+		w.appendLine("const uint64_t *bits;   // rows x words");
+		w.appendLine("const int      *index;  // row r is column[index[r]] ... column[index[r+1]-1]");
+		w.appendLine("const int      *column;");
+		w.outdent();
+		w.appendLine("} packed_matrix_t;");
+		w.appendLine("");
+		w.appendLine("static void");
+		w.appendLine("spins_unpack_row (const packed_matrix_t *m, int r, int *row)");
+		w.appendLine("{");
+		w.indent();
+		w.appendLine("int i;");
+		w.appendLine("if (m->words > 0) {");
+		w.indent();
+		w.appendLine("const uint64_t *bits = &m->bits[(size_t)r * m->words];");
+		w.appendLine("for (i = 0; i < m->cols; i++)");
+		w.appendLine("    row[i] = (bits[i >> 6] >> (i & 63)) & 1;");
+		w.outdent();
+		w.appendLine("} else {");
+		w.indent();
+		w.appendLine("memset (row, 0, m->cols * sizeof(int));");
+		w.appendLine("for (i = m->index[r]; i < m->index[r + 1]; i++)");
+		w.appendLine("    row[m->column[i]] = 1;");
+		w.outdent();
+		w.appendLine("}");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("static void *");
+		w.appendLine("spins_packed_calloc (size_t n, size_t size)");
+		w.appendLine("{");
+		w.indent();
+		w.appendLine("void *p = calloc (n, size);");
+		w.appendLine("if (p == NULL) {");
+		w.appendLine("    printf (\"Out of memory - \");");
+		w.appendLine("    exit (1);");
+		w.appendLine("}");
+		w.appendLine("return p;");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("/* Stores p in *shared, unless another thread did first; returns *shared. */");
+		w.appendLine("static void *");
+		w.appendLine("spins_packed_publish (void **shared, void *p)");
+		w.appendLine("{");
+		w.indent();
+		w.appendLine("void *first = NULL;");
+		w.appendLine("if (__atomic_compare_exchange_n (shared, &first, p, 0, __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE))");
+		w.appendLine("    return p;");
+		w.appendLine("free (p);");
+		w.appendLine("return first;");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("static const int *");
+		w.appendLine("spins_packed_row (const packed_matrix_t *m, int ***rows, int r)");
+		w.appendLine("{");
+		w.indent();
+		w.appendLine("int **cache = __atomic_load_n (rows, __ATOMIC_ACQUIRE);");
+		w.appendLine("if (EXPECT_FALSE(cache == NULL)) {");
+		w.appendLine("    cache = spins_packed_calloc (m->rows, sizeof(int *));");
+		w.appendLine("    cache = spins_packed_publish ((void **) rows, cache);");
+		w.appendLine("}");
+		w.appendLine("int *row = __atomic_load_n (&cache[r], __ATOMIC_ACQUIRE);");
+		w.appendLine("if (EXPECT_FALSE(row == NULL)) {");
+		w.appendLine("    row = spins_packed_calloc (m->cols + 1, sizeof(int));");
+		w.appendLine("    spins_unpack_row (m, r, row);");
+		w.appendLine("    row = spins_packed_publish ((void **) &cache[r], row);");
+		w.appendLine("}");
+		w.appendLine("return row;");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("static void");
+		w.appendLine("spins_packed_free_rows (const packed_matrix_t *m, int n, int ***rows)");
+		w.appendLine("{");
+		w.indent();
+		w.appendLine("int r, k;");
+		w.appendLine("for (k = 0; k < n; k++) {");
+		w.appendLine("    if (rows[k] == NULL) continue;");
+		w.appendLine("    for (r = 0; r < m[k].rows; r++)");
+		w.appendLine("        free (rows[k][r]);");
+		w.appendLine("    free (rows[k]);");
+		w.appendLine("    rows[k] = NULL;");
+		w.appendLine("}");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("static int *");
+		w.appendLine("spins_packed_dense (const packed_matrix_t *m, int n, int **dense)");
+		w.appendLine("{");
+		w.indent();
+		w.appendLine("int *d = __atomic_load_n (dense, __ATOMIC_ACQUIRE);");
+		w.appendLine("if (EXPECT_FALSE(d == NULL)) {");
+		w.indent();
+		w.appendLine("size_t cols = m->cols;");
+		w.appendLine("int r, k;");
+		w.appendLine("d = spins_packed_calloc (cols * m->rows * n + 1, sizeof(int));");
+		w.appendLine("for (r = 0; r < m->rows; r++)");
+		w.appendLine("    for (k = 0; k < n; k++)");
+		w.appendLine("        spins_unpack_row (&m[k], r, &d[(r * n + k) * cols]);");
+		w.appendLine("d = spins_packed_publish ((void **) dense, d);");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("return d;");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+	}
+
+	/**
+	 * Maps the matrix file in a constructor and points the descriptors of
+	 * the packed matrices into it. The file is looked up at $SPINS_MATRICES,
+	 * next to the loaded library, and where it was written, in that order.
+	 */
+	private static void generateMatrixFileLoader(StringWriter w) {
+		MatrixFile matrices = w.options.matrixFile;
+		File file = matrices.getFile();
+		String path = file.getAbsolutePath().replace("\\", "\\\\").replace("\"", "\\\"");
+		w.appendLine("");
+		w.appendLine("#include <dlfcn.h>");
+		w.appendLine("#include <fcntl.h>");
+		w.appendLine("#include <sys/mman.h>");
+		w.appendLine("#include <sys/stat.h>");
+		w.appendLine("#include <unistd.h>");
+		w.appendLine("");
+		w.appendLine("#define SPINS_MATRIX_VERSION ", MatrixFile.VERSION);
+		w.appendLine("#define SPINS_MATRIX_ID      0x", Long.toHexString(matrices.getId()), "ULL");
+		w.appendLine("#define SPINS_MATRIX_NAME    \"", file.getName(), "\"");
+		w.appendLine("#define SPINS_MATRIX_PATH    \"", path, "\"");
+		w.appendLine("");
+		w.appendLine("typedef struct spins_matrix_header {");
+		w.indent();
+		w.appendLine("char     magic[8];");
+		w.appendLine("uint32_t version;");
+		w.appendLine("uint32_t count;");
+		w.appendLine("uint64_t id;");
+		w.appendLine("uint64_t size;");
+		w.outdent();
+		w.appendLine("} spins_matrix_header_t;");
+		w.appendLine("");
+		w.appendLine("typedef struct spins_matrix_entry {");
+		w.indent();
+		w.appendLine("uint32_t rows;");
+		w.appendLine("uint32_t cols;");
+		w.appendLine("uint32_t words;");
+		w.appendLine("uint32_t reserved;");
+		w.appendLine("uint64_t data;   // bits or CSR index");
+		w.appendLine("uint64_t column; // CSR columns");
+		w.outdent();
+		w.appendLine("} spins_matrix_entry_t;");
+		w.appendLine("");
+		w.appendLine("static packed_matrix_t *spins_file_matrices[] = {");
+		w.indent();
+		for (int i = 0; i < matrices.size(); i++) {
+			w.appendLine("&", matrices.getName(i), ",");
+		}
+		w.appendLine("NULL");
+		w.outdent();
+		w.appendLine("};");
+		w.appendLine("");
+		w.appendLine("static int");
+		w.appendLine("spins_open_matrices (char *file, size_t size)");
+		w.appendLine("{");
+		w.indent();
+		w.appendLine("Dl_info info;");
+		w.appendLine("int fd;");
+		w.appendLine("if (getenv(\"SPINS_MATRICES\") != NULL) {");
+		w.appendLine("    snprintf (file, size, \"%s\", getenv(\"SPINS_MATRICES\"));");
+		w.appendLine("    return open (file, O_RDONLY);");
+		w.appendLine("}");
+		w.appendLine("if (dladdr((void *) spins_open_matrices, &info) && info.dli_fname != NULL) {");
+		w.indent();
+		w.appendLine("const char *slash = strrchr (info.dli_fname, '/');");
+		w.appendLine("int dir = slash == NULL ? 0 : slash - info.dli_fname + 1;");
+		w.appendLine("snprintf (file, size, \"%.*s%s\", dir, info.dli_fname, SPINS_MATRIX_NAME);");
+		w.appendLine("fd = open (file, O_RDONLY);");
+		w.appendLine("if (fd != -1) return fd;");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("snprintf (file, size, \"%s\", SPINS_MATRIX_PATH);");
+		w.appendLine("return open (file, O_RDONLY);");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("__attribute__((constructor)) static void");
+		w.appendLine("spins_map_matrices ()");
+		w.appendLine("{");
+		w.indent();
+		w.appendLine("char file[4096];");
+		w.appendLine("struct stat st;");
+		w.appendLine("int i;");
+		w.appendLine("int fd = spins_open_matrices (file, sizeof(file));");
+		w.appendLine("if (fd == -1 || fstat(fd, &st) == -1) {");
+		w.appendLine("    printf (\"spins: cannot open matrix file %s\\n\", file);");
+		w.appendLine("    exit (-1);");
+		w.appendLine("}");
+		w.appendLine("const char *map = mmap (NULL, st.st_size, PROT_READ, MAP_SHARED, fd, 0);");
+		w.appendLine("close (fd);");
+		w.appendLine("const spins_matrix_header_t *h = (const spins_matrix_header_t *) map;");
+		w.appendLine("if (map == MAP_FAILED || st.st_size < (off_t) sizeof(spins_matrix_header_t) ||");
+		w.appendLine("        memcmp(h->magic, \"SPINSDM\", 8) != 0 ||");
+		w.appendLine("        h->version != SPINS_MATRIX_VERSION || h->id != SPINS_MATRIX_ID ||");
+		w.appendLine("        h->count != ", matrices.size(), " || h->size != (uint64_t) st.st_size) {");
+		w.appendLine("    printf (\"spins: %s is not the matrix file of this model\\n\", file);");
+		w.appendLine("    exit (-1);");
+		w.appendLine("}");
+		w.appendLine("const spins_matrix_entry_t *e = (const spins_matrix_entry_t *) &h[1];");
+		w.appendLine("for (i = 0; i < ", matrices.size(), "; i++) {");
+		w.indent();
+		w.appendLine("packed_matrix_t *m = spins_file_matrices[i];");
+		w.appendLine("m->rows = e[i].rows;");
+		w.appendLine("m->cols = e[i].cols;");
+		w.appendLine("m->words = e[i].words;");
+		w.appendLine("if (m->words > 0) {");
+		w.appendLine("    m->bits = (const uint64_t *) (map + e[i].data);");
+		w.appendLine("} else {");
+		w.appendLine("    m->index = (const int *) (map + e[i].data);");
+		w.appendLine("    m->column = (const int *) (map + e[i].column);");
+		w.appendLine("}");
+		w.outdent();
+		w.appendLine("}");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
 	}
 
-	private static void generateRow(StringWriter w, DepRow dr) {
-		w.append("{");
-
-		// Insert all read dependencies of the current row
-		for (int col = 0; col < dr.getNrCols(); col++) {
-			if (col > 0)
-				w.append(",");
-			w.append(dr.intDependent(col));
-		}
+	/**
+	 * @return the C expression of a row (const int*) of a matrix written by
+	 *         generateDepMatrix
+	 */
+	private static String matrixRow(StringWriter w, String name, String row) {
+		if (w.options.packed)
+			return "spins_packed_row(&"+ name +"_packed[0], &"+ name +"_rows[0], "+ row +")";
+		return name +"["+ row +"]";
+	}
 
-		w.append("}");
+	/**
+	 * @return the C expression of row of (read, may write, must write) matrix k
+	 *         of an RWMatrix written by generateDepMatrix
+	 */
+	private static String matrixRow(StringWriter w, String name, String row, int k) {
+		if (w.options.packed)
+			return "spins_packed_row(&"+ name +"_packed["+ k +"], &"+ name +"_rows["+ k +"], "+ row +")";
+		return name +"["+ row +"]["+ k +"]";
 	}
 
 	private static void generateDMFunctions(StringWriter w, RWMatrix dm) {
@@ -1530,37 +3004,238 @@ public class LTSminPrinter {
 		w.appendLine("");
 		w.appendLine("extern const int* spins_get_transition_read_dependencies(int t)");
 		w.appendLine("{");
-		w.appendLine("	if (t>=0 && t < "+ dm.getNrRows() +") return "+ DM_NAME +"[t][0];");
+		w.appendLine("	if (t>=0 && t < "+ dm.getNrRows() +") return "+ matrixRow(w, DM_NAME, "t", 0) +";");
 		w.appendLine("	return NULL;");
 		w.appendLine("}");
 		w.appendLine("");
         w.appendLine("extern const int* spins_get_transition_may_write_dependencies(int t)");
         w.appendLine("{");
-        w.appendLine("  if (t>=0 && t < "+ dm.getNrRows()+ ") return "+ DM_NAME +"[t][1];");
+        w.appendLine("  if (t>=0 && t < "+ dm.getNrRows()+ ") return "+ matrixRow(w, DM_NAME, "t", 1) +";");
         w.appendLine("  return NULL;");
         w.appendLine("}");
         w.appendLine("");
         w.appendLine("// for backwards compatibility:");
         w.appendLine("extern const int* spins_get_transition_write_dependencies(int t)");
         w.appendLine("{");
-        w.appendLine("  if (t>=0 && t < "+ dm.getNrRows()+ ") return "+ DM_NAME +"[t][1];");
+        w.appendLine("  if (t>=0 && t < "+ dm.getNrRows()+ ") return "+ matrixRow(w, DM_NAME, "t", 1) +";");
         w.appendLine("  return NULL;");
         w.appendLine("}");
         w.appendLine("");
         w.appendLine("extern const int* spins_get_transition_must_write_dependencies(int t)");
         w.appendLine("{");
-        w.appendLine("  if (t>=0 && t < "+ dm.getNrRows()+ ") return "+ DM_NAME +"[t][2];");
+        w.appendLine("  if (t>=0 && t < "+ dm.getNrRows()+ ") return "+ matrixRow(w, DM_NAME, "t", 2) +";");
         w.appendLine("  return NULL;");
         w.appendLine("}");
         w.appendLine("");
         w.appendLine("extern const int* spins_get_actions_read_dependencies(int t)");
         w.appendLine("{");
-        w.appendLine("  if (t>=0 && t < "+ dm.getNrRows() +") return "+ DM_ACTIONS_NAME +"[t];");
+        w.appendLine("  if (t>=0 && t < "+ dm.getNrRows() +") return "+ matrixRow(w, DM_ACTIONS_NAME, "t") +";");
         w.appendLine("  return NULL;");
         w.appendLine("}");
         w.appendLine("");
 	}
 
+	/**
+	 * Generates the projections of the transition groups on the slots of
+	 * their dependency matrix rows, as lists { n, slot_0, ..., slot_n-1 }.
+	 */
+	private static void generateSlotLists(StringWriter w, DepMatrix dm, String name) {
+		w.appendLine("static const int* "+ name +"["+ dm.getNrRows() +"] = {");
+		w.indent();
+		for (int t = 0; t < dm.getNrRows(); t++) {
+			DepRow row = dm.getRow(t);
+			w.appendPrefix();
+			w.append("((const int[]){ ").append(row.getCardinality());
+			for (int slot : row)
+				w.append(", ").append(slot);
+			w.append(" })");
+			if (t < dm.getNrRows() - 1) w.append(",");
+			w.append("\t// trans ").append(String.format("%5d", t));
+			w.appendPostfix();
+		}
+		w.outdent();
+		w.appendLine("};");
+		w.appendLine("");
+	}
+
+	/**
+	 * Generates the short vector next-state functions (option short_calls).
+	 * Their input holds only the read slots of a group, and their output
+	 * only the may-write slots (as LTSmin's R2W short calls), in slot order.
+	 * They are convenience wrappers around the full next-state functions,
+	 * not projected code: they expand the input into a zeroed state, call
+	 * spins_get_successor or spins_get_actions, and project the successors
+	 * back. So a may-write slot that is not written is only meaningful when
+	 * its cpy flag is cleared; the caller copies the others from its source
+	 * state. The may-write lists are also generated for the state hashes.
+	 */
+	private static void generateShortFunctions(StringWriter w, LTSminModel model) {
+		int nTrans = model.getTransitions().size();
+		if (nTrans == 0) return;
+		if (!w.options.short_calls) {
+			if (w.options.hash)
+				generateSlotLists(w, model.getDepMatrix().mayWrite, "spins_short_write");
+			return;
+		}
+		String cb = "void (*callback)(void* arg, transition_info_t *transition_info, int *out, int *cpy)";
+		generateSlotLists(w, model.getDepMatrix().read, "spins_short_read");
+		generateSlotLists(w, model.getAtomicDepMatrix().read, "spins_short_actions_read");
+		generateSlotLists(w, model.getDepMatrix().mayWrite, "spins_short_write");
+
+		w.appendLine("const int* spins_get_transition_short_read(int t) {");
+		w.indent();
+		w.appendLine("assert(t < ",nTrans,", \"spins_get_transition_short_read: invalid transition index %d\", t);");
+		w.appendLine("return spins_short_read[t];");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("const int* spins_get_actions_short_read(int t) {");
+		w.indent();
+		w.appendLine("assert(t < ",nTrans,", \"spins_get_actions_short_read: invalid transition index %d\", t);");
+		w.appendLine("return spins_short_actions_read[t];");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("const int* spins_get_transition_short_write(int t) {");
+		w.indent();
+		w.appendLine("assert(t < ",nTrans,", \"spins_get_transition_short_write: invalid transition index %d\", t);");
+		w.appendLine("return spins_short_write[t];");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+
+		w.appendLine("typedef struct spins_short_arg {");
+		w.indent();
+		w.appendLine(cb +";");
+		w.appendLine("void *arg;");
+		w.appendLine("const int *write;");
+		w.outdent();
+		w.appendLine("} spins_short_arg_t;");
+		w.appendLine("");
+		w.appendLine("static void spins_short_cb (void* arg, transition_info_t *transition_info, state_t *out, int *cpy) {");
+		w.indent();
+		w.appendLine("spins_short_arg_t *a = (spins_short_arg_t *)arg;");
+		w.appendLine("int n = a->write[0];");
+		w.appendLine("int out_short[n + 1];");
+		w.appendLine("int cpy_short[n + 1];");
+		w.appendLine("for (int i = 0; i < n; i++) {");
+		w.appendLine("	out_short[i] = ((int *)out)[a->write[i + 1]];");
+		w.appendLine("	if (cpy != NULL) cpy_short[i] = cpy[a->write[i + 1]];");
+		w.appendLine("}");
+		w.appendLine("a->callback(a->arg, transition_info, out_short, cpy == NULL ? NULL : cpy_short);");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("static void spins_short_expand (const int *read, int *in, state_t *state) {");
+		w.indent();
+		w.appendLine("memset(state, 0, sizeof(", C_STATE, "));");
+		w.appendLine("for (int i = 0; i < read[0]; i++)");
+		w.appendLine("	((int *)state)[read[i + 1]] = in[i];");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("int spins_get_successor_short (void* model, int t, int *in, "+ cb +", void *arg) {");
+		w.indent();
+		w.appendLine("if (t < 0 || t >= "+ nTrans +") return 0;");
+		w.appendLine(C_STATE," state;");
+		w.appendLine("spins_short_expand(spins_short_read[t], in, &state);");
+		w.appendLine("spins_short_arg_t a = { callback, arg, spins_short_write[t] };");
+		w.appendLine("return spins_get_successor(model, t, &state, spins_short_cb, &a);");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("int spins_get_actions_short (void* model, int t, int *in, "+ cb +", void *arg) {");
+		w.indent();
+		w.appendLine("if (t < 0 || t >= "+ nTrans +") return 0;");
+		w.appendLine(C_STATE," state;");
+		w.appendLine("spins_short_expand(spins_short_actions_read[t], in, &state);");
+		w.appendLine("spins_short_arg_t a = { callback, arg, spins_short_write[t] };");
+		w.appendLine("return spins_get_actions(model, t, &state, spins_short_cb, &a);");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+	}
+
+	/**
+	 * Generates the (Zobrist) state hash: the XOR of the hashes of all
+	 * (slot, value) pairs, of which the slot keys are random. A successor
+	 * hash follows from the hash of the source state by rehashing only the
+	 * may-write slots of its group. spins_get_successor_all_hashed and
+	 * spins_get_successor_hashed do so from the hash of their input state,
+	 * and pass it in transition_info->hash.
+	 */
+	private static void generateHashFunctions(StringWriter w, LTSminModel model) {
+		if (!w.options.hash) return;
+		int nTrans = model.getTransitions().size();
+		Random random = new Random(0x5eed);
+		w.appendLine("static const uint64_t spins_zobrist["+ model.sv.size() +"] = {");
+		w.indent();
+		for (int i = 0; i < model.sv.size(); i++) {
+			w.appendLine(String.format("0x%016xULL,", random.nextLong()));
+		}
+		w.outdent();
+		w.appendLine("};");
+		w.appendLine("");
+		w.appendLine("uint64_t spins_hash_slot (int slot, int value) {");
+		w.indent();
+		w.appendLine("uint64_t x = spins_zobrist[slot] ^ ((uint32_t) value * 0x9e3779b97f4a7c15ULL);");
+		w.appendLine("x ^= x >> 32;");
+		w.appendLine("x *= 0xd6e8feb86659fd93ULL;");
+		w.appendLine("return x ^ (x >> 32);");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("uint64_t spins_hash_state (state_t *state) {");
+		w.indent();
+		w.appendLine("uint64_t hash = 0;");
+		w.appendLine("for (int i = 0; i < "+ model.sv.size() +"; i++)");
+		w.appendLine("	hash ^= spins_hash_slot(i, ((int *)state)[i]);");
+		w.appendLine("return hash;");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		if (nTrans == 0) return;
+
+		String cb = "void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy)";
+		w.appendLine("typedef struct spins_hash_arg {");
+		w.indent();
+		w.appendLine(cb +";");
+		w.appendLine("void *arg;");
+		w.appendLine("state_t *in;");
+		w.appendLine("uint64_t hash;");
+		w.outdent();
+		w.appendLine("} spins_hash_arg_t;");
+		w.appendLine("");
+		w.appendLine("static void spins_hash_cb (void* arg, transition_info_t *transition_info, state_t *out, int *cpy) {");
+		w.indent();
+		w.appendLine("spins_hash_arg_t *a = (spins_hash_arg_t *)arg;");
+		w.appendLine("const int *write = spins_short_write[transition_info->group];");
+		w.appendLine("uint64_t hash = a->hash;");
+		w.appendLine("for (int i = 1; i <= write[0]; i++) {");
+		w.appendLine("	int s = write[i];");
+		w.appendLine("	hash ^= spins_hash_slot(s, ((int *)a->in)[s]) ^ spins_hash_slot(s, ((int *)out)[s]);");
+		w.appendLine("}");
+		w.appendLine("transition_info->hash = hash;");
+		w.appendLine("a->callback(a->arg, transition_info, out, cpy);");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("int spins_get_successor_all_hashed (void* model, state_t *in, uint64_t hash, "+ cb +", void *arg) {");
+		w.indent();
+		w.appendLine("spins_hash_arg_t a = { callback, arg, in, hash };");
+		w.appendLine("return spins_get_successor_all(model, in, spins_hash_cb, &a);");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+		w.appendLine("int spins_get_successor_hashed (void* model, int t, state_t *in, uint64_t hash, "+ cb +", void *arg) {");
+		w.indent();
+		w.appendLine("spins_hash_arg_t a = { callback, arg, in, hash };");
+		w.appendLine("return spins_get_successor(model, t, in, spins_hash_cb, &a);");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+	}
+
 	private static void generateStateDescriptors(StringWriter w, LTSminModel model) {
 		int state_size = model.sv.size();
         Set<String> types = model.getTypes();
@@ -1568,14 +3243,13 @@ public class LTSminPrinter {
 		// Generate static list of names
 		w.appendLine("static const char* var_names[] = {");
 		w.indent();
-		for (LTSminSlot slot : model.sv) {
-			if (0 != slot.getIndex())
+		for (int i = 0; i < state_size; i++) {
+			if (0 != i)
 				w.append(",").appendPostfix();
 			w.appendPrefix();
-			String fn = slot.fullName();
-			fn = fn.substring(1, fn.length() - 4); // .A.B.var --> A.B
-			if (fn.startsWith("globals."))
-				fn = fn.substring(8); // globals.B --> B
+			String fn = "";
+			for (LTSminSlot slot : model.sv.getSlots(i))
+				fn += (fn.isEmpty() ? "" : "|") + getVariableName(slot);
 			w.append("\""+ fn +"\"");
 		}
 		w.outdent().appendPostfix();
@@ -1594,9 +3268,11 @@ public class LTSminPrinter {
 		w.appendLine("");
 		w.appendLine("static const int var_type[] = {");
 		w.indent();
-		for (LTSminSlot slot : model.sv) {
-			LTSminVariable var = slot.getVariable();
-			String cType = var.getVariable().getType().getName();
+		for (int i = 0; i < state_size; i++) {
+			List<LTSminSlot> slots = model.sv.getSlots(i);
+			String cType = VariableType.INT.getName(); // of packed variables
+			if (slots.size() == 1)
+				cType = slots.get(0).getVariable().getVariable().getType().getName();
 			int num = model.getTypeIndex(cType);
 			w.appendLine(num,",");
 		}
@@ -1685,6 +3361,135 @@ public class LTSminPrinter {
 		w.outdent();
 		w.appendLine("}");
 		w.appendLine("");
+
+		if (null != model.getRanges())
+			generateVariableRanges(w, model);
+		if (model.sv.isPacked())
+			generateFieldAccessors(w, model);
+	}
+
+	/**
+	 * Generates the domains of the slots, from the inferred value ranges of
+	 * their variables (see LTSminRangeWalker). Slots shared by several
+	 * variables hold any int.
+	 */
+	private static void generateVariableRanges(StringWriter w, LTSminModel model) {
+		int state_size = model.sv.size();
+		Map<Variable, LTSminRange> ranges = model.getRanges();
+
+		w.appendLine("static const int var_range[][2] = {");
+		w.indent();
+		for (int i = 0; i < state_size; i++) {
+			List<LTSminSlot> slots = model.sv.getSlots(i);
+			LTSminRange r = LTSminRange.INT;
+			LTSminVariable var = slots.get(0).getVariable();
+			if (slots.size() == 1 && var.getType() instanceof LTSminTypeNative &&
+					null != var.getVariable()) {
+				LTSminTypeNative type = (LTSminTypeNative)var.getType();
+				LTSminRange values = ranges.get(var.getVariable());
+				r = type.getSlotRange(null == values ? type.getRange() : values);
+			}
+			w.appendLine("{", rangeBound(r.getMin()), ", ", rangeBound(r.getMax()), "},");
+		}
+		w.appendLine("{0, 0}");
+		w.outdent();
+		w.appendLine("};");
+		w.appendLine("");
+
+		w.appendLine("extern void spins_get_state_variable_range(int var, int *min, int *max) {");
+		w.indent();
+		w.appendLine("assert(var > -1 && var < ",state_size,", \"spins_get_state_variable_range: invalid variable %d\", var);");
+		w.appendLine("*min = var_range[var][0];");
+		w.appendLine("*max = var_range[var][1];");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+	}
+
+	private static String rangeBound(long bound) {
+		if (bound == Integer.MIN_VALUE) return "INT32_MIN";
+		if (bound == Integer.MAX_VALUE) return "INT32_MAX";
+		return String.valueOf(bound);
+	}
+
+	private static String getVariableName(LTSminSlot slot) {
+		String fn = slot.fullName();
+		fn = fn.substring(1, fn.length() - 4); // .A.B.var --> A.B
+		if (fn.startsWith("globals."))
+			fn = fn.substring(8); // globals.B --> B
+		return fn;
+	}
+
+	/**
+	 * Generates the accessors of the variables (fields) of a packed state
+	 * vector, of which several may share a slot: their names, their slots,
+	 * and get and set functions of their values.
+	 */
+	private static void generateFieldAccessors(StringWriter w, LTSminModel model) {
+		List<LTSminSlot> fields = model.sv.getSlots();
+
+		w.appendLine("static const char* field_names[] = {");
+		w.indent();
+		for (LTSminSlot slot : fields)
+			w.appendLine("\"", getVariableName(slot), "\",");
+		w.appendLine("\"\"");
+		w.outdent();
+		w.appendLine("};");
+		w.appendLine("");
+
+		w.appendLine("static const int field_slots[] = {");
+		w.indent();
+		for (LTSminSlot slot : fields)
+			w.appendLine(slot.getIndex(), ",");
+		w.appendLine("-1");
+		w.outdent();
+		w.appendLine("};");
+		w.appendLine("");
+
+		w.appendLine("extern int spins_get_state_field_count() {");
+		w.indent();
+		w.appendLine("return ", fields.size(), ";");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+
+		w.appendLine("extern const char* spins_get_state_field_name(int field) {");
+		w.indent();
+		w.appendLine("assert(field > -1 && field < ",fields.size(),", \"spins_get_state_field_name: invalid field %d\", field);");
+		w.appendLine("return field_names[field];");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+
+		w.appendLine("extern int spins_get_state_field_slot(int field) {");
+		w.indent();
+		w.appendLine("assert(field > -1 && field < ",fields.size(),", \"spins_get_state_field_slot: invalid field %d\", field);");
+		w.appendLine("return field_slots[field];");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+
+		w.appendLine("extern int spins_get_state_field(state_t *state, int field) {");
+		w.indent();
+		w.appendLine("switch (field) {");
+		for (int f = 0; f < fields.size(); f++)
+			w.appendLine("case ", f, ": return state->", fields.get(f).fullName().substring(1), ";");
+		w.appendLine("default: assert(false, \"spins_get_state_field: invalid field %d\", field); return 0;");
+		w.appendLine("}");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
+
+		w.appendLine("extern void spins_set_state_field(state_t *state, int field, int value) {");
+		w.indent();
+		w.appendLine("switch (field) {");
+		for (int f = 0; f < fields.size(); f++)
+			w.appendLine("case ", f, ": state->", fields.get(f).fullName().substring(1), " = value; break;");
+		w.appendLine("default: assert(false, \"spins_set_state_field: invalid field %d\", field);");
+		w.appendLine("}");
+		w.outdent();
+		w.appendLine("}");
+		w.appendLine("");
 	}
 
 	private static void generateEdgeDescriptors(StringWriter w, LTSminModel model) {
@@ -1789,6 +3594,7 @@ public class LTSminPrinter {
 												List<List<Integer>> trans_matrix) {
 		w.appendLine("// Transition-Guard Matrix:");
 		w.appendPrefix().append("int* "+ GM_TRANS_NAME +"[").append(trans_matrix.size()).append("] = {");
+		declare(w, "extern int* "+ GM_TRANS_NAME +"["+ trans_matrix.size() +"];");
 		w.appendPostfix();
 		for(int g=0; g<trans_matrix.size(); ++g) {
 			w.append("((int[]){");
@@ -1918,6 +3724,8 @@ public class LTSminPrinter {
         w.indent();
         w.appendLine("(void)model;");
         w.appendLine("assert(g < ",gm.getNumberOfLabels(),", \"spins_get_label: invalid state label index %d\", g);");
+        if (w.options.metrics > 0)
+            w.appendLine("spins_metrics()->guards[g]++;");
         w.appendLine("switch(g) {");
         w.indent();
 		StringWriter w2 = new StringWriter(w);
@@ -1964,12 +3772,39 @@ public class LTSminPrinter {
         w.appendLine("void spins_get_labels_many (void* model, ",C_STATE,"* ",IN_VAR,", int* label, bool guards_only) {");
         w.indent();
         w.appendLine("(void)model;");
+        if (w.options.metrics > 0) {
+            w.appendLine("spins_metrics_t *__metrics = spins_metrics();");
+            w.appendLine("for (int i = 0; i < (guards_only ? "+ gm.getNumberOfGuards() +" : "+ gm.getNumberOfLabels() +"); i++)");
+            w.appendLine("	__metrics->guards[i]++;");
+        }
+        if (w.options.metrics > 1)
+            w.appendLine("uint64_t __cycles = spins_cycles();");
+        Subexpressions guardCSE = null, labelCSE = null;
+        if (w.options.cse) {
+            guardCSE = new Subexpressions(null, in(model));
+            for (int g = 0; g < gm.getNumberOfGuards(); ++g)
+                guardCSE.add(gm.getLabel(g).getExpr());
+            w.options.hoisted = guardCSE.hoist(w);
+        }
         for (int g = 0; g < gm.getNumberOfGuards(); ++g) {
             w.appendPrefix();
             w.append("label[").append(g).append("] = ");
             generateMaybeGuardText(w, w2, model, g);
         }
-        w.appendLine("if (guards_only) return;");
+        if (w.options.metrics > 1) {
+            w.appendLine("if (guards_only) {");
+            w.appendLine("	__metrics->guard_cycles += spins_cycles() - __cycles;");
+            w.appendLine("	return;");
+            w.appendLine("}");
+        } else {
+            w.appendLine("if (guards_only) return;");
+        }
+        if (w.options.cse) {
+            labelCSE = new Subexpressions(guardCSE, in(model));
+            for (int g = gm.getNumberOfGuards(); g < gm.getNumberOfLabels(); ++g)
+                labelCSE.add(gm.getLabel(g).getExpr());
+            w.options.hoisted = labelCSE.hoist(w);
+        }
         for (int g = gm.getNumberOfGuards(); g < gm.getNumberOfLabels(); ++g) {
             w.appendPrefix();
             w.append("label[").append(g).append("] = ");
@@ -1977,6 +3812,15 @@ public class LTSminPrinter {
             w.append(";");
             w.appendPostfix();
         }
+        w.options.hoisted = null;
+        if (w.options.metrics > 1)
+            w.appendLine("__metrics->label_cycles += spins_cycles() - __cycles;");
+        if (w.options.cse) {
+            new LTSminDebug(w.options.verbose).say(MessageKind.DEBUG,
+                    "Hoisted "+ guardCSE.size() +" common subexpressions of the guards ("+
+                    guardCSE.getUses() +" uses) and "+ labelCSE.size() +
+                    " of the state labels ("+ labelCSE.getUses() +" uses)");
+        }
         w.outdent();
         w.outdent();
         w.appendLine("}");
@@ -2027,11 +3871,18 @@ public class LTSminPrinter {
         w.outdent();
         w.appendLine("}");
         w.appendLine("");
+	}
+
+	private static void generateGuardMatrixFunctions(StringWriter w,
+	                                                 LTSminModel model,
+	                                                 boolean no_gm) {
+	    GuardInfo gm = model.getGuardInfo();
+        int nTrans = gm.getTransMatrix().size();
 
         w.appendLine("const int* spins_get_label_matrix(int g) {");
         w.indent();
         w.appendLine("assert(g < ",gm.getNumberOfLabels(),", \"spins_get_label_matrix: invalid guard index %d\", g);");
-        w.appendLine("return "+ GM_DM_NAME +"[g];");
+        w.appendLine("return "+ matrixRow(w, GM_DM_NAME, "g") +";");
         w.outdent();
         w.appendLine("}");
         w.appendLine("");
@@ -2041,7 +3892,7 @@ public class LTSminPrinter {
         w.appendLine("const int* spins_get_trans_commutes_matrix(int t) {");
         w.indent();
         w.appendLine("assert(t < ",nTrans,", \"spins_get_trans_commutes_matrix: invalid trans index %d\", t);");
-        w.appendLine("return "+ COMMUTES_DM_NAME +"[t];");
+        w.appendLine("return "+ matrixRow(w, COMMUTES_DM_NAME, "t") +";");
         w.outdent();
         w.appendLine("}");
         w.appendLine("");
@@ -2049,7 +3900,7 @@ public class LTSminPrinter {
         w.appendLine("const int* spins_get_trans_do_not_accord_matrix(int t) {");
         w.indent();
         w.appendLine("assert(t < ",nTrans,", \"spins_get_label_do_not_accord_matrix: invalid trans index %d\", t);");
-        w.appendLine("return "+ DNA_DM_NAME +"[t];");
+        w.appendLine("return "+ matrixRow(w, DNA_DM_NAME, "t") +";");
         w.outdent();
         w.appendLine("}");
         w.appendLine("");
@@ -2057,7 +3908,7 @@ public class LTSminPrinter {
 		w.appendLine("const int* spins_get_label_may_be_coenabled_matrix(int g) {");
 		w.indent();
 		w.appendLine("assert(g < ",gm.getNumberOfLabels(),", \"spins_get_label_may_be_coenabled_matrix: invalid guard index %d\", g);");
-		w.appendLine("return "+ CO_DM_NAME +"[g];");
+		w.appendLine("return "+ matrixRow(w, CO_DM_NAME, "g") +";");
 		w.outdent();
 		w.appendLine("}");
 		w.appendLine("");
@@ -2065,7 +3916,7 @@ public class LTSminPrinter {
 		w.appendLine("const int* spins_get_label_nes_matrix(int g) {");
 		w.indent();
 		w.appendLine("assert(g < ",gm.getNumberOfLabels(),", \"spins_get_label_nes_matrix: invalid guard index %d\", g);");
-		w.appendLine("return "+ NES_DM_NAME +"[g];");
+		w.appendLine("return "+ matrixRow(w, NES_DM_NAME, "g") +";");
 		w.outdent();
 		w.appendLine("}");
 		w.appendLine("");
@@ -2073,12 +3924,182 @@ public class LTSminPrinter {
 		w.appendLine("const int* spins_get_label_nds_matrix(int g) {");
 		w.indent();
 		w.appendLine("assert(g < ",gm.getNumberOfLabels(),", \"spins_get_label_nds_matrix: invalid guard index %d\", g);");
-		w.appendLine("return "+ NDS_DM_NAME +"[g];");
+		w.appendLine("return "+ matrixRow(w, NDS_DM_NAME, "g") +";");
 		w.outdent();
 		w.appendLine("}");
 		w.appendLine("");
 	}
 
+	/**
+	 * Common subexpressions of the guards or the state labels, which
+	 * spins_get_labels_many computes once into locals. The key of an
+	 * expression is its C text without locals: expressions with equal text
+	 * are the same (hash-consed) subexpression. Only subexpressions without
+	 * bounds checks (see generateMaybe) are hoisted, as they are evaluated
+	 * before the checks of the guards that contain them. Subexpressions of
+	 * a hoisted subexpression are counted once, in its definition.
+	 */
+	static class Subexpressions {
+		private final Subexpressions outer; // of which the locals are in scope
+		private final LTSminPointer state;
+		private final Map<Expression, String> keys = new IdentityHashMap<Expression, String>();
+		private final Map<String, Integer> counts = new HashMap<String, Integer>();
+		private final Map<String, Integer> uses = new HashMap<String, Integer>();
+		private final Map<String, Expression> first = new LinkedHashMap<String, Expression>();
+		private final Map<String, String> locals = new HashMap<String, String>();
+		private final List<Expression> roots = new ArrayList<Expression>();
+		private int hoisted = 0;
+		private int used = 0;
+
+		Subexpressions(Subexpressions outer, LTSminPointer state) {
+			this.outer = outer;
+			this.state = state;
+		}
+
+		void add(Expression e) {
+			roots.add(e);
+			count(e);
+		}
+
+		/**
+		 * @return the candidate for hoisting that e stands for, or null
+		 */
+		private Expression candidate(Expression e) {
+			while (true) {
+				if (e instanceof TranslatableExpression) {
+					e = ((TranslatableExpression)e).translate();
+				} else if (e instanceof RemoteRef) {
+					e = ((RemoteRef)e).getLabelExpression(null);
+				} else if (e instanceof EvalExpression) {
+					e = ((EvalExpression)e).getExpression();
+				} else if (e instanceof TimeoutExpression) {
+					e = ((TimeoutExpression)e).getDeadlock();
+				} else {
+					break;
+				}
+			}
+			if (!(e instanceof AritmicExpression || e instanceof BooleanExpression ||
+					e instanceof CompareExpression || e instanceof ChannelReadExpression))
+				return null;
+			return e;
+		}
+
+		private List<Expression> children(Expression e) {
+			List<Expression> children = new ArrayList<Expression>();
+			if (e instanceof AritmicExpression) {
+				AritmicExpression ae = (AritmicExpression)e;
+				children.add(ae.getExpr1());
+				children.add(ae.getExpr2());
+				children.add(ae.getExpr3());
+			} else if (e instanceof BooleanExpression) {
+				children.add(((BooleanExpression)e).getExpr1());
+				children.add(((BooleanExpression)e).getExpr2());
+			} else if (e instanceof CompareExpression) {
+				children.add(((CompareExpression)e).getExpr1());
+				children.add(((CompareExpression)e).getExpr2());
+			}
+			children.removeAll(Arrays.asList((Expression)null));
+			return children;
+		}
+
+		private String key(Expression e) {
+			String key = keys.get(e);
+			if (key == null) {
+				StringWriter w = new StringWriter(); // without the locals
+				generateMaybe(w, e, state);
+				if (w.length() == 0) {
+					generateExpression(w, e, state);
+					key = w.toString();
+				} else {
+					key = ""; // has bounds checks
+				}
+				keys.put(e, key);
+			}
+			return key;
+		}
+
+		private boolean inScope(String key) {
+			for (Subexpressions s = outer; s != null; s = s.outer)
+				if (s.locals.containsKey(key)) return true;
+			return false;
+		}
+
+		private void count(Expression e) {
+			Expression c = candidate(e);
+			if (c == null) return;
+			String key = key(c);
+			if (inScope(key)) return;
+			for (Expression child : children(c))
+				count(child);
+			if (key.length() == 0) return;
+			Integer n = counts.get(key);
+			counts.put(key, n == null ? 1 : n + 1);
+			if (n == null) first.put(key, c);
+		}
+
+		private void use(Expression e, Map<String, Boolean> seen) {
+			Expression c = candidate(e);
+			if (c == null) return;
+			String key = key(c);
+			if (inScope(key)) return;
+			if (key.length() != 0 && counts.get(key) > 1) {
+				Integer n = uses.get(key);
+				uses.put(key, n == null ? 1 : n + 1);
+				if (seen.put(key, true) != null) return; // counted in definition
+			}
+			for (Expression child : children(c))
+				use(child, seen);
+		}
+
+		/**
+		 * Declares the locals of the subexpressions that are used more than
+		 * once, subexpressions first.
+		 * @return this
+		 */
+		Subexpressions hoist(StringWriter w) {
+			Map<String, Boolean> seen = new HashMap<String, Boolean>();
+			for (Expression e : roots)
+				use(e, seen);
+			w.options.hoisted = this;
+			for (Map.Entry<String, Expression> e : first.entrySet()) {
+				Integer n = uses.get(e.getKey());
+				if (n == null || n < 2) continue;
+				String local = "__cse"+ (outer == null ? "" : "l") + hoisted++;
+				w.appendPrefix();
+				w.append("const __auto_type "+ local +" = +");
+				generateExpression(w, e.getValue(), state);
+				w.append(";");
+				w.appendPostfix();
+				locals.put(e.getKey(), local);
+				used += n;
+			}
+			return this;
+		}
+
+		/**
+		 * @return the local that holds e, or null
+		 */
+		String getLocal(Expression e, StringWriter w, LTSminPointer state) {
+			if (!state.getName().equals(this.state.getName())) return null;
+			Expression c = candidate(e);
+			if (c == null) return null;
+			String key = key(c);
+			for (Subexpressions s = this; s != null; s = s.outer) {
+				String local = s.locals.get(key);
+				if (local != null) return local;
+			}
+			return null;
+		}
+
+		int size() {
+			return hoisted;
+		}
+
+		int getUses() {
+			return used;
+		}
+	}
+
 	private static void generateMaybeGuardText(StringWriter w, StringWriter w2, LTSminModel model, int g) {
 		GuardInfo gm = model.getGuardInfo();
 		
@@ -2125,64 +4146,34 @@ public class LTSminPrinter {
 	 * Model independent.
 	 */
 	private static void generateNativeTypes(StringWriter w) {
-		w.appendLine("typedef union ", TYPE_BOOL," {");
-		w.indent();
-		w.appendLine("int pad;");
-		w.appendLine("unsigned int var:1;");
-		w.outdent();
-		w.appendLine("} ",TYPE_BOOL,";");
-		w.appendLine("");
-
-		w.appendLine("typedef union ", TYPE_INT8," {");
-		w.indent();
-		w.appendLine("int pad;");
-		w.appendLine("char var;");
-		w.outdent();
-		w.appendLine("} ",TYPE_INT8,";");
-		w.appendLine("");
-
-		w.appendLine("typedef union ",TYPE_INT16," {");
-		w.indent();
-		w.appendLine("int pad;");
-		w.appendLine("short var;");
-		w.outdent();
-		w.appendLine("} ",TYPE_INT16,";");
-		w.appendLine("");
-
-		w.appendLine("typedef union ",TYPE_INT32," {");
-		w.indent();
-		w.appendLine("int pad;");
-		w.appendLine("int var;");
-		w.outdent();
-		w.appendLine("} ",TYPE_INT32,";");
-		w.appendLine("");
-
-		w.appendLine("typedef union ",TYPE_UINT8," {");
-		w.indent();
-		w.appendLine("int pad;");
-		w.appendLine("unsigned char var;");
-		w.outdent();
-		w.appendLine("} ",TYPE_UINT8,";");
-		w.appendLine("");
-
-		w.appendLine("typedef union ",TYPE_UINT16," {");
-		w.indent();
-		w.appendLine("int pad;");
-		w.appendLine("unsigned short var;");
-		w.outdent();
-		w.appendLine("} ",TYPE_UINT16,";");
+		generateNativeType(w, TYPE_BOOL, "unsigned int var:1;", "unsigned char var:1;");
+		generateNativeType(w, TYPE_INT8, "char var;", "char var;");
+		generateNativeType(w, TYPE_INT16, "short var;", "short var;");
+		generateNativeType(w, TYPE_INT32, "int var;", null);
+		generateNativeType(w, TYPE_UINT8, "unsigned char var;", "unsigned char var;");
+		generateNativeType(w, TYPE_UINT16, "unsigned short var;", "unsigned short var;");
+		generateNativeType(w, TYPE_UINT32, "unsigned int var;", null);
+
+		for (String t : LTSminTypeNative.getTypes().keySet())
+			w.appendLine("static "+ t +" "+ SCRATCH_VARIABLE +"_"+ t +";");
 		w.appendLine("");
+	}
 
-		w.appendLine("typedef union ",TYPE_UINT32," {");
+	/**
+	 * A native type is a union of its value with an int, so that it fills a
+	 * slot. In a packed state vector, a narrow type holds its value only, so
+	 * that the C compiler lays it out like LTSminStateVector.pack does.
+	 */
+	private static void generateNativeType(StringWriter w, LTSminTypeNative type,
+	                                       String var, String packed) {
+		boolean pack = w.options.packed_state && packed != null;
+		w.appendLine("typedef ", pack ? "struct " : "union ", type," {");
 		w.indent();
-		w.appendLine("int pad;");
-		w.appendLine("unsigned int var;");
+		if (!pack)
+			w.appendLine("int pad;");
+		w.appendLine(pack ? packed : var);
 		w.outdent();
-		w.appendLine("} ",TYPE_UINT32,";");
-		w.appendLine("");
-
-		for (String t : LTSminTypeNative.types.keySet())
-			w.appendLine("static "+ t +" "+ SCRATCH_VARIABLE +"_"+ t +";");
+		w.appendLine("} ",type,";");
 		w.appendLine("");
 	}
 
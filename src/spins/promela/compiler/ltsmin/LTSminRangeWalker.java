@@ -0,0 +1,856 @@
+package spins.promela.compiler.ltsmin;
+
+import static spins.promela.compiler.Specification._NR_PR;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+
+import spins.promela.compiler.ProcInstance;
+import spins.promela.compiler.Specification;
+import spins.promela.compiler.actions.Action;
+import spins.promela.compiler.actions.AssertAction;
+import spins.promela.compiler.actions.AssignAction;
+import spins.promela.compiler.actions.BreakAction;
+import spins.promela.compiler.actions.ChannelReadAction;
+import spins.promela.compiler.actions.ChannelSendAction;
+import spins.promela.compiler.actions.ElseAction;
+import spins.promela.compiler.actions.ExprAction;
+import spins.promela.compiler.actions.GotoAction;
+import spins.promela.compiler.actions.LabelAction;
+import spins.promela.compiler.actions.OptionAction;
+import spins.promela.compiler.actions.PrintAction;
+import spins.promela.compiler.actions.Sequence;
+import spins.promela.compiler.automaton.ElseTransition;
+import spins.promela.compiler.automaton.State;
+import spins.promela.compiler.automaton.Transition;
+import spins.promela.compiler.expression.AritmicExpression;
+import spins.promela.compiler.expression.BooleanExpression;
+import spins.promela.compiler.expression.ChannelLengthExpression;
+import spins.promela.compiler.expression.ChannelOperation;
+import spins.promela.compiler.expression.ChannelReadExpression;
+import spins.promela.compiler.expression.CompareExpression;
+import spins.promela.compiler.expression.ConstantExpression;
+import spins.promela.compiler.expression.EvalExpression;
+import spins.promela.compiler.expression.Expression;
+import spins.promela.compiler.expression.Identifier;
+import spins.promela.compiler.expression.RunExpression;
+import spins.promela.compiler.expression.TimeoutExpression;
+import spins.promela.compiler.ltsmin.state.LTSminRange;
+import spins.promela.compiler.ltsmin.state.LTSminTypeNative;
+import spins.promela.compiler.ltsmin.util.LTSminDebug;
+import spins.promela.compiler.ltsmin.util.LTSminDebug.MessageKind;
+import spins.promela.compiler.ltsmin.util.LTSminProgress;
+import spins.promela.compiler.parser.ParseException;
+import spins.promela.compiler.parser.PromelaConstants;
+import spins.promela.compiler.variable.ChannelType;
+import spins.promela.compiler.variable.ChannelVariable;
+import spins.promela.compiler.variable.CustomVariableType;
+import spins.promela.compiler.variable.Variable;
+
+/**
+ * Infers the value ranges of the variables with a static interval analysis
+ * over the assignments and guards in the automata of the processes.
+ *
+ * Local variables that are only written by their own process are analysed
+ * flow-sensitively: every state of the automaton has a range for each of
+ * them, which is refined by the guards of the transitions. Globals, locals
+ * written by other processes (remote references) and the fields of channel
+ * messages have one range for the whole specification. Arguments of run
+ * expressions flow into the initial ranges of the started process. A range
+ * that keeps growing is widened to the constants of the specification, or
+ * to the range of the declared type.
+ *
+ * The analysis is repeated until the ranges are stable, since processes
+ * read the ranges written by others.
+ */
+public class LTSminRangeWalker {
+
+	/** The values of an expression that is not analysed: any int or unsigned */
+	static final LTSminRange TOP = new LTSminRange(Integer.MIN_VALUE, 0xFFFFFFFFL);
+	static final LTSminRange BOOL = new LTSminRange(0, 1);
+
+	// a range that grew this often is widened
+	static final int WIDEN_AFTER = 3;
+
+	public static Map<Variable, LTSminRange> walkSpecification(Specification spec,
+															   LTSminDebug debug) {
+		debug.say("Inferring value ranges ...");
+		debug.say_indent++;
+		LTSminProgress report = new LTSminProgress(debug).startTimer();
+
+		LTSminRangeWalker walker = new LTSminRangeWalker(spec);
+		int iterations = walker.walk();
+		Map<Variable, LTSminRange> ranges = walker.getRanges();
+		Set<String> lines = new TreeSet<String>();
+		for (Entry<Variable, LTSminRange> e : ranges.entrySet()) {
+			Variable v = e.getKey();
+			String owner = null == v.getOwner() ? "" : v.getOwner().getName() +".";
+			lines.add(owner + v.getName() +" in "+ e.getValue());
+		}
+		for (String line : lines)
+			debug.say(MessageKind.DEBUG, line);
+
+		debug.say_indent--;
+		debug.say("Inferring value ranges done (%s sec, %d iterations)",
+				  report.stopTimer().sec(), iterations);
+		debug.say("");
+		return ranges;
+	}
+
+	/**
+	 * Ranges of variables, which count how often each range grew.
+	 */
+	private class Ranges {
+		final Map<Variable, LTSminRange> values = new IdentityHashMap<Variable, LTSminRange>();
+		final Map<Variable, Integer> grown = new IdentityHashMap<Variable, Integer>();
+
+		LTSminRange get(Variable v) {
+			return values.get(v);
+		}
+
+		void put(Variable v, LTSminRange r) {
+			values.put(v, r);
+		}
+
+		/**
+		 * Joins r into the range of v, and widens the range if it grew too
+		 * often.
+		 * @return whether the range of v grew
+		 */
+		boolean join(Variable v, LTSminRange r) {
+			LTSminRange old = values.get(v);
+			if (null == old) {
+				values.put(v, r);
+				return true;
+			}
+			LTSminRange joined = old.join(r);
+			if (joined.equals(old))
+				return false;
+			Integer n = grown.get(v);
+			n = null == n ? 1 : n + 1;
+			grown.put(v, n);
+			values.put(v, n > WIDEN_AFTER ? widen(v, joined) : joined);
+			return true;
+		}
+
+		boolean join(Ranges r) {
+			boolean changed = false;
+			for (Entry<Variable, LTSminRange> e : r.values.entrySet())
+				changed |= join(e.getKey(), e.getValue());
+			return changed;
+		}
+
+		Ranges copy() {
+			Ranges r = new Ranges();
+			r.values.putAll(values);
+			return r;
+		}
+	}
+
+	/**
+	 * The ranges during the execution of one transition of process p: its
+	 * own locals and the globals that it refined or wrote.
+	 */
+	private class Frame {
+		final ProcInstance p;
+		Ranges locals;
+		Ranges globals = new Ranges();
+		Set<Variable> written = Collections.newSetFromMap(new IdentityHashMap<Variable, Boolean>());
+		boolean dead = false;
+
+		Frame(ProcInstance p, Ranges locals) {
+			this.p = p;
+			this.locals = locals.copy();
+		}
+
+		LTSminRange get(Variable v) {
+			LTSminRange r;
+			if (local.get(v) == p) {
+				r = locals.get(v);
+			} else if (null == (r = globals.get(v))) {
+				r = local.containsKey(v) ? summary.get(v) : G.get(v);
+			}
+			if (null != r) return r;
+			try {
+				return new LTSminRange(v.getConstantValue());
+			} catch (ParseException e) {
+				return declared(v);
+			}
+		}
+
+		void set(Variable v, LTSminRange r) {
+			if (!analysed(v)) return;
+			r = clip(v, r);
+			if (v.getArraySize() > -1) // any element
+				r = get(v).join(r);
+			if (local.get(v) == p) {
+				locals.put(v, r);
+			} else {
+				globals.put(v, r);
+				written.add(v);
+			}
+		}
+
+		void restrict(Variable v, LTSminRange r) {
+			if (r.isEmpty()) {
+				dead = true;
+			} else if (local.get(v) == p) {
+				locals.put(v, r);
+			} else {
+				globals.put(v, r);
+			}
+		}
+
+		Frame copy() {
+			Frame f = new Frame(p, locals);
+			f.globals = globals.copy();
+			f.written.addAll(written);
+			f.dead = dead;
+			return f;
+		}
+
+		boolean join(Frame f) {
+			boolean changed = locals.join(f.locals);
+			for (Entry<Variable, LTSminRange> e : f.globals.values.entrySet()) {
+				Variable v = e.getKey();
+				if (null == globals.get(v))
+					globals.put(v, get(v));
+				changed |= globals.join(v, e.getValue());
+			}
+			written.addAll(f.written);
+			return changed;
+		}
+
+		void become(Frame f) {
+			locals = f.locals;
+			globals = f.globals;
+			written = f.written;
+			dead = f.dead;
+		}
+
+		void commit() {
+			for (Variable v : written) {
+				if (local.containsKey(v))
+					throw new AssertionError("Unexpected write to the local "+ v +" of "+ local.get(v));
+				changed |= G.join(v, globals.get(v));
+			}
+		}
+	}
+
+	private final Specification spec;
+	private final List<ProcInstance> processes = new ArrayList<ProcInstance>();
+	/** The flow-sensitive locals and their processes */
+	private final Map<Variable, ProcInstance> local = new IdentityHashMap<Variable, ProcInstance>();
+	/** The ranges of globals, other locals, pcs and channel message fields */
+	private final Ranges G = new Ranges();
+	/** The ranges of the flow-sensitive locals over all states */
+	private final Ranges summary = new Ranges();
+	/** The ranges of the locals of the processes when they start */
+	private final Map<ProcInstance, Ranges> entry = new HashMap<ProcInstance, Ranges>();
+	/** Thresholds for widening */
+	private final TreeSet<Long> constants = new TreeSet<Long>();
+	private boolean changed = false;
+	private boolean unbound = false;
+
+	private LTSminRangeWalker(Specification spec) {
+		this.spec = spec;
+	}
+
+	private int walk() {
+		for (ProcInstance p : spec)
+			processes.add(p);
+		if (spec.getNever() instanceof ProcInstance)
+			processes.add((ProcInstance)spec.getNever());
+
+		Set<Variable> foreign = Collections.newSetFromMap(new IdentityHashMap<Variable, Boolean>());
+		for (ProcInstance p : processes) {
+			for (State s : p.getAutomaton()) {
+				for (Transition t : s.output)
+					findWrites(p, t, foreign);
+			}
+		}
+
+		for (Variable v : spec.getVariableStore().getVariables()) {
+			if (analysed(v))
+				G.put(v, initial(v));
+		}
+		for (ProcInstance p : processes) {
+			Ranges start = new Ranges();
+			for (Variable v : p.getVariables()) {
+				if (!analysed(v) || v == p.getPC()) continue;
+				if (foreign.contains(v)) {
+					G.put(v, initial(v));
+				} else {
+					local.put(v, p);
+					start.put(v, initial(v));
+					summary.put(v, initial(v));
+				}
+			}
+			entry.put(p, start);
+			int max = 0;
+			for (State s : p.getAutomaton())
+				max = Math.max(max, s.getStateId());
+			G.put(p.getPC(), new LTSminRange(-1, max));
+		}
+		G.put(_NR_PR, new LTSminRange(0, spec.instances()));
+
+		int iterations = 0;
+		do {
+			changed = false;
+			iterations++;
+			for (ProcInstance p : processes)
+				walkProcess(p);
+		} while (changed);
+		return iterations;
+	}
+
+	/**
+	 * @return the ranges, where the instances of a proctype share the ranges
+	 * of their locals, since they share the layout of their state
+	 */
+	private Map<Variable, LTSminRange> getRanges() {
+		Map<Variable, LTSminRange> ranges = new IdentityHashMap<Variable, LTSminRange>();
+		ranges.putAll(G.values);
+		ranges.putAll(summary.values);
+		Map<String, LTSminRange> types = new HashMap<String, LTSminRange>();
+		for (ProcInstance p : processes) {
+			for (Variable v : p.getVariables()) {
+				LTSminRange r = ranges.get(v);
+				if (null == r) continue;
+				String key = p.getTypeName() +"."+ v.getName();
+				LTSminRange other = types.get(key);
+				types.put(key, null == other ? r : other.join(r));
+			}
+		}
+		for (ProcInstance p : processes) {
+			for (Variable v : p.getVariables()) {
+				if (ranges.containsKey(v))
+					ranges.put(v, types.get(p.getTypeName() +"."+ v.getName()));
+			}
+		}
+		return ranges;
+	}
+
+	private void walkProcess(ProcInstance p) {
+		Map<State, Ranges> at = new HashMap<State, Ranges>();
+		Set<State> work = new LinkedHashSet<State>();
+		State start = p.getAutomaton().getStartState();
+		at.put(start, entry.get(p).copy());
+		work.add(start);
+		while (!work.isEmpty()) {
+			Iterator<State> it = work.iterator();
+			State s = it.next();
+			it.remove();
+			for (Transition t : s.output) {
+				Frame f = new Frame(p, at.get(s));
+				guard(f, t);
+				if (f.dead) continue;
+				walkActions(f, t);
+				f.commit();
+				State to = t.getTo();
+				if (null == to) { // the process may be restarted
+					changed |= entry.get(p).join(f.locals);
+				} else if (null == at.get(to)) {
+					at.put(to, f.locals);
+					work.add(to);
+				} else if (at.get(to).join(f.locals)) {
+					work.add(to);
+				}
+			}
+		}
+		for (Ranges r : at.values())
+			changed |= summary.join(r);
+	}
+
+	/**
+	 * Refines the frame with the guard of the transition, or with the
+	 * negated guards of the other transitions for an else transition.
+	 */
+	private void guard(Frame f, Transition t) {
+		if (t instanceof ElseTransition) {
+			for (Transition o : t.getFrom().output) {
+				if (o == t || o.getActionCount() == 0) continue;
+				Expression g = guard(o.getAction(0));
+				if (null != g) refine(f, g, false);
+			}
+		} else if (t.getActionCount() > 0) {
+			Expression g = guard(t.getAction(0));
+			if (null != g) refine(f, g, true);
+		}
+	}
+
+	private static Expression guard(Action a) {
+		if (!(a instanceof ExprAction)) return null;
+		Expression e = ((ExprAction)a).getExpression();
+		return null == e.getSideEffect() ? e : null;
+	}
+
+	private void walkActions(Frame f, Iterable<Action> actions) {
+		if (jumps(actions)) {
+			// gotos in a d_step: any action in any order
+			List<Action> all = new ArrayList<Action>();
+			flatten(actions, all);
+			boolean grew = true;
+			while (grew) {
+				grew = false;
+				for (Action a : all) {
+					Frame g = f.copy();
+					walkAction(g, a);
+					grew |= f.join(g);
+				}
+			}
+		} else {
+			for (Action a : actions)
+				walkAction(f, a);
+		}
+	}
+
+	private void walkAction(Frame f, Action a) {
+		if (a instanceof AssignAction) {
+			AssignAction as = (AssignAction)a;
+			Identifier id = as.getIdentifier();
+			LTSminRange value;
+			switch (as.getToken().kind) {
+				case PromelaConstants.ASSIGN:
+					value = eval(f, as.getExpr());
+					break;
+				case PromelaConstants.INCR:
+					value = null == id.getSub() ? add(f.get(id.getVariable()), 1) : TOP;
+					break;
+				case PromelaConstants.DECR:
+					value = null == id.getSub() ? add(f.get(id.getVariable()), -1) : TOP;
+					break;
+				default:
+					throw new AssertionError("unknown assignment type");
+			}
+			write(f, id, value);
+		} else if (a instanceof ExprAction) {
+			eval(f, ((ExprAction)a).getExpression());
+		} else if (a instanceof ChannelSendAction) {
+			ChannelSendAction csa = (ChannelSendAction)a;
+			ChannelType ct = channel(csa.getIdentifier());
+			List<Expression> exprs = csa.getExprs();
+			for (int i = 0; i < exprs.size(); i++) {
+				LTSminRange r = eval(f, exprs.get(i));
+				Variable m = message(ct, i);
+				if (null != m)
+					changed |= G.join(m, clip(m, r));
+			}
+		} else if (a instanceof ChannelReadAction) {
+			ChannelReadAction cra = (ChannelReadAction)a;
+			ChannelType ct = channel(cra.getIdentifier());
+			List<Expression> exprs = cra.getExprs();
+			for (int i = 0; i < exprs.size(); i++) {
+				Expression e = exprs.get(i);
+				if (!(e instanceof Identifier)) { // matched, not written
+					eval(f, e);
+					continue;
+				}
+				Variable m = message(ct, i);
+				write(f, (Identifier)e, null == m || unbound ? TOP : G.get(m));
+			}
+		} else if (a instanceof OptionAction) {
+			OptionAction oa = (OptionAction)a;
+			Frame all = f.copy();
+			boolean grew = true;
+			while (grew) {
+				grew = false;
+				Frame from = oa.loops() ? all.copy() : f;
+				for (Sequence seq : oa) {
+					Frame g = from.copy();
+					if (seq.getActions().isEmpty()) continue;
+					Expression guard = guard(seq.getActions().get(0));
+					if (null != guard) refine(g, guard, true);
+					if (g.dead) continue;
+					walkActions(g, seq);
+					grew |= all.join(g);
+				}
+				if (!oa.loops()) break;
+			}
+			f.become(all);
+		} else if (a instanceof Sequence) {
+			walkActions(f, (Sequence)a);
+		} else if (a instanceof AssertAction || a instanceof PrintAction ||
+				   a instanceof BreakAction || a instanceof ElseAction ||
+				   a instanceof GotoAction || a instanceof LabelAction) {
+			// no values
+		} else {
+			throw new AssertionError("LTSminRangeWalker: Not yet implemented: "+ a.getClass().getName());
+		}
+	}
+
+	private void write(Frame f, Identifier id, LTSminRange value) {
+		if (null != id.getSub()) return; // struct fields keep their declared type
+		f.set(id.getVariable(), value);
+	}
+
+	private void run(Frame f, RunExpression re) {
+		for (ProcInstance target : re.getInstances()) {
+			Iterator<Expression> eit = re.getExpressions().iterator();
+			for (Variable v : target.getArguments()) {
+				if (!eit.hasNext()) break;
+				Expression e = eit.next();
+				if (v.getType() instanceof ChannelType || v.isStatic()) continue;
+				start(v, eval(f, e));
+			}
+			start(target.getPID(), f.get(_NR_PR));
+			Frame t = new Frame(target, entry.get(target));
+			for (Action a : re.getInitActions()) {
+				AssignAction as = (AssignAction)a;
+				start(as.getIdentifier().getVariable(), eval(t, as.getExpr()));
+			}
+		}
+	}
+
+	private void start(Variable v, LTSminRange r) {
+		if (!analysed(v)) return;
+		r = clip(v, r);
+		ProcInstance p = local.get(v);
+		changed |= null == p ? G.join(v, r) : entry.get(p).join(v, r);
+	}
+
+	private LTSminRange eval(Frame f, Expression e) {
+		if (e instanceof Identifier) {
+			Identifier id = (Identifier)e;
+			if (null != id.getArrayExpr())
+				eval(f, id.getArrayExpr());
+			if (null != id.getSub()) {
+				Identifier leaf = id;
+				while (null != leaf.getSub()) leaf = leaf.getSub();
+				return declared(leaf.getVariable());
+			}
+			if (isUnsigned(id.getVariable())) // C compares and computes unsigned
+				return TOP;
+			return f.get(id.getVariable());
+		} else if (e instanceof ConstantExpression) {
+			long c;
+			try {
+				c = e.getConstantValue();
+			} catch (ParseException pe) {
+				throw new AssertionError(pe);
+			}
+			constants.add(c - 1);
+			constants.add(c);
+			constants.add(c + 1);
+			return new LTSminRange(c);
+		} else if (e instanceof AritmicExpression) {
+			return arithmetic(f, (AritmicExpression)e);
+		} else if (e instanceof BooleanExpression) {
+			BooleanExpression be = (BooleanExpression)e;
+			eval(f, be.getExpr1());
+			if (null != be.getExpr2()) eval(f, be.getExpr2());
+			return BOOL;
+		} else if (e instanceof CompareExpression) {
+			CompareExpression ce = (CompareExpression)e;
+			eval(f, ce.getExpr1());
+			eval(f, ce.getExpr2());
+			return BOOL;
+		} else if (e instanceof ChannelOperation || e instanceof ChannelReadExpression ||
+				   e instanceof TimeoutExpression) {
+			return BOOL;
+		} else if (e instanceof ChannelLengthExpression) {
+			Expression c = ((ChannelLengthExpression)e).getExpression();
+			if (c instanceof Identifier) {
+				int size = channel((Identifier)c).getBufferSize();
+				if (size >= 0) return new LTSminRange(0, size);
+			}
+			return TOP;
+		} else if (e instanceof EvalExpression) {
+			return eval(f, ((EvalExpression)e).getExpression());
+		} else if (e instanceof RunExpression) {
+			run(f, (RunExpression)e);
+			return TOP;
+		}
+		return TOP; // remote references
+	}
+
+	private LTSminRange arithmetic(Frame f, AritmicExpression ae) {
+		int kind = ae.getToken().kind;
+		if (kind == PromelaConstants.RARROW) {
+			eval(f, ae.getExpr1());
+			return eval(f, ae.getExpr2()).join(eval(f, ae.getExpr3()));
+		}
+		LTSminRange a = eval(f, ae.getExpr1());
+		LTSminRange b = null == ae.getExpr2() ? null : eval(f, ae.getExpr2());
+		if (!LTSminRange.INT.contains(a) || (null != b && !LTSminRange.INT.contains(b)))
+			return TOP;
+		LTSminRange r = TOP;
+		if (null == b) {
+			switch (kind) {
+				case PromelaConstants.MINUS:
+					r = new LTSminRange(-a.getMax(), -a.getMin());
+					break;
+				case PromelaConstants.BNOT:
+					r = new LTSminRange(-a.getMax() - 1, -a.getMin() - 1);
+					break;
+			}
+			return LTSminRange.INT.contains(r) ? r : TOP;
+		}
+		switch (kind) {
+			case PromelaConstants.PLUS:
+				r = new LTSminRange(a.getMin() + b.getMin(), a.getMax() + b.getMax());
+				break;
+			case PromelaConstants.MINUS:
+				r = new LTSminRange(a.getMin() - b.getMax(), a.getMax() - b.getMin());
+				break;
+			case PromelaConstants.TIMES:
+				r = corners(a, b, false);
+				break;
+			case PromelaConstants.DIVIDE:
+				if (b.getMin() > 0 || b.getMax() < 0) {
+					r = corners(a, b, true);
+				} else {
+					long m = Math.max(Math.abs(a.getMin()), Math.abs(a.getMax()));
+					r = new LTSminRange(-m, m);
+				}
+				break;
+			case PromelaConstants.MODULO: // abs(a % b)
+				long m = Math.max(Math.abs(b.getMin()), Math.abs(b.getMax())) - 1;
+				if (m >= 0)
+					r = new LTSminRange(0, Math.min(m, Math.max(Math.abs(a.getMin()), Math.abs(a.getMax()))));
+				break;
+			case PromelaConstants.BAND:
+				if (a.getMin() >= 0 && b.getMin() >= 0)
+					r = new LTSminRange(0, Math.min(a.getMax(), b.getMax()));
+				else if (a.getMin() >= 0)
+					r = new LTSminRange(0, a.getMax());
+				else if (b.getMin() >= 0)
+					r = new LTSminRange(0, b.getMax());
+				break;
+			case PromelaConstants.BOR:
+			case PromelaConstants.XOR:
+				if (a.getMin() >= 0 && b.getMin() >= 0) {
+					long bits = Long.highestOneBit(Math.max(a.getMax(), b.getMax())) * 2 - 1;
+					long min = kind == PromelaConstants.BOR ? Math.max(a.getMin(), b.getMin()) : 0;
+					r = new LTSminRange(min, Math.max(bits, 0));
+				}
+				break;
+			case PromelaConstants.LSHIFT:
+				if (a.getMin() >= 0 && b.getMin() >= 0 && b.getMax() < 31)
+					r = new LTSminRange(a.getMin() << b.getMin(), a.getMax() << b.getMax());
+				break;
+			case PromelaConstants.RSHIFT:
+				if (a.getMin() >= 0 && b.getMin() >= 0)
+					r = new LTSminRange(b.getMax() > 31 ? 0 : a.getMin() >> b.getMax(),
+										a.getMax() >> Math.min(b.getMin(), 63));
+				break;
+		}
+		return LTSminRange.INT.contains(r) ? r : TOP;
+	}
+
+	private static LTSminRange corners(LTSminRange a, LTSminRange b, boolean divide) {
+		long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+		for (long x : new long[] {a.getMin(), a.getMax()}) {
+			for (long y : new long[] {b.getMin(), b.getMax()}) {
+				long z = divide ? x / y : x * y;
+				min = Math.min(min, z);
+				max = Math.max(max, z);
+			}
+		}
+		return new LTSminRange(min, max);
+	}
+
+	private static LTSminRange add(LTSminRange r, long c) {
+		if (!LTSminRange.INT.contains(r)) return TOP;
+		return new LTSminRange(r.getMin() + c, r.getMax() + c);
+	}
+
+	/**
+	 * Restricts the ranges of the frame to the states in which the expression
+	 * has the given truth value. An empty range kills the frame.
+	 */
+	private void refine(Frame f, Expression e, boolean truth) {
+		if (e instanceof BooleanExpression) {
+			BooleanExpression be = (BooleanExpression)e;
+			int kind = be.getToken().kind;
+			if (kind == PromelaConstants.LNOT) {
+				refine(f, be.getExpr1(), !truth);
+			} else if ((kind == PromelaConstants.LAND && truth) ||
+					   (kind == PromelaConstants.LOR && !truth)) {
+				refine(f, be.getExpr1(), truth);
+				refine(f, be.getExpr2(), truth);
+			}
+		} else if (e instanceof CompareExpression) {
+			CompareExpression ce = (CompareExpression)e;
+			int kind = truth ? ce.getToken().kind : negate(ce.getToken().kind);
+			refine(f, ce.getExpr1(), kind, ce.getExpr2());
+			refine(f, ce.getExpr2(), flip(kind), ce.getExpr1());
+		} else if (e instanceof Identifier) {
+			Expression zero = new ConstantExpression(e.getToken(), 0);
+			refine(f, e, truth ? PromelaConstants.NEQ : PromelaConstants.EQ, zero);
+		} else {
+			eval(f, e); // collect the constants
+		}
+	}
+
+	private void refine(Frame f, Expression lhs, int kind, Expression rhs) {
+		LTSminRange y = eval(f, rhs);
+		if (!(lhs instanceof Identifier)) return;
+		Identifier id = (Identifier)lhs;
+		Variable v = id.getVariable();
+		if (null != id.getSub() || v.getArraySize() > -1 || !analysed(v))
+			return;
+		LTSminRange x = eval(f, id);
+		if (!LTSminRange.INT.contains(x) || !LTSminRange.INT.contains(y))
+			return;
+		long min = Integer.MIN_VALUE, max = Integer.MAX_VALUE;
+		switch (kind) {
+			case PromelaConstants.LT:	max = y.getMax() - 1; break;
+			case PromelaConstants.LTE:	max = y.getMax(); break;
+			case PromelaConstants.GT:	min = y.getMin() + 1; break;
+			case PromelaConstants.GTE:	min = y.getMin(); break;
+			case PromelaConstants.EQ:	min = y.getMin(); max = y.getMax(); break;
+			case PromelaConstants.NEQ:
+				if (y.getMin() != y.getMax()) return;
+				if (x.getMin() == y.getMin()) min = y.getMin() + 1;
+				if (x.getMax() == y.getMax()) max = y.getMax() - 1;
+				break;
+			default: return;
+		}
+		f.restrict(v, x.meet(new LTSminRange(min, max)));
+	}
+
+	private static int negate(int kind) {
+		switch (kind) {
+			case PromelaConstants.LT:	return PromelaConstants.GTE;
+			case PromelaConstants.LTE:	return PromelaConstants.GT;
+			case PromelaConstants.GT:	return PromelaConstants.LTE;
+			case PromelaConstants.GTE:	return PromelaConstants.LT;
+			case PromelaConstants.EQ:	return PromelaConstants.NEQ;
+			case PromelaConstants.NEQ:	return PromelaConstants.EQ;
+			default: return -1;
+		}
+	}
+
+	private static int flip(int kind) {
+		switch (kind) {
+			case PromelaConstants.LT:	return PromelaConstants.GT;
+			case PromelaConstants.LTE:	return PromelaConstants.GTE;
+			case PromelaConstants.GT:	return PromelaConstants.LT;
+			case PromelaConstants.GTE:	return PromelaConstants.LTE;
+			default: return kind;
+		}
+	}
+
+	/**
+	 * @return the smallest constant (or declared bound) around the range
+	 */
+	private LTSminRange widen(Variable v, LTSminRange r) {
+		LTSminRange type = declared(v);
+		Long lo = constants.floor(r.getMin());
+		Long hi = constants.ceiling(r.getMax());
+		long min = null == lo || lo < type.getMin() ? type.getMin() : lo;
+		long max = null == hi || hi > type.getMax() ? type.getMax() : hi;
+		return new LTSminRange(Math.min(min, r.getMin()), Math.max(max, r.getMax()));
+	}
+
+	private static ChannelType channel(Identifier id) {
+		return ((ChannelVariable)id.getVariable()).getType();
+	}
+
+	/**
+	 * @return the variable of field i of the messages in the channel, or null
+	 */
+	private Variable message(ChannelType ct, int i) {
+		List<Variable> fields = ct.getVariableStore().getVariables();
+		if (ct.getBufferSize() < 0 || i >= fields.size()) {
+			changed |= !unbound;
+			unbound = true;
+			return null;
+		}
+		Variable m = fields.get(i);
+		if (!analysed(m)) return null;
+		if (null == G.get(m))
+			G.put(m, new LTSminRange(0)); // empty buffer
+		return m;
+	}
+
+	private void findWrites(ProcInstance p, Iterable<Action> actions, Set<Variable> foreign) {
+		for (Action a : actions) {
+			if (a instanceof AssignAction) {
+				foreign(p, ((AssignAction)a).getIdentifier(), foreign);
+			} else if (a instanceof ChannelReadAction) {
+				for (Expression e : ((ChannelReadAction)a).getExprs()) {
+					if (e instanceof Identifier)
+						foreign(p, (Identifier)e, foreign);
+				}
+			} else if (a instanceof OptionAction) {
+				for (Sequence seq : (OptionAction)a)
+					findWrites(p, seq, foreign);
+			} else if (a instanceof Sequence) {
+				findWrites(p, (Sequence)a, foreign);
+			}
+		}
+	}
+
+	private static void foreign(ProcInstance p, Identifier id, Set<Variable> foreign) {
+		Variable v = id.getVariable();
+		if (null != v.getOwner() && v.getOwner() != p)
+			foreign.add(v);
+	}
+
+	private static boolean jumps(Iterable<Action> actions) {
+		for (Action a : actions) {
+			if (a instanceof GotoAction || a instanceof LabelAction)
+				return true;
+			if (a instanceof OptionAction) {
+				for (Sequence seq : (OptionAction)a) {
+					if (jumps(seq)) return true;
+				}
+			} else if (a instanceof Sequence && jumps((Sequence)a)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void flatten(Iterable<Action> actions, List<Action> all) {
+		for (Action a : actions) {
+			if (a instanceof OptionAction) {
+				for (Sequence seq : (OptionAction)a)
+					flatten(seq, all);
+			} else if (a instanceof Sequence) {
+				flatten((Sequence)a, all);
+			} else {
+				all.add(a);
+			}
+		}
+	}
+
+	private static boolean analysed(Variable v) {
+		return !(v.getType() instanceof ChannelType) &&
+			   !(v.getType() instanceof CustomVariableType);
+	}
+
+	private static boolean isUnsigned(Variable v) {
+		return analysed(v) && LTSminTypeNative.get(v) == LTSminTypeNative.TYPE_UINT32;
+	}
+
+	private static LTSminRange declared(Variable v) {
+		return analysed(v) ? LTSminTypeNative.get(v).getRange() : TOP;
+	}
+
+	private static LTSminRange clip(Variable v, LTSminRange r) {
+		LTSminRange d = declared(v);
+		return d.contains(r) ? r : d;
+	}
+
+	private static LTSminRange initial(Variable v) {
+		if (null == v.getInitExpr())
+			return new LTSminRange(0);
+		try {
+			return clip(v, new LTSminRange(v.getInitExpr().getConstantValue()));
+		} catch (ParseException e) {
+			return declared(v);
+		}
+	}
+}
@@ -92,12 +92,14 @@ import spins.promela.compiler.ltsmin.matrix.LTSminGuardNand;
 import spins.promela.compiler.ltsmin.matrix.LTSminGuardNor;
 import spins.promela.compiler.ltsmin.matrix.LTSminGuardOr;
 import spins.promela.compiler.ltsmin.matrix.LTSminPCGuard;
+import spins.promela.compiler.ltsmin.matrix.MatrixFile;
 import spins.promela.compiler.ltsmin.model.LTSminModel;
 import spins.promela.compiler.ltsmin.model.LTSminState;
 import spins.promela.compiler.ltsmin.model.LTSminTransition;
 import spins.promela.compiler.ltsmin.model.ReadAction;
 import spins.promela.compiler.ltsmin.model.ResetProcessAction;
 import spins.promela.compiler.ltsmin.model.SendAction;
+import spins.promela.compiler.ltsmin.state.LTSminRange;
 import spins.promela.compiler.ltsmin.state.LTSminSlot;
 import spins.promela.compiler.ltsmin.state.LTSminVariable;
 import spins.promela.compiler.ltsmin.util.LTSminDebug;
@@ -115,6 +117,7 @@ import spins.promela.compiler.variable.ChannelVariable;
 import spins.promela.compiler.variable.CustomVariableType;
 import spins.promela.compiler.variable.Variable;
 import spins.promela.compiler.variable.VariableType;
+import spins.util.StringWriter;
 
 /**
  * Constructs the LTSminModel by walking over the SpinJa {@link Specification}.
@@ -191,6 +194,40 @@ public class LTSminTreeWalker {
         public boolean no_atomic = false;
         public boolean total = false;
         public boolean no_cpy = false;
+        public int threads = 1; // for guard matrix generation
+        public boolean packed = false; // compact matrices in the C code
+        public int split = 0; // parts of the transitions (0: one C file)
+        public boolean pc_dispatch = false; // successors by program counter
+        public boolean lazy_guards = false; // memoized on first use
+        public boolean cse = false; // common subexpressions of the labels
+        public boolean write_sets = false; // restore written slots only
+        public boolean hash = false; // incremental (Zobrist) state hashes
+        public boolean profile_counters = false; // write a TransitionProfile
+        public TransitionProfile profile = null; // order of the groups
+        public int metrics = 0; // instrumentation (1: counters, 2: timers)
+        public boolean fuse_atomic = false; // inline deterministic atomic steps
+        public boolean packed_state = false; // narrow variables share slots
+        public boolean ranges = false; // value ranges of the variables
+        public boolean short_calls = false; // short vector wrappers
+
+        // state of one code generation, kept by LTSminPrinter
+        MatrixFile matrixFile = null; // receives the matrices, or null
+        StringWriter decls = null; // the header of a split model, or null
+        LTSminPrinter.Subexpressions hoisted = null; // in the label code, or null
+
+        public String toString() {
+            return "verbose="+ verbose +" no_gm="+ no_gm +" must_write="+
+                   must_write +" cnf="+ cnf +" unless_java_semantics="+
+                   unless_java_semantics +" no_atomic="+ no_atomic +
+                   " total="+ total +" no_cpy="+ no_cpy +" packed="+ packed +
+                   " split="+ split +" pc_dispatch="+ pc_dispatch +
+                   " lazy_guards="+ lazy_guards +" cse="+ cse +
+                   " write_sets="+ write_sets +" hash="+ hash +
+                   " profile_counters="+ profile_counters +" profile="+ profile +
+                   " metrics="+ metrics +" fuse_atomic="+ fuse_atomic +
+                   " packed_state="+ packed_state +" ranges="+ ranges +
+                   " short_calls="+ short_calls;
+        }
 	}
 
 	TimeoutExpression timeout = null;
@@ -225,7 +262,10 @@ public class LTSminTreeWalker {
                   report.stopTimer().sec());
         debug.say("");
 
-        model.createStateVector(spec, debug);
+        Map<Variable, LTSminRange> ranges = null;
+        if (opts.ranges)
+            ranges = LTSminRangeWalker.walkSpecification(spec, debug);
+        model.createStateVector(spec, opts.packed_state, ranges, debug);
 		createModelLabels(model, exports, progress);
 		LTSminDMWalker.walkModel(model, debug, opts);
 		LTSminGMWalker.generateGuardInfo(model, opts, debug);
@@ -278,6 +318,14 @@ public class LTSminTreeWalker {
                 }
             }
         }
+        /* the slots that packed variables share hold plain ints */
+        for (LTSminSlot slot : model.sv) {
+            if (slot.isShared()) {
+                if (model.getType(VariableType.INT.getName()) == null)
+                    model.addType(VariableType.INT.getName());
+                break;
+            }
+        }
 
         /* Statements are exported in SPIN format with line numbers for traces */
         model.addType(STATEMENT_TYPE_NAME);
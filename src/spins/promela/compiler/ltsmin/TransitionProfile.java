@@ -0,0 +1,133 @@
+package spins.promela.compiler.ltsmin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import spins.promela.compiler.Proctype;
+import spins.promela.compiler.ltsmin.model.LTSminTransition;
+
+/**
+ * A profile of the transition groups, as written by the generated code of a
+ * model compiled with profile counters (at exit, to model.spins.prof or to
+ * the file in SPINS_PROFILE). It counts per group how often
+ * spins_get_successor_all tried it, how often its guards held and how many
+ * successors it had. The format is:
+ *
+ *   # comment
+ *   groups n
+ *   group tried enabled successors   (n lines)
+ *
+ * The printer uses it to generate the groups of the frequently enabled
+ * processes first, and to mark the guards that almost never hold as
+ * unlikely. The group numbers
+ * do not change.
+ */
+public class TransitionProfile {
+
+    public static final String SUFFIX = ".spins.prof";
+
+    /** Groups tried at least this often are profiled well enough for hints */
+    private static final long MIN_TRIED = 100;
+    /** Groups enabled in less than 1/UNLIKELY of the tries are unlikely */
+    private static final long UNLIKELY = 100;
+
+    private final long[] tried;
+    private final long[] enabled;
+    private final long[] fired;
+
+    private TransitionProfile(int groups) {
+        tried = new long[groups];
+        enabled = new long[groups];
+        fired = new long[groups];
+    }
+
+    public static TransitionProfile read(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        TransitionProfile p = null;
+        int n = 0;
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                n++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] f = line.split("\\s+");
+                if (p == null) {
+                    if (f.length != 2 || !f[0].equals("groups"))
+                        throw new IOException(file +":"+ n +": expected 'groups n'");
+                    p = new TransitionProfile(Integer.parseInt(f[1]));
+                    continue;
+                }
+                if (f.length != 4)
+                    throw new IOException(file +":"+ n +": expected 'group tried enabled successors'");
+                int t = Integer.parseInt(f[0]);
+                if (t < 0 || t >= p.getGroups())
+                    throw new IOException(file +":"+ n +": no group "+ t);
+                p.tried[t] = Long.parseLong(f[1]);
+                p.enabled[t] = Long.parseLong(f[2]);
+                p.fired[t] = Long.parseLong(f[3]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(file +":"+ n +": "+ e.getMessage());
+        } finally {
+            in.close();
+        }
+        if (p == null)
+            throw new IOException(file +": no groups");
+        return p;
+    }
+
+    public int getGroups() {
+        return tried.length;
+    }
+
+    /**
+     * @return whether the guards of the group almost never held
+     */
+    public boolean isUnlikely(int group) {
+        return tried[group] >= MIN_TRIED && enabled[group] * UNLIKELY < tried[group];
+    }
+
+    /**
+     * @return the transitions, ordered by how often the transitions of their
+     *         processes were enabled. The transitions of a process stay
+     *         together and in group order: the branches on their guards are
+     *         correlated, which the branch predictor of the CPU exploits.
+     */
+    public List<LTSminTransition> order(List<LTSminTransition> transitions) {
+        final Map<Proctype, Long> processes = new HashMap<Proctype, Long>();
+        for (LTSminTransition t : transitions) {
+            Long sum = processes.get(t.getProcess());
+            processes.put(t.getProcess(), (sum == null ? 0 : sum) + enabled[t.getGroup()]);
+        }
+        List<LTSminTransition> ordered = new ArrayList<LTSminTransition>(transitions);
+        Collections.sort(ordered, new Comparator<LTSminTransition>() {
+            public int compare(LTSminTransition a, LTSminTransition b) {
+                if (a.getProcess() == b.getProcess()) return 0;
+                long x = processes.get(a.getProcess());
+                long y = processes.get(b.getProcess());
+                if (x == y) {
+                    x = a.getProcess().getID();
+                    y = b.getProcess().getID();
+                }
+                return x > y ? -1 : (x < y ? 1 : 0);
+            }
+        });
+        return ordered;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("groups "+ getGroups());
+        for (int t = 0; t < getGroups(); t++)
+            sb.append(';').append(tried[t]).append(',').append(enabled[t]).append(',').append(fired[t]);
+        return sb.toString();
+    }
+}
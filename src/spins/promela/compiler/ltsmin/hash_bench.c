@@ -0,0 +1,176 @@
+/* Benchmark of the state hashes of models compiled with -z, see makefile.
+ *
+ * usage: hash_bench model.so [states] [rounds]
+ *
+ * Explores (breadth-first) the first states of the model, and checks for
+ * every transition that the incremental hash of spins_get_successor_all_hashed
+ * equals the full hash of spins_hash_state. Then it generates the successors
+ * of these states again, without hashing them, hashing them fully and hashing
+ * them incrementally, and reports the best time of every round.
+ */
+#include <dlfcn.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+/* as generated with -z */
+typedef struct transition_info {
+    int                *label;
+    int                 group;
+    int                 dummy;
+    uint64_t            hash;
+} transition_info_t;
+
+typedef void (*spins_cb_t) (void *arg, transition_info_t *ti, int *out, int *cpy);
+
+static int          N;
+static uint64_t   (*spins_hash_state) (int *state);
+
+static int         *states;         // the explored states, in order
+static uint64_t    *hashes;         // of the explored states
+static size_t       n, max;
+static uint64_t    *keys;           // open addressing on the hash
+static size_t      *position;
+static size_t       size;
+static size_t       successors, wrong;
+static volatile uint64_t sum;  // keeps the hashes
+
+static double
+spins_now ()
+{
+    struct timespec     t;
+    clock_gettime (CLOCK_MONOTONIC, &t);
+    return t.tv_sec + t.tv_nsec / 1e9;
+}
+
+static void
+spins_visit (int *state, uint64_t hash)
+{
+    uint64_t key = hash ? hash : 1;
+    size_t i = key & (size - 1);
+    for (; keys[i]; i = (i + 1) & (size - 1))
+        if (keys[i] == key && !memcmp (&states[position[i] * N], state, sizeof (int[N])))
+            return;
+    if (n == max)
+        return;
+    keys[i] = key;
+    position[i] = n;
+    memcpy (&states[n * N], state, sizeof (int[N]));
+    hashes[n++] = hash;
+}
+
+static void
+spins_check_cb (void *arg, transition_info_t *ti, int *out, int *cpy)
+{
+    uint64_t hash = spins_hash_state (out);
+    successors++;
+    if (ti->hash != hash) {
+        if (!wrong)
+            printf ("ERROR: wrong incremental hash in group %d\n", ti->group);
+        wrong++;
+    }
+    spins_visit (out, hash);
+}
+
+static void
+spins_none_cb (void *arg, transition_info_t *ti, int *out, int *cpy)
+{
+    sum += out[0];
+}
+
+static void
+spins_full_cb (void *arg, transition_info_t *ti, int *out, int *cpy)
+{
+    sum += spins_hash_state (out);
+}
+
+static void
+spins_incremental_cb (void *arg, transition_info_t *ti, int *out, int *cpy)
+{
+    sum += ti->hash;
+}
+
+static void *
+spins_sym (void *lib, const char *name)
+{
+    void *f = dlsym (lib, name);
+    if (f == NULL) {
+        printf ("ERROR: %s not found, compile the model with -z\n", name);
+        exit (1);
+    }
+    return f;
+}
+
+int
+main (int argc, char **argv)
+{
+    if (argc < 2) {
+        printf ("usage: hash_bench model.so [states] [rounds]\n");
+        return 1;
+    }
+    void *lib = dlopen (argv[1], RTLD_NOW | RTLD_LOCAL);
+    if (lib == NULL) {
+        printf ("ERROR: %s\n", dlerror ());
+        return 1;
+    }
+    max = argc > 2 ? atol (argv[2]) : 20000;
+    size_t rounds = argc > 3 ? atol (argv[3]) : 20;
+    int (*state_size) () = spins_sym (lib, "spins_get_state_size");
+    void (*initial) (int *) = spins_sym (lib, "spins_get_initial_state");
+    int (*all) (void *, int *, spins_cb_t, void *) =
+        spins_sym (lib, "spins_get_successor_all");
+    int (*all_hashed) (void *, int *, uint64_t, spins_cb_t, void *) =
+        spins_sym (lib, "spins_get_successor_all_hashed");
+    spins_hash_state = spins_sym (lib, "spins_hash_state");
+
+    N = state_size ();
+    for (size = 1; size < 2 * max; size <<= 1) ;
+    states = malloc (sizeof (int[max][N]));
+    hashes = malloc (max * sizeof (uint64_t));
+    keys = calloc (size, sizeof (uint64_t));
+    position = malloc (size * sizeof (size_t));
+    if (!states || !hashes || !keys || !position) {
+        printf ("ERROR: out of memory\n");
+        return 1;
+    }
+    int *s0 = malloc (sizeof (int[N]));
+    initial (s0);
+    spins_visit (s0, spins_hash_state (s0));
+    size_t i, r;
+    for (i = 0; i < n; i++)
+        all_hashed (NULL, &states[i * N], hashes[i], spins_check_cb, NULL);
+
+    double none = 1e9, full = 1e9, incremental = 1e9;
+    for (r = 0; r < rounds; r++) {
+        double t0 = spins_now ();
+        for (i = 0; i < n; i++)
+            all (NULL, &states[i * N], spins_none_cb, NULL);
+        double t1 = spins_now ();
+        for (i = 0; i < n; i++)
+            all (NULL, &states[i * N], spins_full_cb, NULL);
+        double t2 = spins_now ();
+        for (i = 0; i < n; i++)
+            all_hashed (NULL, &states[i * N], hashes[i], spins_incremental_cb, NULL);
+        double t3 = spins_now ();
+        if (t1 - t0 < none) none = t1 - t0;
+        if (t2 - t1 < full) full = t2 - t1;
+        if (t3 - t2 < incremental) incremental = t3 - t2;
+    }
+    printf ("%-32s %3d slots %6zu states %8zu successors: "
+            "none %.4fs full %.4fs incremental %.4fs (%+.1f ns/successor)\n",
+            argv[1], N, n, successors, none, full, incremental,
+            (incremental - full) * 1e9 / successors);
+    if (wrong != 0) {
+        printf ("ERROR: %zu of %zu incremental hashes are wrong\n", wrong, successors);
+        return 1;
+    }
+    free (s0);
+    free (states);
+    free (hashes);
+    free (keys);
+    free (position);
+    dlclose (lib);
+    return 0;
+}
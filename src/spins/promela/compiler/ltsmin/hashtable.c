@@ -6,63 +6,51 @@
 #include <string.h>
 #include <errno.h>
 
-#undef get16bits
-#if (defined(__GNUC__) && defined(__i386__)) || defined(__WATCOMC__) \
-  || defined(_MSC_VER) || defined (__BORLANDC__) || defined (__TURBOC__)
-#define get16bits(d) (*((const uint16_t *) (d)))
+/* The length of the states in ints. The generated code fixes it to the
+ * size of state_t, so the compiler unrolls (and vectorizes) the hash, the
+ * compare and the copy of a state. */
+#ifdef SPINS_STATE_LENGTH
+#define spins_length(dbs) ((size_t) SPINS_STATE_LENGTH)
+#else
+#define spins_length(dbs) ((dbs)->length)
 #endif
 
-#if !defined (get16bits)
-#define get16bits(d) ((((uint32_t)(((const uint8_t *)(d))[1])) << 8)\
-                       +(uint32_t)(((const uint8_t *)(d))[0]) )
-#endif
-
-uint32_t
-spins_hash (const void *data_, int len, uint32_t hash)
+/* A 64-bit hash of a state: MurmurHash64A over its int slots, two at a time. */
+static inline uint64_t
+spins_hash (const int *v, size_t length)
 {
-    const unsigned char *data = data_;
-    uint32_t tmp;
-    int rem;
-
-    if (len <= 0 || data == NULL) return 0;
-
-    rem = len & 3;
-    len >>= 2;
-
-    /* Main loop */
-    for (;len > 0; len--) {
-        hash  += get16bits (data);
-        tmp    = (get16bits (data+2) << 11) ^ hash;
-        hash   = (hash << 16) ^ tmp;
-        data  += 2*sizeof (uint16_t);
-        hash  += hash >> 11;
+    const uint64_t      m = 0xc6a4a7935bd1e995ULL;
+    uint64_t            h = length * m;
+    size_t              i;
+    for (i = 0; i + 1 < length; i += 2) {
+        uint64_t            k = (uint32_t)v[i] | ((uint64_t)(uint32_t)v[i+1] << 32);
+        k *= m;
+        k ^= k >> 47;
+        k *= m;
+        h ^= k;
+        h *= m;
     }
-
-    /* Handle end cases */
-    switch (rem) {
-        case 3: hash += get16bits (data);
-                hash ^= hash << 16;
-                hash ^= data[sizeof (uint16_t)] << 18;
-                hash += hash >> 11;
-                break;
-        case 2: hash += get16bits (data);
-                hash ^= hash << 11;
-                hash += hash >> 17;
-                break;
-        case 1: hash += *data;
-                hash ^= hash << 10;
-                hash += hash >> 1;
+    if (i < length) {
+        h ^= (uint32_t)v[i];
+        h *= m;
     }
+    h ^= h >> 47;
+    h *= m;
+    h ^= h >> 47;
+    return h;
+}
 
-    /* Force "avalanching" of final 127 bits */
-    hash ^= hash << 3;
-    hash += hash >> 5;
-    hash ^= hash << 4;
-    hash += hash >> 17;
-    hash ^= hash << 25;
-    hash += hash >> 6;
-
-    return hash;
+/* Compares two states without an early exit: states with the same 64-bit
+ * fingerprint are nearly always equal, so the whole vector is compared
+ * anyway, and the loop becomes a few vector instructions. */
+static inline int
+spins_equal (const int *a, const int *b, size_t length)
+{
+    int                 diff = 0;
+    size_t              i;
+    for (i = 0; i < length; i++)
+        diff |= a[i] ^ b[i];
+    return diff == 0;
 }
 
 void *
@@ -85,73 +73,101 @@ spins_align (size_t align, size_t size)
     return ret;
 }
 
-typedef uint32_t spins_mem_hash_t;
+typedef uint64_t spins_mem_hash_t;
+
+/* A bucket holds the full memoized hash of a state (the fingerprint) and
+ * the epoch in which it was stored. Buckets of earlier epochs are empty, so spins_state_db_clear only
+ * starts a new epoch, instead of wiping the buckets. */
+typedef struct spins_bucket_s {
+    spins_mem_hash_t    hash;
+    uint32_t            epoch;
+} spins_bucket_t;
 
 typedef struct spins_state_db_s {
     size_t              length;
-    size_t              bytes;
     size_t              size;
     size_t              size3;
     size_t              init_size;
-    size_t              init_size3;
     size_t              mask;
     size_t				max;
     int                *data;
-    spins_mem_hash_t         *hash;
+    spins_bucket_t     *table;
     size_t				load;
+    uint32_t            epoch;
+    size_t              peak;       // highest load since the last shrink
+    size_t              clears;     // clears since the last shrink
 } spins_state_db_t;
 
 #define STATE_DB_FULL -1
+#define STATE_DB_SHRINK 256         // clears between shrinks
 
 #define EMPTY 0
 #define CACHE_LINE 6
 static const size_t SJ_CACHE_LINE_SIZE = 1 << CACHE_LINE;
-static const size_t SJ_CACHE_LINE_MEM_SIZE =   (1UL<<CACHE_LINE) / sizeof (spins_mem_hash_t);
-static const size_t SJ_CACHE_LINE_MEM_MASK = -((1UL<<CACHE_LINE) / sizeof (spins_mem_hash_t));
+static const size_t SJ_CACHE_LINE_MEM_SIZE =   (1UL<<CACHE_LINE) / sizeof (spins_bucket_t);
+static const size_t SJ_CACHE_LINE_MEM_MASK = -((1UL<<CACHE_LINE) / sizeof (spins_bucket_t));
 static const spins_mem_hash_t SJ_FULL = ((spins_mem_hash_t)-1) ^ (((spins_mem_hash_t)-1)>>1); // 1000
-static const spins_mem_hash_t SJ_MASK = ((spins_mem_hash_t)-1)>>1;                      // 0111
 static const spins_mem_hash_t SJ_TOMB = 1;                                        // 0001
-static const size_t SJ_NONE = -1UL;
 
 extern int spins_state_db_lookup_hash (spins_state_db_t *dbs, const int *v, spins_mem_hash_t *pre);
 
-static inline spins_mem_hash_t *
+static inline spins_mem_hash_t
 spins_memoized (const spins_state_db_t *dbs, size_t ref)
 {
-    return &dbs->hash[ref];
+    const spins_bucket_t *bucket = &dbs->table[ref];
+    return bucket->epoch == dbs->epoch ? bucket->hash : EMPTY;
+}
+
+static inline void
+spins_memoize (spins_state_db_t *dbs, size_t ref, spins_mem_hash_t h)
+{
+    dbs->table[ref].hash = h;
+    dbs->table[ref].epoch = dbs->epoch;
 }
 
 static inline int *
 spins_state (const spins_state_db_t *dbs, size_t ref)
 {
-    size_t              l = dbs->length;
-    return &dbs->data[ref * l];
+    return &dbs->data[ref * spins_length (dbs)];
+}
+
+static inline void
+spins_set_size (spins_state_db_t *dbs, size_t size)
+{
+    dbs->size = size;
+    dbs->size3 = size * 3;
+    dbs->mask = size - 1;
 }
 
+/* Doubles the table. The states are moved behind the doubled table (the
+ * table grows to half of max at most) and inserted again. The buckets of
+ * the new half belong to earlier epochs, or were emptied by earlier
+ * resizes of this epoch. */
 int
 spins_resize (spins_state_db_t *dbs)
 {
     if (dbs->size == (dbs->max >> 1))
         return false;
+    SPINS_METRIC_INC (db_resizes);
     size_t i;
     size_t size = dbs->size;
-    size_t newsize = dbs->size <<= 1;
-    dbs->size3 <<= 1;
-    dbs->mask = dbs->size - 1;
+    size_t newsize = size << 1;
+    spins_set_size (dbs, newsize);
 
-    // collect elements at dbs->table + newsize
-    int todos = 0;
+    size_t todos = 0;
     for (i = 0; i < size; i++) {
-        spins_mem_hash_t h = *spins_memoized(dbs,i);
-        if (EMPTY == h || (h&SJ_MASK) == i) continue;
-        size_t newidx = newsize + todos;
-        *spins_memoized(dbs,newidx) = h;
-        memcpy(spins_state(dbs,newidx),spins_state(dbs,i),dbs->bytes);
-        *spins_memoized(dbs,i) = EMPTY;
+        spins_mem_hash_t h = spins_memoized(dbs,i);
+        if (EMPTY == h) continue;
+        spins_memoize (dbs, i, EMPTY);
+        if (SJ_TOMB == h) continue;
+        size_t newidx = newsize + todos++;
+        spins_memoize (dbs, newidx, h);
+        memcpy(spins_state(dbs,newidx),spins_state(dbs,i),sizeof(int[spins_length(dbs)]));
     }
-    memset (dbs->hash + size, 0, sizeof (spins_mem_hash_t[size]));
+    dbs->load = 0;
     for (i = newsize; i < newsize + todos; i++) {
-        spins_mem_hash_t h = *spins_memoized(dbs,i);
+        spins_mem_hash_t h = spins_memoized(dbs,i);
+        spins_memoize (dbs, i, EMPTY);
         spins_state_db_lookup_hash (dbs, spins_state(dbs,i), &h);
     }
     return true;
@@ -160,46 +176,54 @@ spins_resize (spins_state_db_t *dbs)
 int
 spins_state_db_lookup (spins_state_db_t *dbs, const int *v)
 {
-    return spins_state_db_lookup_hash (dbs, v, NULL);
+    int result = spins_state_db_lookup_hash (dbs, v, NULL);
+    if (result == true) SPINS_METRIC_INC (db_hits);
+    else if (result == false) SPINS_METRIC_INC (db_misses);
+    return result;
 }
 
+/* The memoized hash of a state (with SJ_FULL set) also places it, so
+ * resizes can insert states again from their memoized hash. The probes
+ * walk the cache line of the hash, and then the next lines. */
 int
 spins_state_db_lookup_hash (spins_state_db_t *dbs, const int *v, spins_mem_hash_t *pre)
 {
     size_t 				i;
-    size_t              seed = 0;
-    size_t              tomb = SJ_NONE;
-    size_t              b = dbs->bytes;
-    spins_mem_hash_t          h = (NULL==pre ? spins_hash ((char *)v, b, 0) : *pre);
-    spins_mem_hash_t          mem = h;
-    while ((dbs->load << 2) < dbs->size3) { // while >75% full
-        size_t              ref = h & dbs->mask;
-        size_t              line_begin = ref & SJ_CACHE_LINE_MEM_MASK;
+    size_t              tomb = -1UL;
+    size_t              l = spins_length (dbs);
+    spins_mem_hash_t    mem = (NULL==pre ? spins_hash (v, l) : *pre) | SJ_FULL;
+    size_t              ref = mem & dbs->mask;
+    size_t              line_begin = ref & SJ_CACHE_LINE_MEM_MASK;
+    while (true) {
         size_t              line_end = line_begin + SJ_CACHE_LINE_MEM_SIZE;
         for (i = 0; i < SJ_CACHE_LINE_MEM_SIZE; i++) {
-            if (tomb == SJ_NONE && SJ_TOMB == *spins_memoized(dbs,ref))
+            spins_mem_hash_t    m = spins_memoized(dbs,ref);
+            if (tomb == -1UL && SJ_TOMB == m)
                 tomb = ref;
-			if (EMPTY == *spins_memoized(dbs,ref)) {
-			    if (tomb != SJ_NONE)
+			if (EMPTY == m) {
+			    if ((dbs->load << 2) >= dbs->size3) // 75% full
+			        goto resize;
+			    if (tomb != -1UL)
 			        ref = tomb;
-			    *spins_memoized(dbs,ref) = mem | SJ_FULL;
-				dbs->load++;
-				memcpy (spins_state(dbs,ref), v, b);
+			    spins_memoize (dbs, ref, mem);
+				if (++dbs->load > dbs->peak) dbs->peak = dbs->load;
+				memcpy (spins_state(dbs,ref), v, sizeof(int[l]));
 				return false;
 			}
-            if ( ((mem | SJ_FULL) == *spins_memoized(dbs,ref)) &&
-                  0 == memcmp (spins_state(dbs,ref), v, b) ) {
-                if (tomb != SJ_NONE) {
-                    *spins_memoized(dbs,tomb) = mem | SJ_FULL;
-                    memcpy (spins_state(dbs,tomb), v, b);
-                    *spins_memoized(dbs,ref) = SJ_TOMB;
+            if (mem == m && spins_equal (spins_state(dbs,ref), v, l)) {
+                if (tomb != -1UL) {
+                    spins_memoize (dbs, tomb, mem);
+                    memcpy (spins_state(dbs,tomb), v, sizeof(int[l]));
+                    spins_memoize (dbs, ref, SJ_TOMB);
                 }
 				return true;
             }
             ref = (ref+1 == line_end ? line_begin : ref+1);
         }
-        h = spins_hash ((char *)v, b, h + (seed++));
+        line_begin = (line_begin + SJ_CACHE_LINE_MEM_SIZE) & dbs->mask;
+        ref = line_begin;
     }
+resize:
     if (spins_resize (dbs)) {
         return spins_state_db_lookup_hash (dbs, v, &mem);
     } else {
@@ -207,32 +231,46 @@ spins_state_db_lookup_hash (spins_state_db_t *dbs, const int *v, spins_mem_hash_
     }
 }
 
+/* Empties the database in O(1) by starting a new epoch. Every
+ * STATE_DB_SHRINK clears, a table that grew is shrunk to twice the size
+ * that the highest load in between needed. */
 void
 spins_state_db_clear (spins_state_db_t *dbs)
 {
     dbs->load = 0;
-    dbs->size = dbs->init_size;
-    dbs->size3 = dbs->init_size3;
-    dbs->mask = dbs->size - 1;
-    memset (dbs->hash, 0, sizeof (spins_mem_hash_t[dbs->size]));
+    if (++dbs->clears == STATE_DB_SHRINK) {
+        size_t size = dbs->init_size;
+        while ((dbs->peak << 3) > size * 3) size <<= 1;
+        if (size < dbs->size) spins_set_size (dbs, size);
+        dbs->clears = 0;
+        dbs->peak = 0;
+    }
+    if (++dbs->epoch == 0) { // wrapped around: wipe the buckets once
+        memset (dbs->table, 0, sizeof (spins_bucket_t[dbs->max]));
+        dbs->epoch = 1;
+    }
 }
 
 spins_state_db_t *
 spins_state_db_create (size_t length, size_t init_size, size_t max_size)
 {
     assert (init_size < max_size);
+    assert ((1UL << init_size) >= SJ_CACHE_LINE_MEM_SIZE);
+#ifdef SPINS_STATE_LENGTH
+    assert (length == SPINS_STATE_LENGTH);
+#endif
     spins_state_db_t           *dbs = spins_align (SJ_CACHE_LINE_SIZE, sizeof (spins_state_db_t));
     dbs->length = length;
-    dbs->bytes = sizeof (int[length]);
     dbs->max = 1UL << max_size;
     dbs->data = spins_align (SJ_CACHE_LINE_SIZE, sizeof (int[dbs->max][length]));
-    dbs->hash = spins_align (SJ_CACHE_LINE_SIZE, sizeof (spins_mem_hash_t[dbs->max]));
+    dbs->table = spins_align (SJ_CACHE_LINE_SIZE, sizeof (spins_bucket_t[dbs->max]));
+    memset (dbs->table, 0, sizeof (spins_bucket_t[dbs->max]));
     dbs->init_size = 1UL<<init_size;
-    dbs->init_size3 = dbs->init_size * 3;
-    dbs->size = dbs->init_size;
-    dbs->size3 = dbs->init_size3;
-    dbs->mask = dbs->size - 1;
-	spins_state_db_clear (dbs);
+    spins_set_size (dbs, dbs->init_size);
+    dbs->load = 0;
+    dbs->epoch = 1;
+    dbs->peak = 0;
+    dbs->clears = 0;
     return dbs;
 }
 
@@ -240,27 +278,59 @@ void
 spins_state_db_free (spins_state_db_t *dbs)
 {
     free (dbs->data);
-    free (dbs->hash);
+    free (dbs->table);
     free (dbs);
 }
 
+#ifdef SPINS_STATE_LENGTH
+#define SPINS_TEST_LENGTH SPINS_STATE_LENGTH
+#else
+#define SPINS_TEST_LENGTH 10
+#endif
+
 void
 spins_test ()
 {
-    spins_state_db_t *dbs = spins_state_db_create (10, 2, 10);
-    int state[10];
+    spins_state_db_t *dbs = spins_state_db_create (SPINS_TEST_LENGTH, 2, 10);
+    int state[SPINS_TEST_LENGTH];
     size_t x, i, j;
     for (x = 0; x < 500; x++)
-    for (i = 0; i < 768; i++) {
-        for (j = 0; j < 10; j++)
+    for (i = 0; i < 384; i++) { // fills the table of 2^9 for 75%
+        for (j = 0; j < SPINS_TEST_LENGTH; j++)
             state[j] = i;
         int seen = spins_state_db_lookup (dbs, state);
-        if (seen && !x) {
+        if (seen != (x > 0)) {
             printf("seen = %d at x=%zu i=%zu load=%zu size=%zu\n", seen, x, i, dbs->load, dbs->size);
             assert (false);
         }
     }
+    for (j = 0; j < SPINS_TEST_LENGTH; j++)
+        state[j] = i;
     int seen = spins_state_db_lookup (dbs, state);
     assert (seen == STATE_DB_FULL);
+
+    // clears empty the table, and the second shrink fits it to 3 states
+    for (x = 0; x < 2 * STATE_DB_SHRINK; x++) {
+        spins_state_db_clear (dbs);
+        for (i = 0; i < 3; i++) {
+            for (j = 0; j < SPINS_TEST_LENGTH; j++)
+                state[j] = i;
+            assert (spins_state_db_lookup (dbs, state) == false);
+            assert (spins_state_db_lookup (dbs, state) == true);
+        }
+    }
+    assert (dbs->size == dbs->init_size << 1);
+
+    // states that differ in one slot only are different
+    spins_state_db_clear (dbs);
+    for (j = 0; j < SPINS_TEST_LENGTH; j++)
+        state[j] = 0;
+    assert (spins_state_db_lookup (dbs, state) == false);
+    for (j = 0; j < SPINS_TEST_LENGTH; j++) {
+        state[j] = 1;
+        assert (spins_state_db_lookup (dbs, state) == false);
+        state[j] = 0;
+    }
+    assert (spins_state_db_lookup (dbs, state) == true);
     spins_state_db_free (dbs);
 }
@@ -0,0 +1,82 @@
+/* Micro-benchmark of the atomic state database (hashtable.c), see makefile.
+ *
+ * usage: hashtable_bench [length] [states] [rounds]
+ *
+ * Every round clears the database, inserts states (misses) and looks them
+ * up again (hits), like the searches of atomic blocks do. The states differ
+ * in a few slots only, like the states of an atomic block. Built with
+ * -DSPINS_STATE_LENGTH=length, the database is specialized to the length,
+ * like in the generated code.
+ */
+#include <time.h>
+
+#define SPINS_METRIC_INC(field)
+
+#include "hashtable.c"
+
+static double
+spins_now ()
+{
+    struct timespec     t;
+    clock_gettime (CLOCK_MONOTONIC, &t);
+    return t.tv_sec + t.tv_nsec / 1e9;
+}
+
+int
+main (int argc, char **argv)
+{
+    size_t length = argc > 1 ? atol (argv[1]) : SPINS_TEST_LENGTH;
+    size_t n = argc > 2 ? atol (argv[2]) : 1000;
+    size_t rounds = argc > 3 ? atol (argv[3]) : 5000;
+#ifdef SPINS_STATE_LENGTH
+    if (length != SPINS_STATE_LENGTH) {
+        printf ("This benchmark is specialized to length %d\n", SPINS_STATE_LENGTH);
+        return 1;
+    }
+#endif
+    spins_test ();
+
+    int *states = malloc (sizeof (int[n][length]));
+    size_t i, j, r;
+    unsigned seed = 1;
+    for (j = 0; j < length; j++)
+        states[j] = rand_r (&seed) % 256;
+    for (i = 1; i < n; i++) {
+        memcpy (&states[i * length], &states[(i - 1) * length], sizeof (int[length]));
+        states[i * length + i % length]++;
+        states[i * length + rand_r (&seed) % length] ^= i;
+    }
+
+    spins_state_db_t *dbs = spins_state_db_create (length, 4, 20);
+    double misses = 0, hits = 0;
+    size_t known = 0, lost = 0;
+    for (r = 0; r < rounds; r++) {
+        spins_state_db_clear (dbs);
+        double t0 = spins_now ();
+        for (i = 0; i < n; i++)
+            known += spins_state_db_lookup (dbs, &states[i * length]);
+        double t1 = spins_now ();
+        for (i = 0; i < n; i++)
+            lost += !spins_state_db_lookup (dbs, &states[i * length]);
+        double t2 = spins_now ();
+        misses += t1 - t0;
+        hits += t2 - t1;
+    }
+    size_t lookups = n * rounds;
+    printf ("length %3zu %s: %6.1f M misses/s %6.1f M hits/s (%zu duplicates)\n",
+            length,
+#ifdef SPINS_STATE_LENGTH
+            "fixed  ",
+#else
+            "dynamic",
+#endif
+            lookups / misses / 1e6, lookups / hits / 1e6,
+            known);
+    if (lost != 0) {
+        printf ("ERROR: %zu stored states were not found\n", lost);
+        return 1;
+    }
+    spins_state_db_free (dbs);
+    free (states);
+    return 0;
+}
@@ -0,0 +1,650 @@
+package spins.promela.compiler.ltsmin.matrix;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A compressed bitmap of non-negative integers.
+ *
+ * The integers are partitioned into chunks of 2^16 values by their high 16
+ * bits. The low bits of each chunk are stored in one of three containers:
+ *  - a sorted array of values, for sparse chunks (up to ARRAY_MAX values),
+ *  - a bitmap of 2^16 bits (as 1024 words), for dense chunks,
+ *  - a sorted array of runs (start, length - 1), for chunks of consecutive
+ *    values. Runs are only introduced by {@link #optimize()}.
+ *
+ * Membership, intersection tests, unions and cardinality work on the
+ * containers directly and do not allocate, unless a container has to grow or
+ * change type.
+ */
+public class Bitmap implements Iterable<Integer> {
+
+    private static final int ARRAY_MAX = 4096; // 8KB, the size of a bitmap
+    private static final int WORDS = 1024;
+
+    private char[] keys;
+    private Container[] containers;
+    private int size = 0;
+
+    public Bitmap() {
+        keys = new char[1];
+        containers = new Container[1];
+    }
+
+    public Bitmap(Bitmap other) {
+        keys = other.keys.clone();
+        containers = new Container[other.containers.length];
+        size = other.size;
+        for (int i = 0; i < size; i++)
+            containers[i] = other.containers[i].copy();
+    }
+
+    private static char hi(int x) {
+        return (char)(x >>> 16);
+    }
+
+    private static int lo(int x) {
+        return x & 0xFFFF;
+    }
+
+    private int find(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insert(int i, char key, Container c) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+            containers = Arrays.copyOf(containers, size << 1);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = c;
+        size++;
+    }
+
+    public boolean get(int x) {
+        int i = find(hi(x));
+        return i >= 0 && containers[i].get(lo(x));
+    }
+
+    public void set(int x) {
+        int i = find(hi(x));
+        if (i < 0) {
+            i = -i - 1;
+            insert(i, hi(x), new ArrayContainer());
+        }
+        containers[i] = containers[i].set(lo(x));
+    }
+
+    public void clear() {
+        Arrays.fill(containers, null);
+        size = 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0; // containers are never empty
+    }
+
+    public int cardinality() {
+        int card = 0;
+        for (int i = 0; i < size; i++)
+            card += containers[i].cardinality();
+        return card;
+    }
+
+    public boolean intersects(Bitmap other) {
+        int i = 0, j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                if (containers[i].intersects(other.containers[j]))
+                    return true;
+                i++;
+                j++;
+            }
+        }
+        return false;
+    }
+
+    public void or(Bitmap other) {
+        for (int j = 0; j < other.size; j++) {
+            int i = find(other.keys[j]);
+            if (i < 0) {
+                insert(-i - 1, other.keys[j], other.containers[j].copy());
+            } else {
+                containers[i] = containers[i].or(other.containers[j]);
+            }
+        }
+    }
+
+    /**
+     * @return the first value that is larger or equal to from, or -1
+     */
+    public int nextSetBit(int from) {
+        int i = find(hi(from));
+        int low = lo(from);
+        if (i < 0) {
+            i = -i - 1;
+            low = 0;
+        }
+        for (; i < size; i++) {
+            int next = containers[i].next(low);
+            if (next >= 0)
+                return keys[i] << 16 | next;
+            low = 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Iterates the values in ascending order.
+     */
+    public Iterator<Integer> iterator() {
+        return new Iterator<Integer>() {
+            private int chunk = 0;
+            private int index = 0; // in array and run containers
+            private int low = size == 0 ? -1 : containers[0].next(0);
+
+            private void advance() {
+                Container c = containers[chunk];
+                if (c instanceof ArrayContainer) {
+                    ArrayContainer a = (ArrayContainer)c;
+                    low = ++index < a.n ? a.values[index] : -1;
+                } else if (c instanceof RunContainer) {
+                    RunContainer r = (RunContainer)c;
+                    if (low < r.end(index))
+                        low++;
+                    else
+                        low = ++index < r.nRuns ? r.start(index) : -1;
+                } else {
+                    low = c.next(low + 1);
+                }
+                while (low < 0 && ++chunk < size) {
+                    index = 0;
+                    low = containers[chunk].next(0);
+                }
+            }
+
+            public boolean hasNext() {
+                return low >= 0;
+            }
+
+            public Integer next() {
+                if (low < 0)
+                    throw new NoSuchElementException();
+                int ret = keys[chunk] << 16 | low;
+                advance();
+                return ret;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Stores every chunk in the smallest container type.
+     */
+    public void optimize() {
+        for (int i = 0; i < size; i++)
+            containers[i] = containers[i].optimize();
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof Bitmap))
+            return false;
+        Bitmap other = (Bitmap)o;
+        for (int x = nextSetBit(0), y = other.nextSetBit(0); ;
+                 x = nextSetBit(x + 1), y = other.nextSetBit(y + 1)) {
+            if (x != y) return false;
+            if (x < 0) return true;
+        }
+    }
+
+    public int hashCode() {
+        int hash = 1;
+        for (int x = nextSetBit(0); x >= 0; x = nextSetBit(x + 1))
+            hash = 31 * hash + x;
+        return hash;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int x = nextSetBit(0); x >= 0; x = nextSetBit(x + 1))
+            sb.append(sb.length() == 1 ? "" : ", ").append(x);
+        return sb.append("}").toString();
+    }
+
+    /**
+     * A chunk of 2^16 values.
+     */
+    private static abstract class Container {
+        abstract boolean get(int v);
+
+        /** @return this container or its replacement */
+        abstract Container set(int v);
+
+        /** Sets [start, end]. @return this container or its replacement */
+        abstract Container setRange(int start, int end);
+
+        abstract int cardinality();
+
+        /** @return the first value larger or equal to from, or -1 */
+        abstract int next(int from);
+
+        /** @return whether a value in [start, end] is set */
+        abstract boolean intersectsRange(int start, int end);
+
+        abstract boolean intersects(Container other);
+
+        /** @return this container or its replacement */
+        abstract Container or(Container other);
+
+        abstract Container copy();
+
+        /** @return the largest value, or -1 */
+        abstract int max();
+
+        int runs() {
+            int runs = 0;
+            for (int v = next(0), last = -2; v >= 0; last = v, v = next(v + 1))
+                if (v != last + 1) runs++;
+            return runs;
+        }
+
+        Container optimize() {
+            int card = cardinality();
+            int runs = runs();
+            int arrayBytes = card <= ARRAY_MAX ? 2 * card : Integer.MAX_VALUE;
+            int bitmapBytes = 8 * ((max() >>> 6) + 1);
+            int runBytes = 4 * runs;
+            if (runBytes < arrayBytes && runBytes < bitmapBytes)
+                return this instanceof RunContainer ? this : new RunContainer(this, runs);
+            if (arrayBytes <= bitmapBytes)
+                return this instanceof ArrayContainer ? this : new ArrayContainer(this, card);
+            return this instanceof BitmapContainer ? this : new BitmapContainer(this, max());
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int n = 0;
+
+        ArrayContainer() {
+            values = new char[4];
+        }
+
+        ArrayContainer(Container c, int card) {
+            values = new char[Math.max(4, card)];
+            for (int v = c.next(0); v >= 0; v = c.next(v + 1))
+                values[n++] = (char)v;
+        }
+
+        boolean get(int v) {
+            return Arrays.binarySearch(values, 0, n, (char)v) >= 0;
+        }
+
+        /**
+         * @return whether the values take more space than a bitmap
+         */
+        private boolean dense(int max) {
+            return n > 4 * ((max >>> 6) + 1);
+        }
+
+        private Container toBitmap(int max) {
+            return new BitmapContainer(this, Math.max(max, max()));
+        }
+
+        Container set(int v) {
+            int i = Arrays.binarySearch(values, 0, n, (char)v);
+            if (i >= 0)
+                return this;
+            if (n == values.length) {
+                if (n == ARRAY_MAX || dense(Math.max(v, max())))
+                    return toBitmap(v).set(v);
+                values = Arrays.copyOf(values, Math.min(n << 1, ARRAY_MAX));
+            }
+            i = -i - 1;
+            System.arraycopy(values, i, values, i + 1, n - i);
+            values[i] = (char)v;
+            n++;
+            return this;
+        }
+
+        Container setRange(int start, int end) {
+            int i = lowerBound(start), j = lowerBound(end + 1);
+            int m = n - (j - i) + end - start + 1; // resulting size
+            if (m > ARRAY_MAX || m > 4 * ((Math.max(end, max()) >>> 6) + 1))
+                return toBitmap(end).setRange(start, end);
+            if (m > values.length)
+                values = Arrays.copyOf(values, Math.min(Math.max(m, n << 1), ARRAY_MAX));
+            System.arraycopy(values, j, values, i + end - start + 1, n - j);
+            for (int v = start; v <= end; v++)
+                values[i++] = (char)v;
+            n = m;
+            return this;
+        }
+
+        int cardinality() {
+            return n;
+        }
+
+        private int lowerBound(int from) {
+            if (from > 0xFFFF) return n;
+            int i = Arrays.binarySearch(values, 0, n, (char)from);
+            return i >= 0 ? i : -i - 1;
+        }
+
+        int next(int from) {
+            if (from > 0xFFFF) return -1;
+            int i = lowerBound(from);
+            return i < n ? values[i] : -1;
+        }
+
+        boolean intersectsRange(int start, int end) {
+            int i = lowerBound(start);
+            return i < n && values[i] <= end;
+        }
+
+        boolean intersects(Container other) {
+            if (other instanceof ArrayContainer) {
+                ArrayContainer o = (ArrayContainer)other;
+                int i = 0, j = 0;
+                while (i < n && j < o.n) {
+                    if (values[i] < o.values[j]) i++;
+                    else if (values[i] > o.values[j]) j++;
+                    else return true;
+                }
+                return false;
+            }
+            for (int i = 0; i < n; i++)
+                if (other.get(values[i])) return true;
+            return false;
+        }
+
+        Container or(Container other) {
+            if (other instanceof ArrayContainer) {
+                ArrayContainer o = (ArrayContainer)other;
+                if (n + o.n > ARRAY_MAX)
+                    return toBitmap(o.max()).or(other);
+                if (n + o.n > values.length)
+                    values = Arrays.copyOf(values,
+                                Math.min(Math.max(n + o.n, n << 1), ARRAY_MAX));
+                // merge in place from the back, then close the gap of duplicates
+                int i = n - 1, j = o.n - 1, k = n + o.n - 1;
+                while (j >= 0) {
+                    if (i >= 0 && values[i] > o.values[j]) values[k--] = values[i--];
+                    else if (i >= 0 && values[i] == o.values[j]) { values[k--] = values[i--]; j--; }
+                    else values[k--] = o.values[j--];
+                }
+                if (i < k) { // i + 1 values left in place, duplicates at i+1..k
+                    System.arraycopy(values, k + 1, values, i + 1, n + o.n - k - 1);
+                }
+                n = n + o.n - (k - i);
+                return dense(max()) ? toBitmap(0) : this;
+            } else if (other instanceof BitmapContainer) {
+                return other.copy().or(this);
+            }
+            RunContainer o = (RunContainer)other;
+            Container c = this;
+            for (int r = 0; r < o.nRuns; r++)
+                c = c.setRange(o.start(r), o.end(r));
+            return c;
+        }
+
+        Container copy() {
+            ArrayContainer c = new ArrayContainer();
+            c.values = Arrays.copyOf(values, Math.max(4, n));
+            c.n = n;
+            return c;
+        }
+
+        int max() {
+            return n == 0 ? -1 : values[n - 1];
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private long[] words; // grows up to WORDS, as needed for the values
+        private int card = 0;
+
+        BitmapContainer(int max) {
+            words = new long[(max >>> 6) + 1];
+        }
+
+        BitmapContainer(Container c, int max) {
+            this(max);
+            for (int v = c.next(0); v >= 0; v = c.next(v + 1))
+                set(v);
+        }
+
+        private void grow(int v) {
+            if (v >>> 6 >= words.length)
+                words = Arrays.copyOf(words, Math.min(WORDS,
+                                      Math.max((v >>> 6) + 1, words.length << 1)));
+        }
+
+        boolean get(int v) {
+            return v >>> 6 < words.length && (words[v >>> 6] & (1L << v)) != 0;
+        }
+
+        Container set(int v) {
+            grow(v);
+            long mask = 1L << v;
+            if ((words[v >>> 6] & mask) == 0) {
+                words[v >>> 6] |= mask;
+                card++;
+            }
+            return this;
+        }
+
+        Container setRange(int start, int end) {
+            grow(end);
+            int first = start >>> 6, last = end >>> 6;
+            for (int w = first; w <= last; w++) {
+                long mask = -1L;
+                if (w == first) mask &= -1L << start;
+                if (w == last) mask &= -1L >>> (63 - (end & 63));
+                card += Long.bitCount(mask & ~words[w]);
+                words[w] |= mask;
+            }
+            return this;
+        }
+
+        int cardinality() {
+            return card;
+        }
+
+        int next(int from) {
+            int w = from >>> 6;
+            if (w >= words.length) return -1;
+            long word = words[w] & (-1L << from);
+            while (word == 0) {
+                if (++w == words.length) return -1;
+                word = words[w];
+            }
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+
+        boolean intersectsRange(int start, int end) {
+            int first = start >>> 6, last = Math.min(end >>> 6, words.length - 1);
+            for (int w = first; w <= last; w++) {
+                long mask = -1L;
+                if (w == first) mask &= -1L << start;
+                if (w == end >>> 6) mask &= -1L >>> (63 - (end & 63));
+                if ((words[w] & mask) != 0) return true;
+            }
+            return false;
+        }
+
+        boolean intersects(Container other) {
+            if (other instanceof BitmapContainer) {
+                long[] o = ((BitmapContainer)other).words;
+                int n = Math.min(words.length, o.length);
+                for (int w = 0; w < n; w++)
+                    if ((words[w] & o[w]) != 0) return true;
+                return false;
+            }
+            return other.intersects(this);
+        }
+
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                long[] o = ((BitmapContainer)other).words;
+                grow((o.length << 6) - 1);
+                card = 0;
+                for (int w = 0; w < o.length; w++)
+                    words[w] |= o[w];
+                for (int w = 0; w < words.length; w++)
+                    card += Long.bitCount(words[w]);
+            } else if (other instanceof ArrayContainer) {
+                ArrayContainer o = (ArrayContainer)other;
+                if (o.n > 0)
+                    grow(o.values[o.n - 1]);
+                for (int i = 0; i < o.n; i++)
+                    set(o.values[i]);
+            } else {
+                RunContainer o = (RunContainer)other;
+                for (int r = 0; r < o.nRuns; r++)
+                    setRange(o.start(r), o.end(r));
+            }
+            return this;
+        }
+
+        Container copy() {
+            BitmapContainer c = new BitmapContainer(0);
+            c.words = words.clone();
+            c.card = card;
+            return c;
+        }
+
+        int runs() {
+            int runs = 0;
+            long carry = 0;
+            for (int w = 0; w < words.length; w++) {
+                long word = words[w];
+                runs += Long.bitCount(word & ~(word << 1 | carry));
+                carry = word >>> 63;
+            }
+            return runs;
+        }
+
+        int max() {
+            for (int w = words.length - 1; w >= 0; w--)
+                if (words[w] != 0)
+                    return (w << 6) + 63 - Long.numberOfLeadingZeros(words[w]);
+            return -1;
+        }
+    }
+
+    private static final class RunContainer extends Container {
+        private final char[] runs; // start, length - 1
+        private final int nRuns;
+        private final int card;
+
+        RunContainer(Container c, int nRuns) {
+            this.nRuns = nRuns;
+            runs = new char[2 * nRuns];
+            int r = -1, card = 0;
+            for (int v = c.next(0), last = -2; v >= 0; last = v, v = c.next(v + 1)) {
+                if (v != last + 1) {
+                    r++;
+                    runs[2 * r] = (char)v;
+                } else {
+                    runs[2 * r + 1]++;
+                }
+                card++;
+            }
+            this.card = card;
+        }
+
+        private RunContainer(RunContainer other) {
+            runs = other.runs.clone();
+            nRuns = other.nRuns;
+            card = other.card;
+        }
+
+        int start(int r) {
+            return runs[2 * r];
+        }
+
+        int end(int r) {
+            return runs[2 * r] + runs[2 * r + 1];
+        }
+
+        /** @return the last run starting at or before v, or -1 */
+        private int floor(int v) {
+            int low = 0, high = nRuns - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (start(mid) <= v) low = mid + 1;
+                else high = mid - 1;
+            }
+            return high;
+        }
+
+        boolean get(int v) {
+            int r = floor(v);
+            return r >= 0 && v <= end(r);
+        }
+
+        private Container unpack() {
+            Container c = card <= ARRAY_MAX ? new ArrayContainer(this, card)
+                                            : new BitmapContainer(this, max());
+            return c;
+        }
+
+        Container set(int v) {
+            return get(v) ? this : unpack().set(v);
+        }
+
+        Container setRange(int start, int end) {
+            return unpack().setRange(start, end);
+        }
+
+        int cardinality() {
+            return card;
+        }
+
+        int next(int from) {
+            if (from > 0xFFFF) return -1;
+            int r = floor(from);
+            if (r >= 0 && from <= end(r))
+                return from;
+            return r + 1 < nRuns ? start(r + 1) : -1;
+        }
+
+        boolean intersectsRange(int start, int end) {
+            int r = floor(end);
+            return r >= 0 && end(r) >= start;
+        }
+
+        boolean intersects(Container other) {
+            for (int r = 0; r < nRuns; r++)
+                if (other.intersectsRange(start(r), end(r))) return true;
+            return false;
+        }
+
+        Container or(Container other) {
+            return unpack().or(other);
+        }
+
+        Container copy() {
+            return new RunContainer(this);
+        }
+
+        int runs() {
+            return nRuns;
+        }
+
+        int max() {
+            return end(nRuns - 1);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package spins.promela.compiler.ltsmin.matrix;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A dense K x N boolean matrix, of which the rows are packed in words.
+ *
+ * Offers a blocked, word-parallel boolean matrix product:
+ * C[i][j] = OR_k A[i][k] AND B[k][j], i.e. row i of C is the union of the
+ * rows k of B for which A[i][k] is set. Rows of C are computed in blocks of
+ * ROW_BLOCK rows, and within a block in segments of WORD_BLOCK words, so
+ * that the touched rows of B stay in cache. Row blocks are independent and
+ * can be computed in parallel.
+ */
+public class BoolMatrix {
+
+    private static final int ROW_BLOCK = 64;
+    private static final int WORD_BLOCK = 256; // 2KB of every row of B
+
+    private final int rows;
+    private final int cols;
+    private final int words;
+    private final long[][] bits;
+
+    public BoolMatrix(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        this.words = (cols + 63) >>> 6;
+        this.bits = new long[rows][words];
+    }
+
+    /**
+     * @return a dense copy of the matrix
+     */
+    public static BoolMatrix of(DepMatrix m) {
+        BoolMatrix b = new BoolMatrix(m.getNrRows(), m.getNrCols());
+        for (int i = 0; i < b.rows; i++) {
+            for (int j : m.getRow(i))
+                b.set(i, j);
+        }
+        return b;
+    }
+
+    /**
+     * @return a dense copy of a matrix given as adjacency lists
+     */
+    public static BoolMatrix of(List<List<Integer>> m, int cols) {
+        BoolMatrix b = new BoolMatrix(m.size(), cols);
+        for (int i = 0; i < b.rows; i++) {
+            for (int j : m.get(i))
+                b.set(i, j);
+        }
+        return b;
+    }
+
+    public int getNrRows() {
+        return rows;
+    }
+
+    public int getNrCols() {
+        return cols;
+    }
+
+    public void set(int row, int col) {
+        bits[row][col >>> 6] |= 1L << col;
+    }
+
+    public boolean get(int row, int col) {
+        return (bits[row][col >>> 6] & (1L << col)) != 0;
+    }
+
+    /**
+     * @return the first column in the row, larger or equal to from, or -1
+     */
+    public int nextSetBit(int row, int from) {
+        int w = from >>> 6;
+        if (w >= words) return -1;
+        long[] r = bits[row];
+        long word = r[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == words) return -1;
+            word = r[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    public int cardinality(int row) {
+        int card = 0;
+        for (long word : bits[row])
+            card += Long.bitCount(word);
+        return card;
+    }
+
+    public BoolMatrix transpose() {
+        BoolMatrix t = new BoolMatrix(cols, rows);
+        for (int i = 0; i < rows; i++) {
+            for (int j = nextSetBit(i, 0); j >= 0; j = nextSetBit(i, j + 1))
+                t.set(j, i);
+        }
+        return t;
+    }
+
+    /**
+     * Receives the progress of a matrix product.
+     */
+    public interface Progress {
+        /**
+         * Called (possibly concurrently) when rows of the product are done.
+         */
+        void rowsDone(int rows);
+    }
+
+    /**
+     * Computes the boolean product of a and b.
+     * @param pool the pool to compute row blocks in parallel, or null
+     * @param progress receives the number of finished rows, or null
+     */
+    public static BoolMatrix multiply(BoolMatrix a, BoolMatrix b,
+                                      ForkJoinPool pool, Progress progress) {
+        if (a.cols != b.rows)
+            throw new AssertionError("Cannot multiply "+ a.rows +"X"+ a.cols
+                                     +" matrix with "+ b.rows +"X"+ b.cols +" matrix");
+        BoolMatrix c = new BoolMatrix(a.rows, b.cols);
+        if (pool == null) {
+            for (int r = 0; r < a.rows; r += ROW_BLOCK)
+                c.multiplyBlock(a, b, r, Math.min(r + ROW_BLOCK, a.rows), progress);
+        } else {
+            Block block = new Block(a, b, c, 0, a.rows, progress);
+            if (ForkJoinTask.inForkJoinPool()) {
+                block.invoke();
+            } else {
+                pool.invoke(block);
+            }
+        }
+        return c;
+    }
+
+    private void multiplyBlock(BoolMatrix a, BoolMatrix b, int from, int to,
+                               Progress progress) {
+        for (int w0 = 0; w0 < words; w0 += WORD_BLOCK) {
+            int w1 = Math.min(w0 + WORD_BLOCK, words);
+            for (int i = from; i < to; i++) {
+                long[] ai = a.bits[i];
+                long[] ci = bits[i];
+                for (int kw = 0; kw < a.words; kw++) {
+                    long word = ai[kw];
+                    while (word != 0) {
+                        long[] bk = b.bits[(kw << 6) + Long.numberOfTrailingZeros(word)];
+                        word &= word - 1;
+                        for (int w = w0; w < w1; w++)
+                            ci[w] |= bk[w];
+                    }
+                }
+            }
+        }
+        if (progress != null)
+            progress.rowsDone(to - from);
+    }
+
+    private static class Block extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final BoolMatrix a, b, c;
+        private final int from, to;
+        private final Progress progress;
+
+        Block(BoolMatrix a, BoolMatrix b, BoolMatrix c, int from, int to,
+              Progress progress) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.from = from;
+            this.to = to;
+            this.progress = progress;
+        }
+
+        protected void compute() {
+            if (to - from <= ROW_BLOCK) {
+                c.multiplyBlock(a, b, from, to, progress);
+                return;
+            }
+            int mid = from + Math.max(1, (to - from) / ROW_BLOCK / 2) * ROW_BLOCK;
+            invokeAll(new Block(a, b, c, from, mid, progress),
+                      new Block(a, b, c, mid, to, progress));
+        }
+    }
+}
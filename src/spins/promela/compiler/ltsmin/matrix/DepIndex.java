@@ -0,0 +1,67 @@
+package spins.promela.compiler.ltsmin.matrix;
+
+import java.util.BitSet;
+
+/**
+ * An inverted index of one or more K x N matrices: for every column, the
+ * (ascending) rows that depend on it.
+ *
+ * It is used to enumerate only the pairs of rows that share a column, instead
+ * of testing all K x K pairs. The index is not updated when the matrices
+ * change.
+ */
+public class DepIndex {
+
+    private final int rows;
+    private final int[][] index;
+
+    /**
+     * Indexes the union of the matrices (all of the same dimensions).
+     */
+    public DepIndex(DepMatrix... matrices) {
+        rows = matrices[0].getNrRows();
+        int cols = matrices[0].getNrCols();
+        BitSet[] columns = new BitSet[cols];
+        for (int c = 0; c < cols; c++)
+            columns[c] = new BitSet(rows);
+        for (DepMatrix m : matrices) {
+            for (int r = 0; r < rows; r++) {
+                for (int c : m.getRow(r))
+                    columns[c].set(r);
+            }
+        }
+        index = new int[cols][];
+        for (int c = 0; c < cols; c++)
+            index[c] = toArray(columns[c]);
+    }
+
+    private static int[] toArray(BitSet set) {
+        int[] array = new int[set.cardinality()];
+        int i = 0;
+        for (int r = set.nextSetBit(0); r >= 0; r = set.nextSetBit(r + 1))
+            array[i++] = r;
+        return array;
+    }
+
+    public int getNrRows() {
+        return rows;
+    }
+
+    /**
+     * Adds the rows that depend on any of the columns to the set.
+     */
+    public BitSet collect(Iterable<Integer> cols, BitSet set) {
+        for (int c : cols) {
+            for (int r : index[c])
+                set.set(r);
+        }
+        return set;
+    }
+
+    /**
+     * @return the rows that depend on any of the columns
+     */
+    public BitSet dependent(Iterable<Integer> cols) {
+        return collect(cols, new BitSet(rows));
+    }
+}
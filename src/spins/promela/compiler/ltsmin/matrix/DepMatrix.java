@@ -17,9 +17,30 @@ import spins.util.UnModifiableIterator;
  *  - with a bitset, a row is stored using  N / 8 bytes + 16 bytes, i.e.
  *    constant wrt to this class (8 bits in a byte + BitSet class overhead).
  *
+ * Alternatively, with the BITMAP backend, every row is a compressed
+ * {@link Bitmap}, on which intersection, union and cardinality are computed
+ * word-parallel and without allocation.
  */
 public class DepMatrix {
 
+    public enum Backend {
+        SPARSE, // arrays and bitsets
+        BITMAP  // compressed bitmaps
+    }
+
+    private static Backend defaultBackend = Backend.SPARSE;
+
+    /**
+     * Sets the backend of matrices that are created without one.
+     */
+    public static void setDefaultBackend(Backend backend) {
+        defaultBackend = backend;
+    }
+
+    public static Backend getDefaultBackend() {
+        return defaultBackend;
+    }
+
     private class AList implements Iterable<Integer> {
         private int size = 0;
         private int array[];
@@ -121,13 +142,28 @@ public class DepMatrix {
 
     private final BitSet vector[];
     private final AList sparse[];
+    private final Bitmap bitmaps[]; // null, unless backend is BITMAP
 
-	@SuppressWarnings({ "unused" })
     public DepMatrix(int rows, int cols) {
+        this(rows, cols, defaultBackend);
+    }
+
+	@SuppressWarnings({ "unused" })
+    public DepMatrix(int rows, int cols, Backend backend) {
 	    if (SPARSE_MIN >= SPARSE_MAX)
 	        throw new AssertionError("SPARSEMIN >= SPARSE_MIN");
         this.rows = rows;
         this.cols = cols;
+        if (backend == Backend.BITMAP) {
+            this.vector = null;
+            this.sparse = null;
+            this.bitmaps = new Bitmap[rows];
+            for (int i = 0; i < rows; i++) {
+                bitmaps[i] = new Bitmap();
+            }
+            return;
+        }
+        this.bitmaps = null;
         this.vector = new BitSet[rows];
         this.sparse = new AList[rows];
 		for (int i = 0; i < rows; i++) {
@@ -138,6 +174,16 @@ public class DepMatrix {
     public DepMatrix(DepMatrix org) {
         this.rows = org.rows;
         this.cols = org.cols;
+        if (org.bitmaps != null) {
+            this.vector = null;
+            this.sparse = null;
+            this.bitmaps = new Bitmap[rows];
+            for (int i = 0; i < rows; i++) {
+                bitmaps[i] = new Bitmap(org.bitmaps[i]);
+            }
+            return;
+        }
+        this.bitmaps = null;
         this.vector = new BitSet[rows];
         this.sparse = new AList[rows];
         for (int i = 0; i < rows; i++) {
@@ -150,6 +196,10 @@ public class DepMatrix {
         }
     }
 
+    public Backend getBackend() {
+        return bitmaps == null ? Backend.SPARSE : Backend.BITMAP;
+    }
+
     private void check(int row, int col) {
         if (row < 0 || row >= rows || col < 0 || col >= cols) {
             throw new AssertionError("Invalid matrix access ("+row+","+col+") for "+rows +"X"+cols +"matrix");
@@ -166,6 +216,10 @@ public class DepMatrix {
 
 	public void setDependent(int row, int col) {
         check(row, col);
+        if (bitmaps != null) {
+            bitmaps[row].set(col);
+            return;
+        }
 	    if (vector[row] != null) {
 	        if (sparse[row] != null) {
 	            if (!vector[row].get(col)) {
@@ -193,6 +247,9 @@ public class DepMatrix {
 
     public boolean isDependent(int row, int col) {
         check(row, col);
+        if (bitmaps != null) {
+            return bitmaps[row].get(col);
+        }
         if (vector[row] != null) {
             return vector[row].get(col);
         } else {
@@ -201,6 +258,10 @@ public class DepMatrix {
     }
 
     public void clear() {
+        if (bitmaps != null) {
+            for (Bitmap b : bitmaps) b.clear();
+            return;
+        }
         for (int i = 0; i < rows; i++) {
             if (sparse[i] == null) {
                 sparse[i] = new AList(SPARSE_MIN);
@@ -212,6 +273,10 @@ public class DepMatrix {
     }
     
     public void clearRow(int row) {
+        if (bitmaps != null) {
+            bitmaps[row].clear();
+            return;
+        }
         vector[row] = new BitSet();
         sparse[row].clear(SPARSE_MIN);
     }
@@ -221,6 +286,10 @@ public class DepMatrix {
     }
 
     public void orRow(int row, DepRow depRow) {
+        if (bitmaps != null && depRow.getBitmap() != null) {
+            bitmaps[row].or(depRow.getBitmap());
+            return;
+        }
         for (int col : depRow) {
             setDependent(row, col);
         }
@@ -228,12 +297,19 @@ public class DepMatrix {
 
     // Does not lock the row
     public void orRow(int row, DepMatrix matrix, int j) {
+        if (bitmaps != null && matrix.bitmaps != null) {
+            bitmaps[row].or(matrix.bitmaps[j]);
+            return;
+        }
         for (int col : matrix.getIterator(j)) {
             setDependent(row, col);
         }       
     }
 
 	private Iterable<Integer> getIterator(final int row) {
+        if (bitmaps != null) {
+            return bitmaps[row];
+        }
         if (sparse[row] != null) {
             return sparse[row];
         }
@@ -261,8 +337,23 @@ public class DepMatrix {
         };
 	}
 
+    /**
+     * Sorts and locks all sparse rows (or compresses all bitmap rows).
+     * Afterwards, the matrix can be read concurrently, as long as it is not
+     * modified.
+     */
+    public void lockRows() {
+        if (bitmaps != null) {
+            for (Bitmap b : bitmaps) b.optimize();
+            return;
+        }
+        for (int i = 0; i < rows; i++) {
+            getRow(i);
+        }
+    }
+
     public DepRow getRow(int row) {
-	    if (sparse[row] != null) {
+	    if (sparse != null && sparse[row] != null && !sparse[row].isLocked()) {
 	        vector[row] = null;
 	        sparse[row].sort();
 	    }
@@ -290,17 +381,25 @@ public class DepMatrix {
         }
 
         public void unlock() {
+            if (matrix.sparse == null)
+                return;
             AList list = matrix.sparse[row];
             if (list == null)
                 return;
             list.unlock();
         }
 
+        private Bitmap getBitmap() {
+            return matrix.bitmaps == null ? null : matrix.bitmaps[row];
+        }
+
         private BitSet getBitSet() {
             return this.matrix.vector[this.row];
         }
 
         private Iterable<Integer> getSorted() {
+            if (matrix.sparse == null)
+                return null;
             AList list = matrix.sparse[row];
             if (list == null)
                 return null;
@@ -308,7 +407,15 @@ public class DepMatrix {
         }
 
         public boolean isDependent(DepRow other) { // prefer lists:
-            if (other.getSorted() != null && this.getSorted() != null) {
+            if (getBitmap() != null) {
+                if (other.getBitmap() != null)
+                    return getBitmap().intersects(other.getBitmap());
+                for (int col : other)
+                    if (getBitmap().get(col)) return true;
+                return false;
+            } else if (other.getBitmap() != null) {
+                return other.isDependent(this);
+            } else if (other.getSorted() != null && this.getSorted() != null) {
                 return sortedIterableIntersect(getSorted(), other.getSorted());
             } else if (other.getSorted() != null) {
                 return sortedIterableIntersect(this, other.getSorted());
@@ -320,6 +427,8 @@ public class DepMatrix {
         }
 
         public int getCardinality() {
+            if (getBitmap() != null)
+                return getBitmap().cardinality();
             AList list = matrix.sparse[row];
             return list != null ? list.size() : getBitSet().cardinality();
         }
@@ -349,7 +458,7 @@ public class DepMatrix {
                 return getSorted().iterator();
             }
 
-            return getIterator(row).iterator();
+            return matrix.getIterator(row).iterator();
         }
 
         public int getNrCols() {
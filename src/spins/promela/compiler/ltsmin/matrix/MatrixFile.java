@@ -0,0 +1,238 @@
+package spins.promela.compiler.ltsmin.matrix;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A binary file of packed matrices, which the generated C code maps into
+ * memory at load time instead of compiling the matrices as array literals.
+ *
+ * Every matrix is packed as in LTSminPrinter: as bit set rows of 64-bit
+ * words, or in compressed sparse row (CSR) format, whichever is smaller
+ * (see {@link #packedWords(DepMatrix)}). The layout (little endian, all
+ * blocks 8-byte aligned) is:
+ *
+ *   header: char magic[8] = "SPINSDM", uint32 version, uint32 count,
+ *           uint64 id, uint64 size (of the file)
+ *   table:  count x { uint32 rows, cols, words, 0;
+ *                     uint64 offset of the bits or the CSR index,
+ *                     uint64 offset of the CSR columns (0 for bit sets) }
+ *   data:   rows x words uint64 bits, or
+ *           (rows + 1) int32 index and int32 columns
+ *
+ * The id is a hash of the table and the data. The generated code contains
+ * it, so that it rejects a file of another model (or another version).
+ */
+public class MatrixFile {
+
+    public static final int VERSION = 1;
+    public static final String SUFFIX = ".spins.dm";
+
+    private static final byte[] MAGIC = { 'S','P','I','N','S','D','M', 0 };
+    private static final int HEADER = 32;
+    private static final int ENTRY = 32;
+
+    private final File file;
+    private final List<String> names = new ArrayList<String>();
+    private final List<DepMatrix> matrices = new ArrayList<DepMatrix>();
+    private final List<Long> nnzs = new ArrayList<Long>();
+    private long id = 0;
+
+    public MatrixFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the words of a bit set row of the packed matrix, or 0 if the
+     *         matrix is smaller in CSR format
+     */
+    public static int packedWords(DepMatrix dm) {
+        return packedWords(dm, nnz(dm));
+    }
+
+    private static int packedWords(DepMatrix dm, long nnz) {
+        int rows = dm.getNrRows();
+        int words = (dm.getNrCols() + 63) >>> 6;
+        if (rows > 0 && words > 0 && 8L * rows * words <= 4L * (rows + 1 + nnz))
+            return words;
+        return 0;
+    }
+
+    private static long nnz(DepMatrix dm) {
+        long nnz = 0;
+        for (int r = 0; r < dm.getNrRows(); r++)
+            nnz += dm.getRow(r).getCardinality();
+        return nnz;
+    }
+
+    /**
+     * Adds a matrix to the file.
+     * @param name identifies the matrix for the user of the file
+     * @return the index of the matrix in the file
+     */
+    public int add(String name, DepMatrix dm) {
+        if (id != 0)
+            throw new AssertionError("Matrix file "+ file +" is already sealed");
+        names.add(name);
+        matrices.add(dm);
+        nnzs.add(nnz(dm));
+        return matrices.size() - 1;
+    }
+
+    public int size() {
+        return matrices.size();
+    }
+
+    public String getName(int i) {
+        return names.get(i);
+    }
+
+    /**
+     * @return the id of the file; no matrices can be added afterwards
+     */
+    public long getId() {
+        if (id == 0) {
+            Sink hash = new Sink(null);
+            try {
+                writeBody(hash);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            id = hash.hash == 0 ? 1 : hash.hash;
+        }
+        return id;
+    }
+
+    public void write() throws IOException {
+        long id = getId();
+        Sink out = new Sink(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(matrices.size());
+            out.writeLong(id);
+            out.writeLong(HEADER + bodySize());
+            writeBody(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private long dataSize(int i) {
+        DepMatrix dm = matrices.get(i);
+        long nnz = nnzs.get(i);
+        int words = packedWords(dm, nnz);
+        if (words > 0)
+            return 8L * dm.getNrRows() * words;
+        return align(4L * (dm.getNrRows() + 1)) + align(4L * nnz);
+    }
+
+    private long bodySize() {
+        long size = (long) ENTRY * matrices.size();
+        for (int i = 0; i < matrices.size(); i++)
+            size += dataSize(i);
+        return size;
+    }
+
+    private void writeBody(Sink out) throws IOException {
+        long offset = HEADER + (long) ENTRY * matrices.size();
+        for (int i = 0; i < matrices.size(); i++) {
+            DepMatrix dm = matrices.get(i);
+            long nnz = nnzs.get(i);
+            int words = packedWords(dm, nnz);
+            out.writeInt(dm.getNrRows());
+            out.writeInt(dm.getNrCols());
+            out.writeInt(words);
+            out.writeInt(0);
+            out.writeLong(offset);
+            out.writeLong(words > 0 ? 0 : offset + align(4L * (dm.getNrRows() + 1)));
+            offset += dataSize(i);
+        }
+        for (int i = 0; i < matrices.size(); i++) {
+            DepMatrix dm = matrices.get(i);
+            int words = packedWords(dm, nnzs.get(i));
+            if (words > 0) {
+                long[] bits = new long[words];
+                for (int r = 0; r < dm.getNrRows(); r++) {
+                    for (int w = 0; w < words; w++)
+                        bits[w] = 0;
+                    for (int col : dm.getRow(r))
+                        bits[col >>> 6] |= 1L << col;
+                    for (long word : bits)
+                        out.writeLong(word);
+                }
+            } else {
+                int start = 0;
+                out.writeInt(start);
+                for (int r = 0; r < dm.getNrRows(); r++) {
+                    start += dm.getRow(r).getCardinality();
+                    out.writeInt(start);
+                }
+                out.pad();
+                for (int r = 0; r < dm.getNrRows(); r++) {
+                    for (int col : dm.getRow(r))
+                        out.writeInt(col);
+                }
+                out.pad();
+            }
+        }
+    }
+
+    /**
+     * Writes little endian values and computes the FNV-1a hash of them.
+     */
+    private static class Sink {
+        private final OutputStream out;
+        private long hash = 0xcbf29ce484222325L;
+        private long written = 0;
+
+        Sink(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(byte[] b) throws IOException {
+            for (byte x : b)
+                write(x);
+        }
+
+        void write(int b) throws IOException {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+            written++;
+            if (out != null)
+                out.write(b);
+        }
+
+        void writeInt(int v) throws IOException {
+            for (int i = 0; i < 4; i++)
+                write(v >>> (8 * i));
+        }
+
+        void writeLong(long v) throws IOException {
+            for (int i = 0; i < 8; i++)
+                write((int) (v >>> (8 * i)));
+        }
+
+        void pad() throws IOException {
+            while ((written & 7) != 0)
+                write(0);
+        }
+
+        void close() throws IOException {
+            if (out != null)
+                out.close();
+        }
+    }
+}
@@ -16,6 +16,7 @@ import spins.promela.compiler.expression.Expression;
 import spins.promela.compiler.ltsmin.matrix.LTSminGuard;
 import spins.promela.compiler.ltsmin.matrix.RWMatrix;
 import spins.promela.compiler.ltsmin.model.LTSminModelFeature.ModelFeature;
+import spins.promela.compiler.ltsmin.state.LTSminRange;
 import spins.promela.compiler.ltsmin.state.LTSminSlot;
 import spins.promela.compiler.ltsmin.state.LTSminStateVector;
 import spins.promela.compiler.ltsmin.util.LTSminDebug;
@@ -59,6 +60,7 @@ public class LTSminModel implements Iterable<LTSminTransition> {
 
     // state vector
     public LTSminStateVector sv = null;
+    private Map<Variable, LTSminRange> ranges = null; // values of variables
 
     // next-state assertions
     public List<Pair<Expression,String>> assertions = new LinkedList<Pair<Expression,String>>();
@@ -285,8 +287,21 @@ public class LTSminModel implements Iterable<LTSminTransition> {
                 }
             };
 
-	public void createStateVector(Specification spec, LTSminDebug debug) {
+	/**
+	 * @param ranges the values of the variables, or null if unknown
+	 */
+	public void createStateVector(Specification spec, boolean packed,
+	                              Map<Variable, LTSminRange> ranges,
+	                              LTSminDebug debug) {
+		this.ranges = ranges;
 		sv = new LTSminStateVector();
-		sv.createVectorStructs(spec, debug);
+		sv.createVectorStructs(spec, packed, ranges, debug);
+	}
+
+	/**
+	 * @return the values of the variables (see LTSminRangeWalker), or null
+	 */
+	public Map<Variable, LTSminRange> getRanges() {
+		return ranges;
 	}
 }
@@ -160,6 +160,32 @@ public class LTSminTransition implements LTSminGuardContainer,
 		return null != end && end.isAtomic();
 	}
 
+	/**
+	 * The deterministic prefix of the atomic sequence that this transition
+	 * enters: as long as the current atomic state has one outgoing transition
+	 * (of its own process) and lies on no atomic cycle, that transition is
+	 * the only candidate to continue the sequence. If its guards do not hold,
+	 * the sequence blocks and the state is a successor, like the search of
+	 * spins_simple_reach does.
+	 *
+	 * @return the transitions of the prefix, in order. If the end of the last
+	 *         (or of this transition, if empty) is still atomic, the rest of
+	 *         the sequence has to be searched at run time.
+	 */
+	public List<LTSminTransition> getAtomicSequence() {
+		List<LTSminTransition> sequence = new ArrayList<LTSminTransition>();
+		Set<LTSminState> seen = new HashSet<LTSminState>();
+		LTSminState s = end;
+		while (null != s && s.isAtomic() && !s.liesOnCycle() && seen.add(s)) {
+			if (s.getOut().size() != 1) break;
+			LTSminTransition next = s.getOut().get(0);
+			if (next.getProcess() != s.getProc() || null == next.getEnd()) break;
+			sequence.add(next);
+			s = next.getEnd();
+		}
+		return sequence;
+	}
+
 	public Transition getTransition() {
 		return original;
 	}
@@ -41,41 +41,26 @@ spins_get_table_from_tls (spins_args_t *args)
     }
 }
 
-extern void spins_dfs (spins_args_t *args, state_t *state, int atomic, int *cpy);
-
-void
-spins_atomic_cb (void* arg, transition_info_t *transition_info, state_t *out, int atomic, int *cpy)
-{
-	spins_args_t *args = (spins_args_t *)arg;
-	if (leaves_atomic[transition_info->group]) {
-		args->callback (args->arg, args->ti_orig, out, cpy);
-		args->outs++;
-	} else {
-		spins_dfs (args, out, atomic, cpy);
-	}
-}
-void
-spins_dfs (spins_args_t *args, state_t *state, int atomic, int *cpy)
+int
+spins_seen (spins_args_t *args, state_t *state)
 {
     spins_get_table_from_tls (args);
 	int result = spins_state_db_lookup (args->table, (const int*)state);
-	switch ( result ) {
-	case false: { // new state
-		state_t out;
-		int count = spins_get_successor_sid (args->model, state, args, &out, atomic, cpy);
-		if (count == 0) {
-			args->callback (args->arg, args->ti_orig, state, cpy);
-			args->outs++;
-		}
-		break;
-	}
-	case STATE_DB_FULL: // full database
+	if (result == STATE_DB_FULL) {
 		printf ("ERROR: model's internal atomic state database is filled "
 		        "(max size = 2^%zu). Increase DB_MAX_SIZE.", DB_MAX_SIZE);
 		exit (1);
-	case true: break; // seen state
-	default: break;
 	}
+	return result;
+}
+
+void
+spins_atomic_cb (void* arg, transition_info_t *transition_info, state_t *out, int atomic, int *cpy)
+{
+	spins_args_t *args = (spins_args_t *)arg;
+	args->seen = spins_seen;
+	spins_kind_t kind = leaves_atomic[transition_info->group] ? SPINS_EMIT : SPINS_CHECK;
+	spins_push_atomic (args, out, atomic, cpy, kind);
 }
 
 inline int
@@ -84,13 +69,15 @@ spins_reach (void* model, transition_info_t *transition_info, state_t *in,
 	   void *arg, int sid, int *cpy) {
     spins_args_t args;
     args.table = NULL;
+    args.seen = spins_seen;
     args.model = model;
     args.callback = callback;
     args.arg = arg;
     args.outs = 0;
     args.sid = sid;
     args.ti_orig = transition_info;
-	spins_dfs (&args, in, sid, cpy);
+    SPINS_METRICS_REACH (&args);
+	spins_search (&args, in, sid, cpy, SPINS_CHECK);
 	return args.outs;
 }
 
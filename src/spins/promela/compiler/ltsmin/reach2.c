@@ -670,6 +670,8 @@ main(int argc, char **argv)
 
 #endif
 
+typedef struct spins_stack_s spins_stack_t;
+
 typedef struct spins_args_s {
     void               *model;
     void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy);
@@ -678,45 +680,261 @@ typedef struct spins_args_s {
     int                 sid;
     transition_info_t  *ti_orig;
     void               *table;
+    spins_stack_t      *stack;      // on first use
+    size_t              level;      // of recursion
+    size_t              depth;      // of the state that is expanded
+    int                 empty;      // no successor of the state waits yet
+    int (*seen)(struct spins_args_s *args, state_t *state);
 } spins_args_t;
 
-extern void spins_simple_dfs (spins_args_t *args, state_t *state, int atomic, int *cpy);
+/* Counters of the atomic expansions and the state database (see the
+ * metrics of the generated code), which are empty without SPINS_METRICS. */
+#ifdef SPINS_METRICS
+#define SPINS_METRIC_INC(field) (spins_metrics()->field++)
+#define SPINS_METRICS_REACH(args) (spins_metrics()->reach++)
+#define SPINS_METRICS_EXPAND(depth) do { spins_metrics_t *m = spins_metrics(); \
+        m->reach_states++; \
+        if ((depth) > m->reach_depth) m->reach_depth = (depth); \
+    } while (0)
+#else
+#define SPINS_METRIC_INC(field)
+#define SPINS_METRICS_REACH(args)
+#define SPINS_METRICS_EXPAND(depth)
+#endif
+
+/* The states of an atomic block are searched depth-first. The callbacks of
+ * the sid functions recurse into the successors while the recursion fits in
+ * about SPINS_ATOMIC_STACK bytes of the C stack. Below that, the successors
+ * wait on an explicit stack: in a frame per expanded state, in the order of
+ * the callbacks, in which they are emitted (if they leave the block) or
+ * expanded, so the successors come out as in a recursive search. The
+ * entries live in chunks that do not move, and are reused by the searches
+ * of a thread. A search deeper than SPINS_ATOMIC_DEPTH states is an error. */
+#ifndef SPINS_ATOMIC_DEPTH
+#define SPINS_ATOMIC_DEPTH 65536
+#endif
+#ifndef SPINS_ATOMIC_STACK
+#define SPINS_ATOMIC_STACK 65536
+#endif
+#define SPINS_ATOMIC_RECURSION (SPINS_ATOMIC_STACK / (2 * sizeof(state_t) + 256))
+#define SPINS_CHUNK 64
+
+typedef enum {
+    SPINS_EMIT,                     // leaves the atomic block
+    SPINS_EXPAND,                   // stays in the atomic block
+    SPINS_CHECK                     // stays in it, and may lie on a cycle
+} spins_kind_t;
+
+typedef struct spins_entry_s {
+    spins_kind_t        kind;
+    int                 atomic;     // the process that continues
+    size_t              depth;
+    int                 has_cpy;
+    int                 cpy[sizeof(state_t) / sizeof(int)];
+    state_t             state;
+} spins_entry_t;
+
+typedef struct spins_frame_s {
+    size_t              begin;      // the successors are begin .. top
+    size_t              next;
+} spins_frame_t;
+
+struct spins_stack_s {
+    spins_entry_t     **chunks;
+    size_t              nchunks;
+    size_t              top;
+    spins_frame_t      *frames;
+    size_t              nframes;
+    size_t              depth;
+};
+
+static pthread_once_t spins_stack_once = PTHREAD_ONCE_INIT;
+static pthread_key_t spins_stack_key;
+static __thread spins_stack_t *spins_stack = NULL;
 
 void
-spins_simple_atomic_cb (void* arg, transition_info_t *transition_info, state_t *out, int atomic, int *cpy)
+spins_free_stack (void *a)
 {
-    spins_args_t *args = (spins_args_t *)arg;
-    if (leaves_atomic[transition_info->group]) {
-        args->callback (args->arg, args->ti_orig, out, cpy);
-        args->outs++;
-    } else {
-        spins_simple_dfs (args, out, atomic, cpy);
-    }
+    spins_stack_t *stack = (spins_stack_t *)a;
+    size_t i;
+    for (i = 0; i < stack->nchunks; i++)
+        free (stack->chunks[i]);
+    free (stack->chunks);
+    free (stack->frames);
+    free (stack);
 }
 
 void
-spins_simple_dfs (spins_args_t *args, state_t *state, int atomic, int *cpy)
+spins_initialize_stack_key ()
+{
+    pthread_key_create (&spins_stack_key, spins_free_stack);
+}
+
+static void *
+spins_realloc (void *p, size_t size)
 {
+    p = realloc (p, size);
+    if (p == NULL) {
+        printf ("Out of memory - ");
+        exit (1);
+    }
+    return p;
+}
+
+spins_stack_t *
+spins_get_stack ()
+{
+    if (EXPECT_FALSE(spins_stack == NULL)) {
+        (void) pthread_once (&spins_stack_once, spins_initialize_stack_key);
+        spins_stack = spins_realloc (NULL, sizeof(spins_stack_t));
+        memset (spins_stack, 0, sizeof(spins_stack_t));
+        pthread_setspecific (spins_stack_key, spins_stack); // frees it
+    }
+    return spins_stack;
+}
+
+static inline spins_entry_t *
+spins_entry (spins_stack_t *stack, size_t ref)
+{
+    return &stack->chunks[ref / SPINS_CHUNK][ref % SPINS_CHUNK];
+}
+
+static inline void
+spins_push_frame (spins_stack_t *stack)
+{
+    if (EXPECT_FALSE(stack->depth == stack->nframes)) {
+        stack->nframes = stack->nframes == 0 ? SPINS_CHUNK : stack->nframes << 1;
+        stack->frames = spins_realloc (stack->frames, sizeof(spins_frame_t[stack->nframes]));
+    }
+    spins_frame_t *frame = &stack->frames[stack->depth++];
+    frame->begin = frame->next = stack->top;
+}
+
+/* Expands a state: its successors are emitted, searched recursively or
+ * pushed by the callbacks. It is emitted itself if it has none. */
+static inline void
+spins_expand (spins_args_t *args, state_t *state, int atomic, int *cpy, size_t depth)
+{
+    if (EXPECT_FALSE(depth > SPINS_ATOMIC_DEPTH)) {
+        printf ("ERROR: model's atomic search is too deep "
+                "(max depth = %d). Increase SPINS_ATOMIC_DEPTH.", SPINS_ATOMIC_DEPTH);
+        exit (1);
+    }
+    SPINS_METRICS_EXPAND (depth);
+    args->depth = depth;
+    args->empty = true;
     state_t out;
     int count = spins_get_successor_sid (args->model, state, args, &out, atomic, cpy);
-    if (count == 0) {
+    if (count == 0) { // blocked: the state is a successor
         args->callback (args->arg, args->ti_orig, state, cpy);
         args->outs++;
     }
 }
 
+/* Searches the atomic block from a state, until its successors that had to
+ * wait on the stack are done. */
+void
+spins_atomic_dfs (spins_args_t *args, state_t *state, int atomic, int *cpy, size_t depth)
+{
+    spins_expand (args, state, atomic, cpy, depth);
+    if (args->empty) return;
+    spins_stack_t *stack = args->stack;
+    size_t bottom = stack->depth - 1;
+    while (stack->depth > bottom) {
+        spins_frame_t *frame = &stack->frames[stack->depth - 1];
+        if (frame->next == stack->top) {
+            stack->top = frame->begin;
+            stack->depth--;
+            continue;
+        }
+        spins_entry_t *e = spins_entry (stack, frame->next++);
+        int *c = e->has_cpy ? e->cpy : NULL;
+        if (e->kind == SPINS_EMIT) {
+            args->callback (args->arg, args->ti_orig, &e->state, c);
+            args->outs++;
+            continue;
+        }
+        if (e->kind == SPINS_CHECK && args->seen (args, &e->state))
+            continue;
+        spins_expand (args, &e->state, e->atomic, c, e->depth);
+    }
+}
+
+/* Handles a successor of the state that is expanded. */
+void
+spins_push_atomic (spins_args_t *args, state_t *out, int atomic, int *cpy,
+                   spins_kind_t kind)
+{
+    if (args->empty) { // no earlier successor waits
+        if (kind == SPINS_EMIT) {
+            args->callback (args->arg, args->ti_orig, out, cpy);
+            args->outs++;
+            return;
+        }
+        if (args->level < SPINS_ATOMIC_RECURSION) {
+            if (kind == SPINS_CHECK && args->seen (args, out))
+                return;
+            size_t depth = args->depth;
+            args->level++;
+            spins_atomic_dfs (args, out, atomic, cpy, depth + 1);
+            args->level--;
+            args->depth = depth;
+            args->empty = true;
+            return;
+        }
+        if (args->stack == NULL)
+            args->stack = spins_get_stack ();
+        spins_push_frame (args->stack);
+        args->empty = false;
+    }
+    spins_stack_t *stack = args->stack;
+    if (EXPECT_FALSE(stack->top == stack->nchunks * SPINS_CHUNK)) {
+        stack->chunks = spins_realloc (stack->chunks, sizeof(spins_entry_t *[stack->nchunks + 1]));
+        stack->chunks[stack->nchunks++] = spins_realloc (NULL, sizeof(spins_entry_t[SPINS_CHUNK]));
+    }
+    spins_entry_t *e = spins_entry (stack, stack->top++);
+    e->kind = kind;
+    e->atomic = atomic;
+    e->depth = args->depth + 1;
+    e->has_cpy = cpy != NULL;
+    if (cpy != NULL) memcpy (e->cpy, cpy, sizeof(e->cpy));
+    memcpy (&e->state, out, sizeof(state_t));
+}
+
+void
+spins_simple_atomic_cb (void* arg, transition_info_t *transition_info, state_t *out, int atomic, int *cpy)
+{
+    spins_args_t *args = (spins_args_t *)arg;
+    spins_kind_t kind = leaves_atomic[transition_info->group] ? SPINS_EMIT : SPINS_EXPAND;
+    spins_push_atomic (args, out, atomic, cpy, kind);
+}
+
+/* Searches the atomic block from state in. A callback may start a search of
+ * its own, which uses the stack above the frames of this one. */
+void
+spins_search (spins_args_t *args, state_t *in, int atomic, int *cpy, spins_kind_t kind)
+{
+    args->stack = NULL;
+    args->level = 0;
+    if (kind == SPINS_CHECK && args->seen (args, in))
+        return;
+    spins_atomic_dfs (args, in, atomic, cpy, 1);
+}
+
 inline int
 spins_simple_reach (void* model, transition_info_t *transition_info, state_t *in,
        void (*callback)(void* arg, transition_info_t *transition_info, state_t *out, int *cpy),
        void *arg, int sid, int *cpy) {
     spins_args_t args;
     args.table = NULL;
+    args.seen = NULL;
     args.model = model;
     args.callback = callback;
     args.arg = arg;
     args.outs = 0;
     args.sid = sid;
     args.ti_orig = transition_info;
-    spins_simple_dfs (&args, in, sid, cpy);
+    SPINS_METRICS_REACH (&args);
+    spins_search (&args, in, sid, cpy, SPINS_EXPAND);
     return args.outs;
 }
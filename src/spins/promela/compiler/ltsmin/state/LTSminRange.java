@@ -0,0 +1,68 @@
+package spins.promela.compiler.ltsmin.state;
+
+/**
+ * An interval of values: min..max, or empty if min is larger than max.
+ */
+public class LTSminRange {
+
+	public static final LTSminRange INT = new LTSminRange(Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+	private final long min;
+	private final long max;
+
+	public LTSminRange(long min, long max) {
+		this.min = min;
+		this.max = max;
+	}
+
+	public LTSminRange(long value) {
+		this(value, value);
+	}
+
+	public long getMin() {
+		return min;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public boolean isEmpty() {
+		return min > max;
+	}
+
+	public boolean contains(LTSminRange r) {
+		return r.isEmpty() || (min <= r.min && r.max <= max);
+	}
+
+	/**
+	 * @return the smallest range that contains both ranges
+	 */
+	public LTSminRange join(LTSminRange r) {
+		if (r.isEmpty() || contains(r)) return this;
+		if (isEmpty() || r.contains(this)) return r;
+		return new LTSminRange(Math.min(min, r.min), Math.max(max, r.max));
+	}
+
+	/**
+	 * @return the values that lie in both ranges
+	 */
+	public LTSminRange meet(LTSminRange r) {
+		return new LTSminRange(Math.max(min, r.min), Math.min(max, r.max));
+	}
+
+	public final boolean equals(Object o) {
+		if (!(o instanceof LTSminRange))
+			return false;
+		LTSminRange r = (LTSminRange)o;
+		return (isEmpty() && r.isEmpty()) || (min == r.min && max == r.max);
+	}
+
+	public final int hashCode() {
+		return isEmpty() ? 0 : (int)(min * 37 + max);
+	}
+
+	public String toString() {
+		return isEmpty() ? "[]" : "["+ min +".."+ max +"]";
+	}
+}
@@ -9,6 +9,8 @@ import spins.promela.compiler.ltsmin.model.LTSminModelFeature;
 public class LTSminSlot extends LTSminSubVector implements LTSminModelFeature {
 	private LTSminVariable var;
 	private int index;
+	private int bytes;
+	private boolean shared = false;
 	String fullName;
 	
 	public LTSminSlot (LTSminVariable var, String fullName, int index) {
@@ -17,16 +19,46 @@ public class LTSminSlot extends LTSminSubVector implements LTSminModelFeature {
 		this.var = var;
 		this.fullName = fullName;
 		this.index = index;
+		this.bytes = index * 4;
 	}
 	
 	public LTSminVariable getVariable() {
 		return var;
 	}
 
+	/**
+	 * @return the 32-bit slot of the state vector that holds the variable
+	 */
 	public int getIndex() {
 		return index;
 	}
 
+	/**
+	 * @return the offset of the variable in the state vector in bytes
+	 */
+	public int getByteOffset() {
+		return bytes;
+	}
+
+	/**
+	 * Places the variable in a packed state vector.
+	 */
+	void setByteOffset(int bytes) {
+		this.bytes = bytes;
+		this.index = bytes / 4;
+	}
+
+	/**
+	 * @return whether other variables share the slot of this one
+	 */
+	public boolean isShared() {
+		return shared;
+	}
+
+	void setShared(boolean shared) {
+		this.shared = shared;
+	}
+
 	public String fullName() {
 		return fullName;
 	}
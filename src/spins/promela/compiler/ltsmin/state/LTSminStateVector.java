@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import spins.promela.compiler.ProcInstance;
@@ -43,6 +44,8 @@ public class LTSminStateVector extends LTSminSubVectorStruct
 
 	private List<LTSminSlot> 			stateVector;// the flattened vector
 	LTSminTypeStruct 					state_t;	// tree of structs
+	private boolean						packed = false;
+	private List<List<LTSminSlot>>		slots;		// variables per slot
 
 	/**
 	 * Creates a new StateVector
@@ -58,17 +61,87 @@ public class LTSminStateVector extends LTSminSubVectorStruct
 
 	/**
 	 * Creates the state vector and required types
+	 * @param packed whether narrow variables share 32-bit slots
+	 * @param ranges the values of the variables (or null), to which a packed
+	 *        state vector narrows their types
 	 */
-	public void createVectorStructs(Specification spec, LTSminDebug debug) {
+	public void createVectorStructs(Specification spec, boolean packed,
+									Map<Variable, LTSminRange> ranges,
+									LTSminDebug debug) {
 	    debug.say("Creating state vector");
 	    debug.say_indent++;
 
-		addSpecification(state_t, spec, debug);	
+		addSpecification(state_t, spec, packed ? ranges : null, debug);
 		flattenStateVector(state_t, "");
 		state_t.fix();
+		this.packed = packed;
+		int n = packed ? pack() : stateVector.size();
+		slots = new ArrayList<List<LTSminSlot>>();
+		for (int i = 0; i < n; i++)
+			slots.add(new ArrayList<LTSminSlot>());
+		for (LTSminSlot slot : stateVector)
+			slots.get(slot.getIndex()).add(slot);
+		for (LTSminSlot slot : stateVector)
+			slot.setShared(slots.get(slot.getIndex()).size() > 1);
+		if (packed) {
+			debug.say("Packed %d variables into %d slots (%d bytes instead of %d)",
+					  stateVector.size(), n, n * 4, stateVector.size() * 4);
+		}
 
         debug.say_indent--;
 	}
+
+	/**
+	 * Lays out the variables like the C compiler lays out the packed native
+	 * types (see LTSminPrinter): a native type is aligned to its size, a
+	 * struct to its largest member and the state to 4 bytes. Narrow
+	 * variables so share the 32-bit slots of the vector.
+	 * @return the number of slots
+	 */
+	private int pack() {
+		Iterator<LTSminSlot> leafs = stateVector.iterator();
+		int bytes = layout(state_t, 0, leafs);
+		return align(bytes, 4) / 4;
+	}
+
+	/**
+	 * Places the variables of a struct that starts at offset.
+	 * @return the offset of the end of the struct
+	 */
+	private static int layout(LTSminTypeStruct type, int offset,
+							  Iterator<LTSminSlot> leafs) {
+		int begin = offset;
+		for (LTSminVariable v : type) {
+			for (int i = 0; i < Math.max(v.array(), 1); i++) {
+				if (v.getType() instanceof LTSminTypeStruct) {
+					LTSminTypeStruct struct = (LTSminTypeStruct)v.getType();
+					offset = layout(struct, align(offset, alignment(struct)), leafs);
+				} else {
+					int size = ((LTSminTypeNative)v.getType()).bytes();
+					offset = align(offset, size);
+					leafs.next().setByteOffset(offset);
+					offset += size;
+				}
+			}
+		}
+		return begin + align(offset - begin, alignment(type));
+	}
+
+	private static int alignment(LTSminTypeStruct type) {
+		int alignment = 1;
+		for (LTSminVariable v : type) {
+			if (v.getType() instanceof LTSminTypeStruct) {
+				alignment = Math.max(alignment, alignment((LTSminTypeStruct)v.getType()));
+			} else {
+				alignment = Math.max(alignment, ((LTSminTypeNative)v.getType()).bytes());
+			}
+		}
+		return alignment;
+	}
+
+	private static int align(int offset, int alignment) {
+		return (offset + alignment - 1) / alignment * alignment;
+	}
 	
 	List<LTSminTypeStruct> types = null;
 	public List<LTSminTypeStruct> getTypes() {
@@ -117,13 +190,13 @@ public class LTSminStateVector extends LTSminSubVectorStruct
 	 * Extract processes and globals from spec and add it to state_t
 	 */
 	private void addSpecification(LTSminTypeStruct state_t, Specification spec,
-			LTSminDebug debug) {
+			Map<Variable, LTSminRange> ranges, LTSminDebug debug) {
 		// Globals: initialise globals state struct and add to main state struct
 		debug.say(MessageKind.DEBUG, "== Globals");
 		LTSminTypeStruct global_t = new LTSminTypeStruct(C_STATE_GLOBALS);
 		VariableStore globals = spec.getVariableStore();
 		for (Variable var : globals.getVariables())
-			addVariable(global_t, var, debug);
+			addVariable(global_t, var, ranges, debug);
 		// Add global state struct to main state struct
 		//addMember(new LTSminVariable(global_t, C_STATE_GLOBALS, this));
 
@@ -131,7 +204,7 @@ public class LTSminStateVector extends LTSminSubVectorStruct
 		if (spec.getNever()!=null) {
 			debug.say(MessageKind.DEBUG, "== Never");
 			Proctype p = spec.getNever();
-			addProcess (state_t, p, debug);
+			addProcess (state_t, p, ranges, debug);
 		}
 		int i = 0;
 		// Processes:
@@ -146,7 +219,7 @@ public class LTSminStateVector extends LTSminSubVectorStruct
             }
             prevName = p.getProcName();
             i++;
-            addProcess (state_t, p, debug);
+            addProcess (state_t, p, ranges, debug);
 		}
 		if (!emitted_globals) {
             addMember(new LTSminVariable(global_t, C_STATE_GLOBALS, this));
@@ -156,7 +229,8 @@ public class LTSminStateVector extends LTSminSubVectorStruct
 	/**
 	 * Add a variable declarations of proctype p to struct
 	 */
-	private void addProcess(LTSminTypeStruct state_t, Proctype p, LTSminDebug debug) {
+	private void addProcess(LTSminTypeStruct state_t, Proctype p,
+							Map<Variable, LTSminRange> ranges, LTSminDebug debug) {
 		String name = p.getName();
 		
 		// Initialise process state struct and add to main state struct
@@ -165,7 +239,7 @@ public class LTSminStateVector extends LTSminSubVectorStruct
 	
 		// Locals: add locals to the process state struct
 		for (Variable var : p.getVariables()) {
-			addVariable(process_t, var, debug);
+			addVariable(process_t, var, ranges, debug);
 		}
 
 		// Add process state struct to main state struct
@@ -176,6 +250,16 @@ public class LTSminStateVector extends LTSminSubVectorStruct
 	 * Add a variable declaration to struct
 	 */
 	public static void addVariable(LTSminTypeStruct struct, Variable var, LTSminDebug debug) {
+		addVariable(struct, var, null, debug);
+	}
+
+	/**
+	 * Add a variable declaration to struct, of the narrowest type that holds
+	 * its values if these are known
+	 */
+	private static void addVariable(LTSminTypeStruct struct, Variable var,
+									Map<Variable, LTSminRange> ranges,
+									LTSminDebug debug) {
 		if (var.isHidden()) return;
 		String name = var.getName();
 		LTSminVariable lvar = null;
@@ -205,7 +289,11 @@ public class LTSminStateVector extends LTSminSubVectorStruct
 	        } catch (ParseException pe) {
         		debug.say(MessageKind.DEBUG, var.getType().getName() +" "+ name);
 	        }
-			lvar = new LTSminVariable(LTSminTypeNative.get(var), var, struct);
+			LTSminRange values = null == ranges ? null : ranges.get(var);
+			LTSminTypeNative type = LTSminTypeNative.get(var, values);
+			if (type != LTSminTypeNative.get(var))
+				debug.say(MessageKind.DEBUG, "  "+ values +" --> NARROWED TO "+ type);
+			lvar = new LTSminVariable(type, var, struct);
 		} else {
 			throw new AssertionError("ERROR: Unable to handle: " + var.getType().getName());
 		}
@@ -223,8 +311,23 @@ public class LTSminStateVector extends LTSminSubVectorStruct
         return stateVector;
     }
 
+	/**
+	 * @return the number of (32-bit) slots of the state vector
+	 */
 	public int size() {
-		return stateVector.size();
+		return slots.size();
+	}
+
+	/**
+	 * @return the variables in a slot, of which there are more than one
+	 *         only in a packed state vector
+	 */
+	public List<LTSminSlot> getSlots(int slot) {
+		return slots.get(slot);
+	}
+
+	public boolean isPacked() {
+		return packed;
 	}
 
 	public LTSminSlot get(int i) {
@@ -1,5 +1,6 @@
 package spins.promela.compiler.ltsmin.state;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -22,37 +23,94 @@ public class LTSminTypeNative extends LTSminTypeImpl {
 	private static final String C_TYPE_UINT16 = "sj_uint16";
 	private static final String C_TYPE_UINT32 = "sj_uint32";
 
-	public static Map<String, LTSminTypeNative> types = new HashMap<String, LTSminTypeNative>();
+	private static final Map<String, LTSminTypeNative> types = new HashMap<String, LTSminTypeNative>();
 
 	public static final String ACCESS = "var";
-	public static final LTSminTypeNative TYPE_BOOL = new LTSminTypeNative(C_TYPE_UINT1);
-	public static final LTSminTypeNative TYPE_INT8 = new LTSminTypeNative(C_TYPE_INT8);
-	public static final LTSminTypeNative TYPE_INT16 = new LTSminTypeNative(C_TYPE_INT16);
-	public static final LTSminTypeNative TYPE_INT32 = new LTSminTypeNative(C_TYPE_INT32);
-	public static final LTSminTypeNative TYPE_UINT8 = new LTSminTypeNative(C_TYPE_UINT8);
-	public static final LTSminTypeNative TYPE_UINT16 = new LTSminTypeNative(C_TYPE_UINT16);
-	public static final LTSminTypeNative TYPE_UINT32 = new LTSminTypeNative(C_TYPE_UINT32);
+	public static final LTSminTypeNative TYPE_BOOL = new LTSminTypeNative(C_TYPE_UINT1, 1, 0, 1);
+	public static final LTSminTypeNative TYPE_INT8 = new LTSminTypeNative(C_TYPE_INT8, 1, Byte.MIN_VALUE, Byte.MAX_VALUE);
+	public static final LTSminTypeNative TYPE_INT16 = new LTSminTypeNative(C_TYPE_INT16, 2, Short.MIN_VALUE, Short.MAX_VALUE);
+	public static final LTSminTypeNative TYPE_INT32 = new LTSminTypeNative(C_TYPE_INT32, 4, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	public static final LTSminTypeNative TYPE_UINT8 = new LTSminTypeNative(C_TYPE_UINT8, 1, 0, 0xFF);
+	public static final LTSminTypeNative TYPE_UINT16 = new LTSminTypeNative(C_TYPE_UINT16, 2, 0, 0xFFFF);
+	public static final LTSminTypeNative TYPE_UINT32 = new LTSminTypeNative(C_TYPE_UINT32, 4, 0, 0xFFFFFFFFL);
 	public static final LTSminTypeNative TYPE_PC = TYPE_INT8;
 
+	// the types that a variable may be narrowed to, from narrow to wide
+	private static final LTSminTypeNative[] NARROW = { TYPE_UINT8, TYPE_INT8,
+	                                                   TYPE_UINT16, TYPE_INT16 };
 	
 	Variable var = null;
 	String name;
+	int bytes;
+	LTSminRange range;
 	
-	private LTSminTypeNative(String name) {
+	private LTSminTypeNative(String name, int bytes, long min, long max) {
 		this.name = name;
+		this.bytes = bytes;
+		this.range = new LTSminRange(min, max);
 		types.put(name,  this);
 	}
 
+	/**
+	 * @return the native types (immutable, shared by all compilations)
+	 */
+	public static Map<String, LTSminTypeNative> getTypes() {
+		return Collections.unmodifiableMap(types);
+	}
+
 	public static LTSminTypeNative get(Variable var) {
 		LTSminTypeNative t = types.get(getCType(var));
 		if (t == null) throw new RuntimeException("");
 		return t;
 	}
 
+	/**
+	 * @return the narrowest type that holds the values of the variable, or the
+	 *         type of its declaration if the values are unknown (null)
+	 */
+	public static LTSminTypeNative get(Variable var, LTSminRange values) {
+		LTSminTypeNative t = get(var);
+		if (null == values) return t;
+		for (LTSminTypeNative n : NARROW)
+			if (n.bytes < t.bytes && n.range.contains(values)) return n;
+		return t;
+	}
+
 	public String toString() {
 		return name;
 	}
+
+	/**
+	 * @return the size (and alignment) of the type in a packed state vector
+	 */
+	public int bytes() {
+		return bytes;
+	}
 	
+	/**
+	 * @return the values of the type
+	 */
+	public LTSminRange getRange() {
+		return range;
+	}
+
+	/**
+	 * A slot holds the value of a narrow type without sign extension: the
+	 * rest of the slot is zero, negative values appear as large ones.
+	 * @return the values of a slot that holds the values of a variable of
+	 *         this type
+	 */
+	public LTSminRange getSlotRange(LTSminRange values) {
+		if (bytes == 4)
+			return values.getMax() > Integer.MAX_VALUE ? LTSminRange.INT : values;
+		if (values.getMin() >= 0)
+			return values;
+		long wrap = 1L << (bytes * 8);
+		if (values.getMax() < 0)
+			return new LTSminRange(values.getMin() + wrap, values.getMax() + wrap);
+		return new LTSminRange(0, wrap - 1);
+	}
+
 	@Override
 	public String getName() {
 		return name;
@@ -2,6 +2,8 @@ package spins.promela.compiler.ltsmin.util;
 
 import java.io.PrintStream;
 
+import spins.Compile.CompileExit;
+
 public class LTSminDebug {
 	static final String TAB = "   ";
 	
@@ -49,7 +51,7 @@ public class LTSminDebug {
 		case FATAL:
 			tabs(System.err);
 			System.err.println(s);
-			System.exit(-100);
+			throw new CompileExit(-100);
 		default: throw new AssertionError("Unimplemented debug message kind: "+ k);
 		}
 		said = true;
@@ -28,7 +28,7 @@ public class LTSminProgress {
         updateProgress(1);
     }
 
-    public LTSminProgress updateProgress(int num) {
+    public synchronized LTSminProgress updateProgress(int num) {
         current = current + num;
         double progressPercentage = ((double)current) / total;
         int nr = (int)(progressPercentage*width);
@@ -0,0 +1,135 @@
+package spins.promela.compiler.ltsmin.util;
+
+import static spins.promela.compiler.ltsmin.util.SimplePredicate.extract_conjunct_predicates;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import spins.promela.compiler.expression.BooleanExpression;
+import spins.promela.compiler.expression.EvalExpression;
+import spins.promela.compiler.expression.Expression;
+import spins.promela.compiler.ltsmin.LTSminDMWalker;
+import spins.promela.compiler.ltsmin.LTSminDMWalker.MarkAction;
+import spins.promela.compiler.ltsmin.matrix.DepMatrix;
+import spins.promela.compiler.ltsmin.matrix.DepMatrix.DepRow;
+import spins.promela.compiler.ltsmin.model.GuardInfo;
+import spins.promela.compiler.ltsmin.model.LTSminModel;
+import spins.promela.compiler.ltsmin.util.LTSminDebug.MessageKind;
+
+/**
+ * Caches the simple predicates of the leaves of all guard expressions, so
+ * that the guard matrix generators do not have to extract them (and the
+ * slots they read) again for every guard/guard or guard/transition pair.
+ *
+ * The cache is filled once, after the guard labels are fixed, and is read-only
+ * afterwards (it may be shared by the threads generating the matrices).
+ * Leaves that are not cached are analyzed on the fly.
+ */
+public class PredicateCache {
+
+	/**
+	 * The conjunct predicates of a leaf expression.
+	 */
+	public static class Conjuncts {
+		private final List<SimplePredicate> predicates;
+		private final List<SimplePredicate> inverted;
+		private final boolean missed;
+		private final boolean missedInverted;
+		private final DepMatrix reads; // row 0: leaf, row i+1: predicate i
+
+		private Conjuncts(LTSminModel model, Expression e) {
+			List<SimplePredicate> sps = new ArrayList<SimplePredicate>();
+			missed = extract_conjunct_predicates(model, sps, e, false);
+			missedInverted = extract_conjunct_predicates(model,
+							new ArrayList<SimplePredicate>(), e, true);
+			List<SimplePredicate> inv = new ArrayList<SimplePredicate>(sps.size());
+			for (SimplePredicate sp : sps)
+				inv.add(sp.invert());
+			predicates = Collections.unmodifiableList(sps);
+			inverted = Collections.unmodifiableList(inv);
+
+			reads = new DepMatrix(sps.size() + 1, model.sv.size());
+			LTSminDMWalker.walkOneGuard(model, reads, e, 0, MarkAction.READ);
+			for (int i = 0; i < sps.size(); i++)
+				LTSminDMWalker.walkOneGuard(model, reads, sps.get(i).e, i + 1,
+											MarkAction.READ);
+			reads.lockRows();
+		}
+
+		/**
+		 * @return the predicates, or their inverses
+		 */
+		public List<SimplePredicate> getPredicates(boolean invert) {
+			return invert ? inverted : predicates;
+		}
+
+		/**
+		 * @return whether a conjunct was missed (see
+		 * {@link SimplePredicate#extract_conjunct_predicates})
+		 */
+		public boolean isMissed(boolean invert) {
+			return invert ? missedInverted : missed;
+		}
+
+		/**
+		 * @return the slots read by the leaf expression
+		 */
+		public DepRow getReads() {
+			return reads.getRow(0);
+		}
+
+		/**
+		 * @return the slots read by predicate i (or its inverse)
+		 */
+		public DepRow getReads(int i) {
+			return reads.getRow(i + 1);
+		}
+	}
+
+	private final LTSminModel model;
+	private final Map<Expression, Conjuncts> cache =
+							new IdentityHashMap<Expression, Conjuncts>();
+
+	public PredicateCache(LTSminModel model, GuardInfo guardInfo,
+	                      LTSminDebug debug) {
+		this.model = model;
+		for (int g = 0; g < guardInfo.getNumberOfLabels(); g++)
+			add(guardInfo.get(g).getExpr(), debug);
+	}
+
+	private void add(Expression e, LTSminDebug debug) {
+		if (e instanceof EvalExpression) {
+			add(((EvalExpression)e).getExpression(), debug);
+		} else if (e instanceof BooleanExpression) {
+			BooleanExpression be = (BooleanExpression)e;
+			add(be.getExpr1(), debug);
+			if (be.getExpr2() != null)
+				add(be.getExpr2(), debug);
+		} else if (!cache.containsKey(e)) {
+			try {
+				cache.put(e, new Conjuncts(model, e));
+			} catch (RuntimeException re) {
+				// SimplePredicate rejects some leaves with a RuntimeException;
+				// get analyzes them again, so the generator fails if it needs them
+				debug.say(MessageKind.WARNING, "Not caching the predicates of "+ e +": "+ re);
+			}
+		}
+	}
+
+	/**
+	 * @return the conjunct predicates of leaf expression e
+	 */
+	public Conjuncts get(Expression e) {
+		Conjuncts c = cache.get(e);
+		if (c == null)
+			c = new Conjuncts(model, e);
+		return c;
+	}
+
+	public int size() {
+		return cache.size();
+	}
+}
@@ -148,6 +148,10 @@ public class Variable {
 		}
 		return this;
 	}
+	public void unsetAssignedTo() {
+		assignedTo = false;
+	}
+
 	public boolean isNotAssignedTo() {
 		return !assignedTo;
 	}
@@ -14,16 +14,28 @@
 
 package spins.util;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
 import spins.promela.compiler.ltsmin.LTSminTreeWalker.Options;
 
 /**
  * The StringWriter can be used as a replacement for the {@link StringBuilder}, 
  * but with support for adding lines with prefixes (indentation) and 
  * postfixes (newlines).
+ *
+ * A streaming StringWriter (see {@link #StringWriter(Options, Writer)})
+ * writes its buffer to an output whenever it is full, so that its memory use
+ * is bounded. The methods that inspect or remove characters (charAt,
+ * equals, length, removePostfix, revertToSavePoint, setLength and toString)
+ * then only see the characters that were not yet flushed.
  * 
  * @author Marc de Jonge
  */
 public final class StringWriter {
+	private static final int STREAM_BUFFER = 1 << 16;
+
 	private String preprefix;
 	private String prefix;
 	private String postfix;
@@ -31,6 +43,7 @@ public final class StringWriter {
 	private int used;
 	private int indented;
 	private int savePoint;
+	private Writer out = null;
 
 	/**
 	 * Constructor of StringWriter with a initial size of 32, a tab character as prefix, and the
@@ -59,6 +72,20 @@ public final class StringWriter {
     	options = opts;
 	}
 
+	/**
+	 * Constructor of a streaming StringWriter, which writes its content to
+	 * out in chunks of bounded size. I/O errors are thrown as
+	 * {@link UncheckedIOException}.
+	 *
+	 * @param out
+	 *            The output; it is not closed by the StringWriter.
+	 */
+	public StringWriter(Options opts, Writer out) {
+		this("\t", System.getProperty("line.separator"), STREAM_BUFFER);
+		this.options = opts;
+		this.out = out;
+	}
+
 	/**
 	 * Constructor of StringWriter.
 	 * 
@@ -114,6 +141,9 @@ public final class StringWriter {
 	public StringWriter append(final Object obj) {
 		final String s = String.valueOf(obj);
 		final int l = s.length();
+		if (out != null && used + l > buffer.length) {
+			flush();
+		}
 		expand(used + l);
 		s.getChars(0, l, buffer, used);
 		used += l;
@@ -303,10 +333,28 @@ public final class StringWriter {
 		return this;
 	}
 
+	/**
+	 * Writes the buffer to the output of a streaming StringWriter and
+	 * empties it. Does nothing for other StringWriters.
+	 */
+	public void flush() {
+		if (out == null) return;
+		try {
+			out.write(buffer, 0, used);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		savePoint -= used;
+		used = 0;
+	}
+
 	/**
 	 * Resets to the last savepoint, effectively removing all characters that were added.
 	 */
 	public void revertToSavePoint() {
+		if (savePoint < 0) {
+			throw new IllegalStateException("The save point was already flushed");
+		}
 		used = savePoint;
 	}
 
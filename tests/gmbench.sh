@@ -0,0 +1,39 @@
+#!/bin/bash
+# Times the generation of the guard dependency matrices for BEEM models.
+#
+# usage: gmbench.sh <classes dir> [<spins flags>]
+# Prints one line per model: the model and the seconds spent in the guard
+# matrix phase (or FAIL, also when spins exits with an error). Set MODELS to
+# a list of models to override the default (all of beem/all).
+
+if [ -z "$1" ]; then
+    echo "usage: $0 <classes dir> [<spins flags>]"
+    exit 1
+fi
+
+CP=`realpath "$1"`
+shift
+RUNDIR=`dirname "$0"`
+RUNDIR=`realpath "$RUNDIR"`
+MODELS=${MODELS:-`ls $RUNDIR/beem/all/*.pm`}
+TMP=`mktemp -d`
+trap "rm -rf $TMP" EXIT
+
+cd $TMP
+TOTAL=0
+for a in $MODELS; do
+    cp "$a" .
+    m=`basename "$a"`
+    T=
+    if java -Xss64m -cp "$CP" spins.Compile "$@" "$m" > "$m.log" 2>&1; then
+        T=`grep -a "Generating guard dependency matrices done" "$m.log" \
+          | sed -e 's/.*(\([0-9\.]*\) sec).*/\1/g'`
+    fi
+    if [ -z "$T" ]; then
+        echo -e "$m\tFAIL"
+    else
+        echo -e "$m\t$T"
+        TOTAL=`awk "BEGIN { print $TOTAL + $T }"`
+    fi
+done
+echo -e "total\t$TOTAL"
@@ -0,0 +1,47 @@
+#!/bin/bash
+# Builds models split into units (option -s) with their makefile.
+#
+# usage: split.sh <classes dir> [<spins flags>]
+# Prints one line per model: the model and OK, or FAIL with the first error
+# of the C compiler. The flags default to -s2. Set MODELS to a list of
+# models to override the default (the regression models, of which chan_op
+# starts and terminates processes, and a few BEEM models). Models that
+# spins cannot compile without -s are skipped. Exits with 1 if a build fails.
+
+if [ -z "$1" ]; then
+    echo "usage: $0 <classes dir> [<spins flags>]"
+    exit 1
+fi
+
+CP=`realpath "$1"`
+shift
+FLAGS=${@:--s2}
+RUNDIR=`dirname "$0"`
+RUNDIR=`realpath "$RUNDIR"`
+MODELS=${MODELS:-`ls $RUNDIR/regression/*.pr* $RUNDIR/regression/*.pm \
+    $RUNDIR/beem/adding.6.prom $RUNDIR/beem/elevator2.3.prom \
+    $RUNDIR/beem/peterson.4.prom`}
+MODELS=`realpath $MODELS`
+TMP=`mktemp -d`
+trap "rm -rf $TMP" EXIT
+
+cd $TMP
+FAILED=0
+for a in $MODELS; do
+    cp "$a" .
+    m=`basename "$a"`
+    if ! timeout 60 java -Xss64m -cp "$CP" spins.Compile "$m" > "$m.log" 2>&1; then
+        echo -e "$m\tskipped"
+        continue
+    fi
+    rm -f "$m.spins.c"
+    if java -Xss64m -cp "$CP" spins.Compile $FLAGS "$m" > "$m.log" 2>&1 \
+       && CFLAGS="-w -Werror=implicit-function-declaration -Wl,-z,defs" \
+          make -f "$m.spins.mk" >> "$m.log" 2>&1; then
+        echo -e "$m\tOK"
+    else
+        echo -e "$m\tFAIL\t`grep -a -m1 "error:" "$m.log"`"
+        FAILED=1
+    fi
+done
+exit $FAILED